@@ -0,0 +1,34 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.jmh;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the library benchmarks with the GC profiler, which reports the
+ * allocation rate and GC counts of each candidate. Any of the usual JMH
+ * command line options may be given, e.g. <code>-p candidate=fastutil,trove</code>
+ * to run a subset or <code>-rf csv -rff results.csv</code> to keep the results.
+ */
+public class LibraryBenchmarks {
+    static public void main(String[] args) throws CommandLineOptionException, RunnerException {
+        final Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(LongLongMapBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,141 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.jmh;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.agkn.hashperf.libs.ILongLongMap;
+import net.agkn.hashperf.libs.LongLongMapType;
+import net.agkn.hashperf.util.SyntheticWorkload;
+
+/**
+ * Compares the <code>long</code> to <code>long</code> hash tables of the
+ * 'libraries' comparison (see {@link LongLongMapType}) under JMH. Each
+ * combination of parameters runs in its own forked JVMs so one candidate's
+ * JIT profile never affects another's.
+ *
+ * The keys are drawn from a {@link SyntheticWorkload} so that the skew of the
+ * production ids can be reproduced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 2, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class LongLongMapBenchmark {
+    // the number of operations in each invocation
+    private static final int KEY_COUNT = 1 << 20;
+
+    // ************************************************************************
+    // the name of the map (see LongLongMapType#getName())
+    @Param({ "HashMap", "fastutil", "trove", "hppc", "colt", "pcj-open", "pcj-chained", "mahout", "robinhood" })
+    public String candidate;
+
+    @Param({ "1024", "1048576" })
+    public int sizeHint;
+
+    @Param({ "0.5", "0.75", "0.9" })
+    public float loadFactor;
+
+    // the distribution of the keys (the total is always KEY_COUNT)
+    @Param({ "unique=262144,distribution=zipf,exponent=0.9" })
+    public String workload;
+
+    // ------------------------------------------------------------------------
+    // the keys that are put and the values put with them
+    private long[] keys;
+    private long[] values;
+    // the keys that are looked up: a second draw from the same distribution
+    // so hot keys hit and some of the tail misses
+    private long[] lookups;
+
+    // a map holding every key (for 'get' and 'mixed')
+    private ILongLongMap filled;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final SyntheticWorkload.Spec spec = SyntheticWorkload.Spec.parse(workload);
+        spec.totalCount = KEY_COUNT;
+        keys = draw(spec);
+        spec.seed += 1;
+        lookups = draw(spec);
+
+        values = new long[KEY_COUNT];
+        final Random random = new Random(1L);
+        for(int i=0; i<KEY_COUNT; i++)
+            values[i] = random.nextLong();
+
+        filled = LongLongMapType.forName(candidate).create(sizeHint, loadFactor);
+        filled.putAll(keys, values, 0, KEY_COUNT);
+    }
+
+    /**
+     * @return the ids of the given workload
+     */
+    private static long[] draw(final SyntheticWorkload.Spec spec) {
+        final SyntheticWorkload.Generator generator = new SyntheticWorkload(spec).newGenerator();
+        final long[] ids = new long[(int)spec.totalCount];
+        for(int i=0; i<ids.length; i++)
+            ids[i] = generator.nextPersonId();
+        return ids;
+    }
+
+    // ========================================================================
+    /**
+     * Fills a new map, including any resizing it needs.
+     */
+    @Benchmark
+    @OperationsPerInvocation(KEY_COUNT)
+    public Object put() {
+        final ILongLongMap map = LongLongMapType.forName(candidate).create(sizeHint, loadFactor);
+        map.putAll(keys, values, 0, KEY_COUNT);
+        return map;
+    }
+
+    /**
+     * Looks up keys in a full map.
+     */
+    @Benchmark
+    @OperationsPerInvocation(KEY_COUNT)
+    public long get() {
+        long sum = 0L;
+        for(int i=0; i<KEY_COUNT; i++)
+            sum += filled.get(lookups[i]);
+        return sum;
+    }
+
+    /**
+     * Reads and then updates keys in a full map, as a counter would.
+     */
+    @Benchmark
+    @OperationsPerInvocation(KEY_COUNT)
+    public Object mixed() {
+        for(int i=0; i<KEY_COUNT; i++) {
+            final long key = lookups[i];
+            filled.put(key, filled.get(key) + values[i]);
+        }
+        return filled;
+    }
+}
@@ -0,0 +1,231 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf;
+
+import java.io.FileWriter;
+import java.io.IOException;
+
+import net.agkn.hashperf.PerformanceTestHarness.Options;
+import net.agkn.hashperf.util.IRecordSource;
+import net.agkn.hashperf.util.RecordBatch;
+import net.agkn.hashperf.util.BenchmarkMonitor;
+import net.agkn.hashperf.util.RecordIterator;
+import net.agkn.hashperf.util.RecordPartitioner;
+import net.agkn.hashperf.util.ReplayBuffer;
+
+/**
+ * Runner for a performance test with several concurrent workers. The records
+ * are partitioned by the hash of their <code>person_id</code> (see
+ * {@link RecordPartitioner}) so that each key is written by exactly one worker
+ * in its original order.
+ *
+ * The test is run with each of a number of worker counts in turn to produce a
+ * scaling curve. The aggregate throughput of each run is written to the stats
+ * file and the throughput of each worker to a <code>_workers.csv</code> file
+ * alongside it.
+ */
+public class ConcurrentPerformanceTestHarness {
+    // the test to run
+    final IConcurrentPerformanceTest test;
+    // the path of the test record file
+    final String testFilePath;
+    // the path where the stats file should be written
+    final String statsOutfilePath;
+    // number of warmup runs (for each worker count)
+    final int warmupRuns;
+    // number of observation runs (for each worker count)
+    final int observationRuns;
+    // records between stats polling (for each worker)
+    final int pollingInterval;
+    // the worker counts to run, in order
+    final int[] workerCounts;
+    // optional behavior
+    final Options options;
+
+    // the preloaded data set that is replayed for each run (only when preloading)
+    private ReplayBuffer replayBuffer;
+
+    /**
+     * @param test the performance test to run
+     * @param testFilePath the path of the file with the test records
+     * @param statsOutfilePath the path where the stats file should be written
+     * @param warmupRuns the number of warmup runs for each worker count (results are discarded)
+     * @param observationRuns the number of observation runs for each worker count
+     * @param pollingInterval the number of records in between polls for stats
+     * @param options the optional behavior of the harness, including the
+     *        worker counts ({@link Options#workerCounts}). {@link Options#pipelined}
+     *        does not apply since the records are always read on a separate
+     *        thread. This cannot be <code>null</code>.
+     */
+    public ConcurrentPerformanceTestHarness(final IConcurrentPerformanceTest test, final String testFilePath, final String statsOutfilePath, final int warmupRuns, final int observationRuns, final int pollingInterval, final Options options) {
+        this.test = test;
+        this.testFilePath = testFilePath;
+        this.statsOutfilePath = statsOutfilePath;
+        this.warmupRuns = warmupRuns;
+        this.observationRuns = observationRuns;
+        this.pollingInterval = pollingInterval;
+        this.workerCounts = options.workerCounts;
+        this.options = options;
+    }
+
+    public void run() {
+        final String testName = test.getClass().getSimpleName();
+        if(options.preload) {
+            System.err.println(testName + " preloading " + testFilePath);
+            replayBuffer = new ReplayBuffer(PerformanceTestHarness.openFileSource(testFilePath, options));
+            System.err.println("Preloaded " + replayBuffer.getRecordCount() + " records (" + replayBuffer.getAllocatedBytes() + " bytes off-heap)");
+        } /* else -- each run reads the file */
+        try {
+            final FileWriter output = new FileWriter(statsOutfilePath);
+            output.write("run,workers,record_count,elapsed_ms,aggregate_tps,min_worker_tps,max_worker_tps,speedup\n");
+            output.flush();
+            final FileWriter workerOutput = new FileWriter(PerformanceTestHarness.siblingPath(statsOutfilePath, "_workers.csv"));
+            workerOutput.write("run,workers,worker,record_count,elapsed_ms,tps\n");
+            workerOutput.flush();
+
+            // the mean aggregate throughput of the first worker count, which
+            // the speedup is relative to
+            double baseTransactionsPerSecond = 0.0;
+            for(final int workerCount : workerCounts) {
+                // warmups
+                for(int i=0; i<warmupRuns; i++) {
+                    System.err.println(testName + " workers " + workerCount + " warmup " + i);
+                    runWorkers(workerCount, "warmup", i);
+                }
+
+                // observed runs
+                double totalTransactionsPerSecond = 0.0;
+                for(int i=0; i<observationRuns; i++) {
+                    System.err.println(testName + " workers " + workerCount + " obs " + i);
+                    final RecordIterator[] iters = runWorkers(workerCount, "obs", i);
+
+                    long recordCount = 0L;
+                    long start = Long.MAX_VALUE;
+                    long stop = Long.MIN_VALUE;
+                    double minTransactionsPerSecond = Double.MAX_VALUE;
+                    double maxTransactionsPerSecond = 0.0;
+                    for(int j=0; j<workerCount; j++) {
+                        final RecordIterator iter = iters[j];
+                        recordCount += iter.getCount();
+                        start = Math.min(start, iter.getStart());
+                        stop = Math.max(stop, iter.getStop());
+                        minTransactionsPerSecond = Math.min(minTransactionsPerSecond, iter.getTransactionsPerSecond());
+                        maxTransactionsPerSecond = Math.max(maxTransactionsPerSecond, iter.getTransactionsPerSecond());
+                        workerOutput.write(i + "," + workerCount + "," + j + "," + iter.getCount() + "," + (iter.getStop() - iter.getStart()) + "," + iter.getTransactionsPerSecond() + "\n");
+                    }
+                    workerOutput.flush();
+
+                    final long elapsed = stop - start;
+                    final double transactionsPerSecond = 1000 * (recordCount / (double)elapsed);
+                    totalTransactionsPerSecond += transactionsPerSecond;
+                    final double base = (baseTransactionsPerSecond > 0.0) ? baseTransactionsPerSecond : transactionsPerSecond/*first worker count*/;
+                    output.write(i + "," + workerCount + "," + recordCount + "," + elapsed + "," + transactionsPerSecond + "," + minTransactionsPerSecond + "," + maxTransactionsPerSecond + "," + (transactionsPerSecond / base) + "\n");
+                    output.flush();
+                    System.err.println(testName + " workers " + workerCount + ": " + transactionsPerSecond + " records/s");
+                }
+                if((baseTransactionsPerSecond == 0.0) && (observationRuns > 0))
+                    baseTransactionsPerSecond = totalTransactionsPerSecond / observationRuns;
+                /* else -- the base is already known */
+            }
+
+            output.close();
+            workerOutput.close();
+        } catch(IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Couldn't open file " + statsOutfilePath);
+        } finally {
+            // release the direct memory once it is collected
+            replayBuffer = null;
+        }
+    }
+
+    /**
+     * Runs the test once with the given number of workers.
+     *
+     * @param phase <code>warmup</code> or <code>obs</code> (for the monitor)
+     * @param runNumber the index of the run within its phase
+     * @return the iterator of each worker
+     */
+    private RecordIterator[] runWorkers(final int workerCount, final String phase, final int runNumber) {
+        final BenchmarkMonitor monitor = options.monitor ? BenchmarkMonitor.register(options.monitorLogSeconds) : null;
+        if(monitor != null) monitor.beginRun(test.getClass().getSimpleName() + " x" + workerCount, phase, runNumber);
+        test.setUp(workerCount);
+        final IRecordSource source = (replayBuffer != null) ?
+                                         replayBuffer.newSource() :
+                                         PerformanceTestHarness.openFileSource(testFilePath, options);
+        final RecordPartitioner partitioner = new RecordPartitioner(source, workerCount);
+        final RecordIterator[] iters = new RecordIterator[workerCount];
+        final Throwable[] failures = new Throwable[workerCount];
+        try {
+            final Thread[] workers = new Thread[workerCount];
+            for(int i=0; i<workerCount; i++) {
+                final int worker = i;
+                workers[i] = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            // the iterator is primed (and so may wait on the
+                            // partitioner) on the worker's thread
+                            final RecordIterator iter = new RecordIterator(partitioner.getPartition(worker), pollingInterval);
+                            iter.releaseStreamedPolls()/*only streamed*/;
+                            iters[worker] = iter;
+                            if(monitor != null) iter.streamPolls(monitor.newSink(pollingInterval));
+                            test.doRun(worker, iter, new RecordBatch(options.batchSize));
+                        } catch(Throwable t) {
+                            t.printStackTrace();
+                            failures[worker] = t;
+
+                            // stop the reader so that it doesn't wait on this
+                            // worker forever (the other workers see the end
+                            // of their records)
+                            partitioner.close();
+                        }
+                    }
+                }, "worker-" + i);
+                workers[i].start();
+            }
+            for(final Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted waiting for workers.");
+                }
+            }
+        } finally {
+            partitioner.close();
+            test.tearDown();
+            if(monitor != null) monitor.endRun();
+        }
+
+        for(final Throwable failure : failures) {
+            if(failure != null)
+                throw new RuntimeException("Worker failed.", failure);
+            /* else -- the worker succeeded */
+        }
+        return iters;
+    }
+
+    // ========================================================================
+    /**
+     * @return the number of workers to sweep by default: powers of two up to
+     *         the number of available processors, plus that number itself
+     */
+    public static int[] defaultWorkerCounts() {
+        final int processorCount = Runtime.getRuntime().availableProcessors();
+        int count = 0;
+        for(int workers=1; workers<processorCount; workers*=2)
+            count++;
+        final int[] workerCounts = new int[count + 1];
+        int i = 0;
+        for(int workers=1; workers<processorCount; workers*=2)
+            workerCounts[i++] = workers;
+        workerCounts[count] = processorCount;
+        return workerCounts;
+    }
+}
@@ -0,0 +1,31 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf;
+
+import net.agkn.hashperf.util.RecordBatch;
+import net.agkn.hashperf.util.RecordIterator;
+
+/**
+ * A performance test that consumes records a batch at a time so that the
+ * store's bulk path (pipelining, multi-put, etc) can be used. The harness
+ * runs tests that only implement {@link IPerformanceTest} one record at a time
+ * as before.
+ */
+public interface IBatchPerformanceTest extends IPerformanceTest {
+    /**
+     * Runs the performance test, reading the records with
+     * {@link RecordIterator#nextBatch(RecordBatch)}.
+     *
+     * @param iter the {@link RecordIterator} that will time this test and
+     *        yield the records. The {@link IBatchPerformanceTest} is responsible
+     *        for calling {@link RecordIterator#start()} and {@link RecordIterator#stop()}.
+     * @param batch the batch to fill. Its capacity is the batch size of the run.
+     */
+    void doRun(RecordIterator iter, RecordBatch batch);
+}
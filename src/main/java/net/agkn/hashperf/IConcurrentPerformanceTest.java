@@ -0,0 +1,47 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf;
+
+import net.agkn.hashperf.util.RecordBatch;
+import net.agkn.hashperf.util.RecordIterator;
+
+/**
+ * A performance test that can be driven by several workers at once (see
+ * {@link ConcurrentPerformanceTestHarness}). Each worker is given the records
+ * of its own partition of the <code>person_id</code>s, so no two workers ever
+ * write the same key.
+ */
+public interface IConcurrentPerformanceTest {
+    /**
+     * Builds the store shared by the workers of a single run. Called before
+     * any worker is started.
+     *
+     * @param workerCount the number of workers that will run
+     */
+    void setUp(int workerCount);
+
+    /**
+     * Runs a single worker. This is called on the worker's own thread and
+     * should use its own connection (or thread-safe handle) to the store.
+     *
+     * @param worker the index of the worker
+     * @param iter the {@link RecordIterator} that will time this worker and
+     *        yield its records. The {@link IConcurrentPerformanceTest} is
+     *        responsible for calling {@link RecordIterator#start()} and
+     *        {@link RecordIterator#stop()}.
+     * @param batch a batch owned by this worker for tests that have a bulk
+     *        path (see {@link IBatchPerformanceTest}). Other tests ignore it.
+     */
+    void doRun(int worker, RecordIterator iter, RecordBatch batch);
+
+    /**
+     * Clears and releases the store. Called once every worker has finished.
+     */
+    void tearDown();
+}
@@ -0,0 +1,22 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf;
+
+/**
+ * A performance test whose store can report its own footprint, e.g. the
+ * direct memory of an off-heap store, which the live heap doesn't see. The
+ * harness writes the footprint after each observation run to a
+ * <code>_footprint.csv</code> file next to the stats file.
+ */
+public interface IFootprintPerformanceTest extends IPerformanceTest {
+    /**
+     * @return the bytes held by the store at the end of the last run
+     */
+    long getFootprintBytes();
+}
@@ -0,0 +1,54 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf;
+
+import net.agkn.hashperf.util.MixedWorkload;
+
+/**
+ * A performance test whose store can be driven one operation at a time by a
+ * {@link MixedWorkloadHarness}, which chooses and times each operation (see
+ * {@link MixedWorkload.Operation}). Keys are <code>person_id</code>s and values
+ * are the concatenation of the packed events appended to them, as for
+ * {@link IPerformanceTest}.
+ *
+ * The arrays passed to each operation are reused by the harness once the
+ * operation returns.
+ */
+public interface IMixedWorkloadTest {
+    /**
+     * Builds an empty store for a single run.
+     */
+    void openStore();
+
+    /**
+     * Appends an event to the events of a key, creating the key if it doesn't
+     * exist.
+     */
+    void append(byte[] personId, byte[] event);
+
+    /**
+     * @return the events of a key or <code>null</code> if the key doesn't exist
+     */
+    byte[] get(byte[] personId);
+
+    /**
+     * Replaces the events of a key (if any) with a single event.
+     */
+    void overwrite(byte[] personId, byte[] event);
+
+    /**
+     * @return <code>true</code> if the key existed and was removed
+     */
+    boolean delete(byte[] personId);
+
+    /**
+     * Clears and releases the store.
+     */
+    void closeStore();
+}
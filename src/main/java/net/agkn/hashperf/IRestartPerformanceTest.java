@@ -0,0 +1,29 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf;
+
+/**
+ * A performance test of a persistent store that is closed and reopened after
+ * each run (outside of the timer). The harness writes the time taken by each
+ * after each observation run to a <code>_restart.csv</code> file next to the
+ * stats file.
+ */
+public interface IRestartPerformanceTest extends IPerformanceTest {
+    /**
+     * @return the time (in milliseconds) taken to close the store (including
+     *         writing it to disk) at the end of the last run
+     */
+    long getCloseMillis();
+
+    /**
+     * @return the time (in milliseconds) taken to reopen the store at the end
+     *         of the last run
+     */
+    long getReopenMillis();
+}
@@ -0,0 +1,233 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf;
+
+import java.io.FileWriter;
+import java.io.IOException;
+
+import net.agkn.hashperf.PerformanceTestHarness.Options;
+import net.agkn.hashperf.util.BenchmarkMonitor;
+import net.agkn.hashperf.util.ByteUtil;
+import net.agkn.hashperf.util.GcMonitor;
+import net.agkn.hashperf.util.IRecordSource;
+import net.agkn.hashperf.util.LatencyHistogram;
+import net.agkn.hashperf.util.MixedWorkload;
+import net.agkn.hashperf.util.MixedWorkload.Operation;
+import net.agkn.hashperf.util.RecordFile;
+import net.agkn.hashperf.util.RecordIterator;
+
+/**
+ * Runner for a mixed workload: the records of the test file are written to the
+ * store (appended or overwritten) with lookups and deletes of the keys written
+ * so far interleaved in the ratios of a {@link MixedWorkload}. Each run ends
+ * once every record has been written.
+ *
+ * The latency of every operation is recorded (in nanoseconds) into a
+ * histogram per operation type. The stats file has a row per operation type
+ * for each observation run, followed by a <code>total</code> row, with the
+ * count, throughput, hits (gets that found the key and deletes that removed
+ * it) and latency percentiles.
+ */
+public class MixedWorkloadHarness {
+    // the columns of the stats file
+    private static final String STATS_HEADER = "run,operation,count,ops_per_second,hits,mean,p50,p90,p99,p999,max";
+
+    // the test to run
+    final IMixedWorkloadTest test;
+    // the path of the test record file
+    final String testFilePath;
+    // the path where the stats file should be written
+    final String statsOutfilePath;
+    // number of warmup runs
+    final int warmupRuns;
+    // number of observation runs
+    final int observationRuns;
+    // records between progress polling
+    final int pollingInterval;
+    // the ratios of the operations and how keys are chosen
+    final MixedWorkload workload;
+    // optional behavior
+    final Options options;
+
+    /**
+     * @param test the performance test to run
+     * @param testFilePath the path of the file with the test records
+     * @param statsOutfilePath the path where the stats file should be written
+     * @param warmupRuns the number of warmup runs (results are discarded for these initial runs)
+     * @param observationRuns the number of observation runs after the warmup runs
+     * @param pollingInterval the number of records (writes) in between polls for progress
+     * @param workload the mix of operations. This cannot be <code>null</code>.
+     * @param options the optional behavior of the harness. Only
+     *        {@link Options#parseThreads} and the monitor apply. This cannot be
+     *        <code>null</code>.
+     */
+    public MixedWorkloadHarness(final IMixedWorkloadTest test, final String testFilePath, final String statsOutfilePath, final int warmupRuns, final int observationRuns, final int pollingInterval, final MixedWorkload workload, final Options options) {
+        this.test = test;
+        this.testFilePath = testFilePath;
+        this.statsOutfilePath = statsOutfilePath;
+        this.warmupRuns = warmupRuns;
+        this.observationRuns = observationRuns;
+        this.pollingInterval = pollingInterval;
+        this.workload = workload;
+        this.options = options;
+    }
+
+    public void run() {
+        final String testName = test.getClass().getSimpleName();
+        final BenchmarkMonitor monitor = options.monitor ? BenchmarkMonitor.register(options.monitorLogSeconds) : null;
+        final GcMonitor gcMonitor = new GcMonitor();
+        System.err.println(testName + " mix " + workload.getSpec());
+
+        final Operation[] operations = Operation.values();
+        final LatencyHistogram[] latencies = new LatencyHistogram[operations.length];
+        for(int i=0; i<latencies.length; i++)
+            latencies[i] = new LatencyHistogram();
+        final long[] hits = new long[operations.length];
+
+        FileWriter output;
+        try {
+            // warmups
+            for(int i=0; i<warmupRuns; i++) {
+                System.err.println(testName + " warmup " + i);
+                runOnce(monitor, null/*no GC*/, "warmup", i, latencies, hits);
+            }
+
+            output = new FileWriter(statsOutfilePath);
+            output.write(STATS_HEADER + "\n");
+            output.flush();
+
+            // observed runs
+            final long[] snapshot = new long[LatencyHistogram.SNAPSHOT_FIELDS.length];
+            for(int i=0; i<observationRuns; i++) {
+                System.err.println(testName + " obs " + i);
+                final RecordIterator iter = runOnce(monitor, gcMonitor, "obs", i, latencies, hits);
+                final double elapsedSeconds = iter.getElapsedSeconds();
+
+                final LatencyHistogram total = new LatencyHistogram();
+                long totalHits = 0L;
+                for(final Operation operation : operations) {
+                    final LatencyHistogram latency = latencies[operation.ordinal()];
+                    latency.snapshot(snapshot, 0);
+                    writeStats(output, i, operation.getName(), elapsedSeconds, hits[operation.ordinal()], snapshot);
+                    System.err.println(operation.getName() + ": " + latency.getCount() + " ops, " + (long)(latency.getCount() / elapsedSeconds) + " ops/s, p50 " + snapshot[2] + " ns, p99 " + snapshot[4] + " ns, max " + snapshot[6] + " ns");
+                    total.add(latency);
+                    totalHits += hits[operation.ordinal()];
+                }
+                total.snapshot(snapshot, 0);
+                writeStats(output, i, "total", elapsedSeconds, totalHits, snapshot);
+                output.flush();
+                System.err.println((long)(total.getCount() / elapsedSeconds) + " ops/s, " + iter.getGcPauses().size() + " collections");
+            }
+
+            output.close();
+        } catch(IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Couldn't open file " + statsOutfilePath);
+        }
+    }
+
+    /**
+     * Runs the workload once against a fresh store.
+     *
+     * @param gcMonitor the monitor of the collections or <code>null</code> if
+     *        not tracked
+     * @param latencies the latency of each operation type (indexed by ordinal).
+     *        These are reset before the run.
+     * @param hits the hits of each operation type (indexed by ordinal). These
+     *        are reset before the run.
+     * @return the iterator of the run
+     */
+    private RecordIterator runOnce(final BenchmarkMonitor monitor, final GcMonitor gcMonitor, final String phase, final int runNumber, final LatencyHistogram[] latencies, final long[] hits) {
+        for(int i=0; i<latencies.length; i++) {
+            latencies[i].reset();
+            hits[i] = 0L;
+        }
+        final LatencyHistogram getLatency = latencies[Operation.GET.ordinal()];
+        final LatencyHistogram appendLatency = latencies[Operation.APPEND.ordinal()];
+        final LatencyHistogram overwriteLatency = latencies[Operation.OVERWRITE.ordinal()];
+        final LatencyHistogram deleteLatency = latencies[Operation.DELETE.ordinal()];
+
+        final MixedWorkload.Generator generator = workload.newGenerator();
+        // the key of a get or delete (reused)
+        final byte[] key = new byte[RecordFile.PERSON_ID_SIZE];
+
+        final IRecordSource source = PerformanceTestHarness.openFileSource(testFilePath, options);
+        final RecordIterator iter = new RecordIterator(source, pollingInterval);
+        if(gcMonitor != null) iter.trackGc(gcMonitor);
+        /* else -- not tracking GC */
+        if(monitor != null) {
+            monitor.beginRun(test.getClass().getSimpleName() + " mixed", phase, runNumber);
+            iter.streamPolls(monitor.newSink(pollingInterval));
+        } /* else -- not monitored */
+
+        test.openStore();
+        try {
+            iter.start();
+            while(iter.hasNext()) {
+                final long start;
+                switch(generator.nextOperation()) {
+                    case GET: {
+                        ByteUtil.longToBytes(generator.nextKey(), key, 0);
+                        start = System.nanoTime();
+                        final byte[] events = test.get(key);
+                        getLatency.record(System.nanoTime() - start);
+                        if(events != null) hits[Operation.GET.ordinal()]++;
+                        /* else -- deleted */
+                        break;
+                    }
+                    case APPEND: {
+                        final byte[] personId = iter.nextPersonId();
+                        start = System.nanoTime();
+                        test.append(personId, iter.nextEvent());
+                        appendLatency.record(System.nanoTime() - start);
+                        generator.addKey(ByteUtil.bytesToLong(personId, 0));
+                        iter.next();
+                        break;
+                    }
+                    case OVERWRITE: {
+                        final byte[] personId = iter.nextPersonId();
+                        start = System.nanoTime();
+                        test.overwrite(personId, iter.nextEvent());
+                        overwriteLatency.record(System.nanoTime() - start);
+                        generator.addKey(ByteUtil.bytesToLong(personId, 0));
+                        iter.next();
+                        break;
+                    }
+                    default/*DELETE*/: {
+                        ByteUtil.longToBytes(generator.nextKey(), key, 0);
+                        start = System.nanoTime();
+                        final boolean deleted = test.delete(key);
+                        deleteLatency.record(System.nanoTime() - start);
+                        if(deleted) hits[Operation.DELETE.ordinal()]++;
+                        /* else -- already deleted */
+                        break;
+                    }
+                }
+            }
+            iter.stop();
+        } finally {
+            test.closeStore();
+            source.close();
+            if(monitor != null) monitor.endRun();
+            /* else -- not monitored */
+        }
+        return iter;
+    }
+
+    /**
+     * Writes a row of the stats file (see {@link LatencyHistogram#SNAPSHOT_FIELDS}).
+     */
+    private static void writeStats(final FileWriter output, final int run, final String operation, final double elapsedSeconds, final long hits, final long[] snapshot)
+            throws IOException {
+        output.write(run + "," + operation + "," + snapshot[0] + "," + (snapshot[0] / elapsedSeconds) + "," + hits);
+        for(int i=1/*after the count*/; i<snapshot.length; i++)
+            output.write("," + snapshot[i]);
+        output.write("\n");
+    }
+}
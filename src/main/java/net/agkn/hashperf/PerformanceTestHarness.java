@@ -10,8 +10,23 @@ package net.agkn.hashperf;
 
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.List;
 
+import net.agkn.hashperf.util.BenchmarkMonitor;
+import net.agkn.hashperf.util.GcMonitor;
+import net.agkn.hashperf.util.IRecordSource;
+import net.agkn.hashperf.util.LatencyHistogram;
+import net.agkn.hashperf.util.MemoryProbe;
+import net.agkn.hashperf.util.ParallelRecordSource;
+import net.agkn.hashperf.util.PipelinedRecordSource;
+import net.agkn.hashperf.util.RecordBatch;
+import net.agkn.hashperf.util.RecordFile;
 import net.agkn.hashperf.util.RecordIterator;
+import net.agkn.hashperf.util.ReplayBuffer;
+import net.agkn.hashperf.util.StageStats;
+import net.agkn.hashperf.util.SyntheticWorkload;
+import net.agkn.hashperf.util.TimeSeriesRecorder;
+import net.agkn.hashperf.util.WarmupDetector;
 
 /**
  * Runner for a performance test.
@@ -29,6 +44,11 @@ public class PerformanceTestHarness {
     final int observationRuns;
     // records between stats polling
     final int pollingInterval;
+    // optional behavior
+    final Options options;
+
+    // the preloaded data set that is replayed for each run (only when preloading)
+    private ReplayBuffer replayBuffer;
 
     /**
      * @param test the performance test to run
@@ -39,54 +59,430 @@ public class PerformanceTestHarness {
      * @param pollingInterval the number of records in between polls for stats
      */
     public PerformanceTestHarness(final IPerformanceTest test, final String testFilePath, final String statsOutfilePath, final int warmupRuns, final int observationRuns, final int pollingInterval) {
+        this(test, testFilePath, statsOutfilePath, warmupRuns, observationRuns, pollingInterval, new Options()/*defaults*/);
+    }
+
+    /**
+     * @param test the performance test to run
+     * @param testFilePath the path of the file with the test records
+     * @param statsOutfilePath the path where the stats file should be written
+     * @param warmupRuns the number of warmup runs (results are discarded for
+     *        these initial runs). With {@link Options#adaptiveWarmup} this is
+     *        the most that are run.
+     * @param observationRuns the number of observation runs after the warmup runs
+     * @param pollingInterval the number of records in between polls for stats
+     * @param options the optional behavior of the harness. This cannot be <code>null</code>.
+     */
+    public PerformanceTestHarness(final IPerformanceTest test, final String testFilePath, final String statsOutfilePath, final int warmupRuns, final int observationRuns, final int pollingInterval, final Options options) {
         this.test = test;
         this.statsOutfilePath = statsOutfilePath;
         this.testFilePath = testFilePath;
         this.warmupRuns = warmupRuns;
         this.observationRuns = observationRuns;
         this.pollingInterval = pollingInterval;
+        this.options = options;
     }
 
     public void run() {
         FileWriter output;
+        FileWriter pipelineOutput = null/*only when pipelined*/;
+        FileWriter latencyOutput = null/*only when tracking latency*/;
+        FileWriter memoryOutput = null/*only when tracking memory*/;
+        FileWriter footprintOutput = null/*only when the test reports it*/;
+        FileWriter restartOutput = null/*only when the test reports it*/;
+        FileWriter gcOutput;
+        final MemoryProbe memoryProbe = options.memory ? new MemoryProbe() : null;
+        final GcMonitor gcMonitor = new GcMonitor();
+        final BenchmarkMonitor monitor = options.monitor ? BenchmarkMonitor.register(options.monitorLogSeconds) : null;
+        final String testName = test.getClass().getSimpleName();
+        if(options.preload) {
+            System.err.println(test.getClass().getSimpleName() + " preloading " + testFilePath);
+            replayBuffer = new ReplayBuffer(openFileSource());
+            System.err.println("Preloaded " + replayBuffer.getRecordCount() + " records (" + replayBuffer.getAllocatedBytes() + " bytes off-heap)");
+        } /* else -- each run reads the file */
         try {
-            // warmups
-            for(int i=0; i<warmupRuns; i++) {
-                System.err.println(test.getClass().getSimpleName() + " warmup " + i);
+            // warmups, each judged for a steady state (and ended once steady
+            // if adaptive)
+            final WarmupDetector warmupDetector = new WarmupDetector(pollingInterval, options.warmupWindows, options.warmupThreshold);
+            final int minWarmupRuns = options.adaptiveWarmup ? Math.min(options.minWarmupRuns, warmupRuns) : warmupRuns;
+            final FileWriter warmupOutput = new FileWriter(siblingPath("_warmup.csv"));
+            warmupOutput.write("run," + WarmupDetector.CSV_HEADER + "\n");
+            long warmupRecords = 0L;
+            double warmupSeconds = 0.0;
+            long warmupJitMillis = 0L;
+            boolean steady = false;
+            int runs = 0;
+            while((runs < warmupRuns) && !(steady && (runs >= minWarmupRuns))) {
+                System.err.println(test.getClass().getSimpleName() + " warmup " + runs);
 
-                final RecordIterator iter = new RecordIterator(testFilePath, pollingInterval);
-                test.doRun(iter);
+                final IRecordSource source = openSource();
+                final RecordIterator iter = new RecordIterator(source, pollingInterval);
+                iter.releaseStreamedPolls()/*only streamed*/;
+                warmupDetector.watch(iter, (runs >= minWarmupRuns)/*may end once steady*/);
+                if(monitor != null) {
+                    monitor.beginRun(testName, "warmup", runs);
+                    iter.streamPolls(monitor.newSink(pollingInterval));
+                } /* else -- not monitored */
+                runTest(iter);
+                source.close();
+                if(monitor != null) monitor.endRun();
+
+                steady = warmupDetector.endRun();
+                warmupOutput.write(runs + "," + warmupDetector.toCsv() + "\n");
+                warmupOutput.flush();
+                warmupRecords += warmupDetector.getRecords();
+                warmupSeconds += warmupDetector.getSeconds();
+                warmupJitMillis += warmupDetector.getJitMillis();
+                runs++;
             }
+            warmupOutput.write("total," + warmupRecords + "," + warmupSeconds + "," + warmupJitMillis + ",,,,," + steady + "\n");
+            warmupOutput.close();
+            if(runs > 0)
+                System.err.println("warmup: " + runs + " runs, " + warmupRecords + " records, " + (long)warmupSeconds + " s, " + warmupJitMillis + " ms compiling, " + (steady ? "steady" : "not steady"));
+            /* else -- no warmup */
+            if(!warmupDetector.isJitTimeSupported())
+                System.err.println("This JVM doesn't report its compilation time; steady state is judged on throughput alone.");
+            /* else -- the JIT is watched */
 
             // read the stats file
             output = new FileWriter(statsOutfilePath);
-            output.write("run,record_number,time,time_diff\n");
+            output.write("run,record_number,time,time_diff,gc_time,gc_count\n");
             output.flush();
+            gcOutput = new FileWriter(siblingPath("_gc.csv"));
+            gcOutput.write("run,record_number," + GcMonitor.PAUSE_CSV_HEADER + "\n");
+            gcOutput.flush();
+            if(!gcMonitor.isNotifying())
+                System.err.println("This JVM doesn't publish each collection; only the GC time per interval is recorded.");
+            /* else -- each pause is recorded */
+            if(options.pipelined) {
+                pipelineOutput = new FileWriter(siblingPath("_pipeline.csv"));
+                pipelineOutput.write("run,record_count,reader_busy,reader_idle,store_busy,store_idle,mean_occupancy,capacity,limited_by\n");
+                pipelineOutput.flush();
+            } /* else -- no pipeline stats */
+            if(options.latency) {
+                latencyOutput = new FileWriter(siblingPath("_latency.csv"));
+                latencyOutput.write("run,scope,record_number");
+                for(final String field : LatencyHistogram.SNAPSHOT_FIELDS)
+                    latencyOutput.write("," + field);
+                latencyOutput.write("\n");
+                latencyOutput.flush();
+            } /* else -- no latency stats */
+            if(options.memory) {
+                memoryOutput = new FileWriter(siblingPath("_memory.csv"));
+                memoryOutput.write("run,scope,record_number," + MemoryProbe.CSV_HEADER + ",heap_per_record,rss_per_record\n");
+                memoryOutput.flush();
+            } /* else -- no memory stats */
+            if(test instanceof IFootprintPerformanceTest) {
+                footprintOutput = new FileWriter(siblingPath("_footprint.csv"));
+                footprintOutput.write("run,record_number,footprint_bytes,bytes_per_record\n");
+                footprintOutput.flush();
+            } /* else -- the test doesn't report its footprint */
+            if(test instanceof IRestartPerformanceTest) {
+                restartOutput = new FileWriter(siblingPath("_restart.csv"));
+                restartOutput.write("run,record_number,close_ms,reopen_ms\n");
+                restartOutput.flush();
+            } /* else -- the test doesn't restart its store */
 
             // observed runs
             for(int i=0; i<observationRuns; i++) {
                 System.err.println(test.getClass().getSimpleName() + " obs " + i);
 
-                final RecordIterator iter = new RecordIterator(testFilePath, pollingInterval);
-                test.doRun(iter);
+                // the baseline is taken before the source is opened so that
+                // only the store's growth is counted
+                final MemoryProbe.Sample baselineMemory = options.memory ? memoryProbe.sampleAfterGC() : null;
 
-                // write stats to file
+                final IRecordSource source = openSource();
+                final RecordIterator iter = new RecordIterator(source, pollingInterval);
+                if(options.latency) iter.trackLatency();
+                if(options.memory) iter.trackMemory(memoryProbe);
+                if(!options.latency && !options.memory) iter.releaseStreamedPolls()/*only the times are read back*/;
+                iter.trackGc(gcMonitor);
+                // the stats are written as the polls are taken
+                iter.streamPolls(new StatsWriter(output, i));
+                if(monitor != null) {
+                    monitor.beginRun(testName, "obs", i);
+                    iter.streamPolls(monitor.newSink(pollingInterval));
+                } /* else -- not monitored */
+                runTest(iter);
+                source.close();
+                if(monitor != null) monitor.endRun();
                 final long[] polledTimes = iter.getPolledTimes();
-                long lastTime = iter.getStart();
-                for(int j=0; j<polledTimes.length; j++) {
-                    final int recordCount = (j + 1) * pollingInterval;
-                    final long time = polledTimes[j];
-                    final long timeDiff = time - lastTime;
-                    output.write(i + "," + recordCount + "," + time + "," + timeDiff + "\n");
-                    lastTime = time;
+
+                // each pause against the poll that ends the interval it
+                // started in (or the record count if after the last poll)
+                final List<GcMonitor.Pause> pauses = iter.getGcPauses();
+                long pauseMillis = 0L;
+                for(final GcMonitor.Pause pause : pauses) {
+                    long recordNumber = pause.getRecordNumber(polledTimes, pollingInterval);
+                    if(recordNumber < 0L) recordNumber = iter.getCount();
+                    gcOutput.write(i + "," + recordNumber + "," + pause.toCsv() + "\n");
+                    pauseMillis += pause.getDuration();
                 }
-                output.flush();
+                gcOutput.flush();
+                if(gcMonitor.isNotifying())
+                    System.err.println(pauses.size() + " collections, " + pauseMillis + " ms");
+                /* else -- no pauses */
+
+                if(options.pipelined) {
+                    final PipelinedRecordSource pipeline = (PipelinedRecordSource)source;
+                    final StageStats reader = pipeline.getReaderStats();
+                    final StageStats store = pipeline.getConsumerStats();
+                    System.err.println(reader + "; " + store + "; limited by " + pipeline.getLimitingStage());
+                    pipelineOutput.write(i + "," + iter.getCount() + "," + reader.getBusyMillis() + "," + reader.getIdleMillis() + "," + store.getBusyMillis() + "," + store.getIdleMillis() + "," + pipeline.getMeanOccupancy() + "," + pipeline.getCapacity() + "," + pipeline.getLimitingStage() + "\n");
+                    pipelineOutput.flush();
+                } /* else -- no pipeline stats */
+
+                if(options.latency) {
+                    // one row per polling interval followed by the whole run
+                    final long[][] intervalLatencies = iter.getIntervalLatencies();
+                    for(int j=0; j<intervalLatencies.length; j++)
+                        writeLatency(latencyOutput, i, "interval", (j + 1) * (long)pollingInterval, intervalLatencies[j]);
+                    final long[] runLatency = new long[LatencyHistogram.SNAPSHOT_FIELDS.length];
+                    iter.getRunLatency().snapshot(runLatency, 0);
+                    writeLatency(latencyOutput, i, "run", iter.getCount(), runLatency);
+                    latencyOutput.flush();
+                    System.err.println("latency (ns) p50 " + runLatency[2] + ", p99 " + runLatency[4] + ", p99.9 " + runLatency[5] + ", max " + runLatency[6]);
+                } /* else -- no latency stats */
+
+                if(options.memory) {
+                    // one row per poll followed by the end of the run
+                    final MemoryProbe.Sample[] polledMemory = iter.getPolledMemory();
+                    for(int j=0; j<polledMemory.length; j++)
+                        writeMemory(memoryOutput, i, "interval", (j + 1) * (long)pollingInterval, polledMemory[j], baselineMemory);
+                    writeMemory(memoryOutput, i, "end", iter.getCount(), iter.getEndMemory(), baselineMemory);
+                    memoryOutput.flush();
+                    System.err.println("memory at end: " + iter.getEndMemory() + "; " + iter.getEndMemory().getRssBytesPer(baselineMemory, iter.getCount()) + " rss bytes per record");
+                } /* else -- no memory stats */
+
+                if(footprintOutput != null) {
+                    final long footprint = ((IFootprintPerformanceTest)test).getFootprintBytes();
+                    final double perRecord = (iter.getCount() == 0L) ? 0.0 : (footprint / (double)iter.getCount());
+                    footprintOutput.write(i + "," + iter.getCount() + "," + footprint + "," + perRecord + "\n");
+                    footprintOutput.flush();
+                } /* else -- no footprint */
+
+                if(restartOutput != null) {
+                    final IRestartPerformanceTest restartTest = (IRestartPerformanceTest)test;
+                    restartOutput.write(i + "," + iter.getCount() + "," + restartTest.getCloseMillis() + "," + restartTest.getReopenMillis() + "\n");
+                    restartOutput.flush();
+                } /* else -- no restart */
             }
 
             output.close();
+            gcOutput.close();
+            if(pipelineOutput != null) pipelineOutput.close();
+            if(latencyOutput != null) latencyOutput.close();
+            if(memoryOutput != null) memoryOutput.close();
+            if(footprintOutput != null) footprintOutput.close();
+            if(restartOutput != null) restartOutput.close();
         } catch(IOException e) {
             e.printStackTrace();
             throw new RuntimeException("Couldn't open file " + statsOutfilePath);
+        } finally {
+            // release the direct memory once it is collected
+            replayBuffer = null;
+        }
+    }
+
+    /**
+     * Runs the test once, a batch at a time if it supports it.
+     */
+    private void runTest(final RecordIterator iter) {
+        if(test instanceof IBatchPerformanceTest)
+            ((IBatchPerformanceTest)test).doRun(iter, new RecordBatch(options.batchSize));
+        else
+            test.doRun(iter)/*one record at a time*/;
+    }
+
+    /**
+     * Writes a row of the stats file for each poll of a run.
+     */
+    private class StatsWriter implements TimeSeriesRecorder.ISink {
+        private final FileWriter output;
+        private final int run;
+
+        // the previous poll
+        private long lastTime = 0L/*the start*/;
+        private long lastGcTime = 0L;
+        private long lastGcCount = 0L;
+
+        StatsWriter(final FileWriter output, final int run) {
+            this.output = output;
+            this.run = run;
+        }
+
+        /* (non-Javadoc)
+         * @see net.agkn.hashperf.util.TimeSeriesRecorder.ISink#write(long, long[])
+         */
+        public void write(final long index, final long[] poll) throws IOException {
+            final long recordCount = (index + 1) * pollingInterval;
+            final long time = poll[RecordIterator.POLL_TIME];
+            final long gcTime = poll[RecordIterator.POLL_GC_TIME];
+            final long gcCount = poll[RecordIterator.POLL_GC_COUNT];
+            output.write(run + "," + recordCount + "," + time + "," + (time - lastTime) + "," + (gcTime - lastGcTime) + "," + (gcCount - lastGcCount) + "\n");
+            lastTime = time;
+            lastGcTime = gcTime;
+            lastGcCount = gcCount;
+        }
+
+        /* (non-Javadoc)
+         * @see net.agkn.hashperf.util.TimeSeriesRecorder.ISink#flush()
+         */
+        public void flush() throws IOException {
+            output.flush();
+        }
+    }
+
+    /**
+     * Writes a row of latency stats (see {@link LatencyHistogram#SNAPSHOT_FIELDS}).
+     */
+    private static void writeLatency(final FileWriter output, final int run, final String scope, final long recordNumber, final long[] snapshot)
+            throws IOException {
+        output.write(run + "," + scope + "," + recordNumber);
+        for(final long value : snapshot)
+            output.write("," + value);
+        output.write("\n");
+    }
+
+    /**
+     * Writes a row of memory stats, including the growth per record since the
+     * baseline.
+     */
+    private static void writeMemory(final FileWriter output, final int run, final String scope, final long recordNumber, final MemoryProbe.Sample sample, final MemoryProbe.Sample baseline)
+            throws IOException {
+        output.write(run + "," + scope + "," + recordNumber + "," + sample.toCsv() + "," + sample.getHeapBytesPer(baseline, recordNumber) + "," + sample.getRssBytesPer(baseline, recordNumber) + "\n");
+    }
+
+    /**
+     * Opens the source of records for a single run.
+     */
+    private IRecordSource openSource() {
+        final IRecordSource source = (replayBuffer != null) ?
+                                         replayBuffer.newSource() :
+                                         openFileSource();
+        if(options.pipelined)
+            return new PipelinedRecordSource(source);
+        else
+            return source;
+    }
+
+    /**
+     * Opens the test file, parsing it on several threads if so configured.
+     */
+    private IRecordSource openFileSource() {
+        return openFileSource(testFilePath, options);
+    }
+
+    /**
+     * Opens a test file, parsing it on several threads if so configured.
+     */
+    static IRecordSource openFileSource(final String testFilePath, final Options options) {
+        if((options.parseThreads > 1) && !RecordFile.isRecordFile(testFilePath) && !SyntheticWorkload.isSpec(testFilePath))
+            return new ParallelRecordSource(testFilePath, options.parseThreads);
+        else
+            return RecordFile.open(testFilePath);
+    }
+
+    /**
+     * @return the path of a stats file that sits alongside the main stats file
+     *         with the given suffix (e.g. <code>_pipeline.csv</code>)
+     */
+    private String siblingPath(final String suffix) {
+        return siblingPath(statsOutfilePath, suffix);
+    }
+
+    /**
+     * @return the path of a stats file that sits alongside the given stats
+     *         file with the given suffix
+     */
+    static String siblingPath(final String statsOutfilePath, final String suffix) {
+        final String base = statsOutfilePath.endsWith(".csv") ?
+                                statsOutfilePath.substring(0, statsOutfilePath.length() - 4) :
+                                statsOutfilePath;
+        return base + suffix;
+    }
+
+    // ************************************************************************
+    /**
+     * The optional behavior of the harness. Defaults match the original
+     * behavior. Each may be set with a <code>hashperf.*</code> system property
+     * (see {@link #fromSystemProperties()}).
+     */
+    public static class Options {
+        // read, parse and encode records on a separate thread, reporting the
+        // busy/idle time of each stage into a '_pipeline.csv' stats file
+        public boolean pipelined = false/*default read on the test's thread*/;
+
+        // load the encoded data set into off-heap memory once and replay it
+        // for every run rather than re-reading the file
+        public boolean preload = false/*default read the file for each run*/;
+
+        // the number of threads that parse a CSV test file (records are still
+        // delivered in file order)
+        public int parseThreads = 1/*default parse on one thread*/;
+
+        // the number of records handed to an IBatchPerformanceTest at a time
+        public int batchSize = RecordBatch.DEFAULT_CAPACITY;
+
+        // record the latency of each record (or batch) into a histogram that
+        // is written to a '_latency.csv' stats file
+        public boolean latency = false/*default only poll throughput*/;
+
+        // sample the live heap, buffer pools and RSS at each poll and after
+        // each run into a '_memory.csv' stats file
+        public boolean memory = false/*default no memory stats*/;
+
+        // expose the progress of each run as a JMX MBean (see BenchmarkMonitor)
+        public boolean monitor = false/*default no MBean*/;
+
+        // with the monitor, the seconds between log lines of the progress
+        public int monitorLogSeconds = 0/*default no log*/;
+
+        // end the warmup once the throughput is steady (see WarmupDetector)
+        // rather than always running every warmup run. The warmup runs become
+        // the most that are run.
+        public boolean adaptiveWarmup = false/*default run every warmup*/;
+
+        // with an adaptive warmup, the number of warmup runs that are always
+        // run to the end
+        public int minWarmupRuns = 0;
+
+        // the number of consecutive polling windows whose throughput must be
+        // steady
+        public int warmupWindows = 10;
+
+        // the largest coefficient of variation of the window throughputs (or
+        // change in mean throughput between warmup runs) that is steady
+        public double warmupThreshold = 0.05;
+
+        // the numbers of workers that the ConcurrentPerformanceTestHarness runs
+        public int[] workerCounts = ConcurrentPerformanceTestHarness.defaultWorkerCounts();
+
+        /**
+         * @return the options as set by system properties
+         */
+        public static Options fromSystemProperties() {
+            final Options options = new Options();
+            options.pipelined = Boolean.getBoolean("hashperf.pipelined");
+            options.preload = Boolean.getBoolean("hashperf.preload");
+            options.parseThreads = Integer.getInteger("hashperf.parseThreads", options.parseThreads);
+            options.batchSize = Integer.getInteger("hashperf.batchSize", options.batchSize);
+            options.latency = Boolean.getBoolean("hashperf.latency");
+            options.memory = Boolean.getBoolean("hashperf.memory");
+            options.adaptiveWarmup = Boolean.getBoolean("hashperf.adaptiveWarmup");
+            options.minWarmupRuns = Integer.getInteger("hashperf.minWarmupRuns", options.minWarmupRuns);
+            options.warmupWindows = Integer.getInteger("hashperf.warmupWindows", options.warmupWindows);
+            options.warmupThreshold = Double.parseDouble(System.getProperty("hashperf.warmupThreshold", Double.toString(options.warmupThreshold)));
+            options.monitorLogSeconds = Integer.getInteger("hashperf.monitorLogSeconds", options.monitorLogSeconds);
+            options.monitor = Boolean.getBoolean("hashperf.monitor") || (options.monitorLogSeconds > 0);
+            final String workerCounts = System.getProperty("hashperf.workers");
+            if(workerCounts != null) {
+                final String[] counts = workerCounts.split(",");
+                options.workerCounts = new int[counts.length];
+                for(int i=0; i<counts.length; i++)
+                    options.workerCounts[i] = Integer.parseInt(counts[i].trim());
+            } /* else -- sweep the default */
+            return options;
         }
     }
 }
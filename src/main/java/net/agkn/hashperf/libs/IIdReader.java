@@ -0,0 +1,35 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.libs;
+
+/**
+ * Streams primitive <code>long</code> ids without boxing.
+ *
+ * @see IdFile#open(String)
+ */
+public interface IIdReader {
+    /**
+     * Returns whether or not it is valid to call {@link #next()}.
+     */
+    boolean hasNext();
+
+    /**
+     * Returns the next id.
+     */
+    long next();
+
+    /**
+     * Reads up to <code>batch.length</code> ids into the array.
+     *
+     * @param batch the array to fill from index 0
+     * @return the number of ids read. This is only <code>0</code> once all ids
+     *         have been read.
+     */
+    int nextBatch(long[] batch);
+}
@@ -0,0 +1,45 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.libs;
+
+/**
+ * A <code>long</code> to <code>long</code> hash table of one of the libraries
+ * under test, without boxing (unless the library itself boxes).
+ *
+ * @see LongLongMapType
+ */
+public interface ILongLongMap {
+    /**
+     * Associates the value with the key, replacing any previous value.
+     */
+    void put(long key, long value);
+
+    /**
+     * Returns the value associated with the key or <code>0</code> if there is
+     * none.
+     */
+    long get(long key);
+
+    /**
+     * Returns the number of keys held.
+     */
+    int size();
+
+    /**
+     * Puts a run of keys and values. Each implementation has its own copy of
+     * this loop so that the call into the library is monomorphic no matter
+     * how many maps are run in the same JVM.
+     *
+     * @param keys the keys to put
+     * @param values the value of each key
+     * @param offset the index of the first key and value to put
+     * @param length the number of keys to put
+     */
+    void putAll(long[] keys, long[] values, int offset, int length);
+}
@@ -0,0 +1,133 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.libs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import net.agkn.hashperf.util.SyntheticWorkload;
+
+/**
+ * The binary id file formats. An id file has no header and is either:
+ * <ul>
+ *   <li>fixed-width ({@link #FIXED_EXTENSION}): each id is 8 bytes, big-endian, or</li>
+ *   <li>varint ({@link #VARINT_EXTENSION}): each id is zig-zag encoded and
+ *       written 7 bits at a time, least significant group first, with the
+ *       high bit set on all but the last byte.</li>
+ * </ul>
+ *
+ * Running this class converts a text id file (one id per line) into the
+ * format named by the output path's extension:
+ *
+ * <pre>
+ *   IdFile /path/to/ids.csv /path/to/ids.vids
+ * </pre>
+ */
+public class IdFile {
+    // file extensions that identify the binary formats
+    public static final String FIXED_EXTENSION = ".ids";
+    public static final String VARINT_EXTENSION = ".vids";
+
+    // the number of ids read at a time while converting
+    private static final int BATCH_SIZE = 4096;
+
+    // ************************************************************************
+    /**
+     * Opens the appropriate {@link IIdReader} for the path: binary id files
+     * (by extension) are memory-mapped, synthetic specs (see {@link SyntheticWorkload})
+     * are generated in-process and everything else is read as text.
+     */
+    public static IIdReader open(final String path) {
+        if(SyntheticWorkload.isSpec(path))
+            return new SyntheticIdReader(new SyntheticWorkload(SyntheticWorkload.Spec.parse(path)));
+        else if(path.endsWith(FIXED_EXTENSION))
+            return new MappedIdReader(path, false/*fixed-width*/);
+        else if(path.endsWith(VARINT_EXTENSION))
+            return new MappedIdReader(path, true/*varint*/);
+        else
+            return new IdReader(path);
+    }
+
+    // ========================================================================
+    /**
+     * Zig-zag encodes a <code>long</code> so that small negative values have
+     * short varints.
+     */
+    public static long encodeZigZag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Reverses {@link #encodeZigZag(long)}.
+     */
+    public static long decodeZigZag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // ========================================================================
+    /**
+     * Writes every id from the reader to the output path in the format named
+     * by its extension.
+     *
+     * @return the number of ids written
+     */
+    public static long write(final IIdReader reader, final String outputPath) {
+        final boolean varint;
+        if(outputPath.endsWith(VARINT_EXTENSION))
+            varint = true;
+        else if(outputPath.endsWith(FIXED_EXTENSION))
+            varint = false;
+        else
+            throw new RuntimeException("Output path " + outputPath + " must end in " + FIXED_EXTENSION + " or " + VARINT_EXTENSION);
+
+        final DataOutputStream output;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputPath), 8192 * 16 * 16 * 16/*32M*/));
+        } catch(FileNotFoundException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not open file " + outputPath);
+        }
+
+        final long[] batch = new long[BATCH_SIZE];
+        long count = 0L;
+        try {
+            int length;
+            while((length = reader.nextBatch(batch)) > 0) {
+                for(int i=0; i<length; i++) {
+                    if(varint) {
+                        long value = encodeZigZag(batch[i]);
+                        while((value & ~0x7FL) != 0L) {
+                            output.write((int)((value & 0x7F) | 0x80));
+                            value >>>= 7;
+                        }
+                        output.write((int)value);
+                    } else
+                        output.writeLong(batch[i]);
+                }
+                count += length;
+            }
+            output.close();
+        } catch(IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not write file " + outputPath);
+        }
+        return count;
+    }
+
+    static public void main(String[] args) {
+        final String inputPath = args[0];
+        final String outputPath = args[1];
+
+        final long count = write(open(inputPath), outputPath);
+        System.err.println("Wrote " + count + " ids to " + outputPath);
+    }
+}
@@ -8,18 +8,24 @@
  ******************************************************************************/
 package net.agkn.hashperf.libs;
 
-import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
 
-public class IdReader {
-    private BufferedReader reader;
-    private String nextLine;
+import net.agkn.hashperf.util.NumericCsvReader;
+
+/**
+ * Reads one id per line from a text file. The bytes are parsed directly to
+ * <code>long</code>s (see {@link NumericCsvReader}) so nothing is allocated
+ * per id.
+ */
+public class IdReader implements IIdReader {
+    private NumericCsvReader reader;
+    private long nextId;
+    private boolean hasNext;
 
     public IdReader(final String path) {
         try {
-            reader = new BufferedReader(new FileReader(path), 1024*1024*1024);
+            reader = new NumericCsvReader(new FileInputStream(path), ',');
         } catch(FileNotFoundException e) {
             e.printStackTrace();
             throw new RuntimeException("Could not find file " + path);
@@ -28,35 +34,42 @@ public class IdReader {
     }
 
     private void readNext() {
-        try {
-            nextLine = reader.readLine();
-        } catch(IOException e) {
-            e.printStackTrace();
-            throw new RuntimeException("Could not read line.");
-        }
-        if(nextLine == null) {
-            try {
-                reader.close();
-            } catch(IOException e) {
-                e.printStackTrace();
-                throw new RuntimeException("Could not close file.");
-            }
+        final int columnCount = reader.readRecord();
+        if(columnCount < 0) {
+            hasNext = false/*reader closes itself at EOF*/;
+        } else if(columnCount == 0) {
+            throw new NumberFormatException("Empty id line.");
+        } else {
+            nextId = reader.getValues()[0];
+            hasNext = true;
         }
     }
 
-    /**
-     * Returns whether or not it is valid to call {@link #next()}.
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.libs.IIdReader#hasNext()
      */
     public boolean hasNext() {
-        return nextLine != null;
+        return hasNext;
     }
 
-    /**
-     * Returns the next id, parsed to a <code>long</code>.
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.libs.IIdReader#next()
      */
     public long next() {
-        final long value = Long.valueOf(nextLine);
+        final long value = nextId;
         readNext();
         return value;
     }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.libs.IIdReader#nextBatch(long[])
+     */
+    public int nextBatch(final long[] batch) {
+        int count = 0;
+        while(hasNext && (count < batch.length)) {
+            batch[count++] = nextId;
+            readNext();
+        }
+        return count;
+    }
 }
@@ -0,0 +1,340 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.libs;
+
+import java.util.HashMap;
+
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import gnu.trove.map.hash.TLongLongHashMap;
+import bak.pcj.map.LongKeyLongChainedHashMap;
+import bak.pcj.map.LongKeyLongOpenHashMap;
+import cern.colt.map.OpenLongObjectHashMap;
+import com.carrotsearch.hppc.LongLongOpenHashMap;
+import org.apache.mahout.math.map.OpenLongLongHashMap;
+
+/**
+ * The registry of hash table libraries under test, each selectable by name
+ * (see {@link #forName(String)}).
+ */
+public enum LongLongMapType {
+    // chained
+    HASH_MAP("HashMap", HashMap.class) {
+        public ILongLongMap create(final int sizeHint, final float loadFactor) {
+            return new HashMapAdapter(sizeHint, loadFactor);
+        }
+    },
+    PCJ_CHAINED("pcj-chained", LongKeyLongChainedHashMap.class) {
+        public ILongLongMap create(final int sizeHint, final float loadFactor) {
+            return new PcjChainedAdapter(sizeHint, loadFactor);
+        }
+    },
+
+    // linear probing
+    HPPC("hppc", LongLongOpenHashMap.class) {
+        public ILongLongMap create(final int sizeHint, final float loadFactor) {
+            return new HppcAdapter(sizeHint, loadFactor);
+        }
+    },
+    FASTUTIL("fastutil", Long2LongOpenHashMap.class) {
+        public ILongLongMap create(final int sizeHint, final float loadFactor) {
+            return new FastutilAdapter(sizeHint, loadFactor);
+        }
+    },
+
+    // double hashing
+    PCJ_OPEN("pcj-open", LongKeyLongOpenHashMap.class) {
+        public ILongLongMap create(final int sizeHint, final float loadFactor) {
+            return new PcjOpenAdapter(sizeHint, loadFactor);
+        }
+    },
+    TROVE("trove", TLongLongHashMap.class) {
+        public ILongLongMap create(final int sizeHint, final float loadFactor) {
+            return new TroveAdapter(sizeHint, loadFactor);
+        }
+    },
+    MAHOUT("mahout", OpenLongLongHashMap.class) {
+        public ILongLongMap create(final int sizeHint, final float loadFactor) {
+            return new MahoutAdapter(sizeHint, loadFactor);
+        }
+    },
+    // Colt has no long to long map (Mahout's is its port) so values are boxed
+    COLT("colt", OpenLongObjectHashMap.class) {
+        public ILongLongMap create(final int sizeHint, final float loadFactor) {
+            return new ColtAdapter(sizeHint, loadFactor);
+        }
+    },
+
+    // Robin Hood linear probing (in-house, so no adapter)
+    ROBIN_HOOD("robinhood", RobinHoodLongLongMap.class) {
+        public ILongLongMap create(final int sizeHint, final float loadFactor) {
+            return new RobinHoodLongLongMap(sizeHint, loadFactor);
+        }
+    };
+
+    // ************************************************************************
+    private final String name;
+    private final Class<?> implementationClass;
+
+    private LongLongMapType(final String name, final Class<?> implementationClass) {
+        this.name = name;
+        this.implementationClass = implementationClass;
+    }
+
+    /**
+     * @return the name by which the map is selected
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the class of the library's map
+     */
+    public Class<?> getImplementationClass() {
+        return implementationClass;
+    }
+
+    /**
+     * Creates an empty map.
+     *
+     * @param sizeHint the initial capacity
+     * @param loadFactor the maximum load factor
+     */
+    public abstract ILongLongMap create(int sizeHint, float loadFactor);
+
+    /**
+     * @param name the name of a map (see {@link #getName()}). The case is ignored.
+     * @return the type with the given name
+     */
+    public static LongLongMapType forName(final String name) {
+        for(final LongLongMapType type : values()) {
+            if(type.name.equalsIgnoreCase(name))
+                return type;
+            /* else -- keep looking */
+        }
+        throw new IllegalArgumentException("Unknown map '" + name + "'. Expected one of " + names() + ".");
+    }
+
+    /**
+     * @return the names of every map, comma-separated
+     */
+    public static String names() {
+        final StringBuilder names = new StringBuilder();
+        for(final LongLongMapType type : values()) {
+            if(names.length() > 0) names.append(',');
+            names.append(type.name);
+        }
+        return names.toString();
+    }
+
+    // ************************************************************************
+    // adapters. The bodies are repeated rather than shared so that each has
+    // its own monomorphic call sites.
+    private static final class HashMapAdapter implements ILongLongMap {
+        private final HashMap<Long, Long> map;
+
+        HashMapAdapter(final int sizeHint, final float loadFactor) {
+            map = new HashMap<Long, Long>(sizeHint, loadFactor);
+        }
+
+        public void put(final long key, final long value) {
+            map.put(key, value);
+        }
+
+        public long get(final long key) {
+            final Long value = map.get(key);
+            return (value == null) ? 0L : value;
+        }
+
+        public int size() {
+            return map.size();
+        }
+
+        public void putAll(final long[] keys, final long[] values, final int offset, final int length) {
+            for(int i=offset; i<(offset + length); i++)
+                map.put(keys[i], values[i]);
+        }
+    }
+
+    private static final class PcjChainedAdapter implements ILongLongMap {
+        private final LongKeyLongChainedHashMap map;
+
+        PcjChainedAdapter(final int sizeHint, final float loadFactor) {
+            map = new LongKeyLongChainedHashMap(sizeHint, loadFactor);
+        }
+
+        public void put(final long key, final long value) {
+            map.put(key, value);
+        }
+
+        public long get(final long key) {
+            return map.get(key);
+        }
+
+        public int size() {
+            return map.size();
+        }
+
+        public void putAll(final long[] keys, final long[] values, final int offset, final int length) {
+            for(int i=offset; i<(offset + length); i++)
+                map.put(keys[i], values[i]);
+        }
+    }
+
+    private static final class HppcAdapter implements ILongLongMap {
+        private final LongLongOpenHashMap map;
+
+        HppcAdapter(final int sizeHint, final float loadFactor) {
+            map = new LongLongOpenHashMap(sizeHint, loadFactor);
+        }
+
+        public void put(final long key, final long value) {
+            map.put(key, value);
+        }
+
+        public long get(final long key) {
+            return map.get(key);
+        }
+
+        public int size() {
+            return map.size();
+        }
+
+        public void putAll(final long[] keys, final long[] values, final int offset, final int length) {
+            for(int i=offset; i<(offset + length); i++)
+                map.put(keys[i], values[i]);
+        }
+    }
+
+    private static final class FastutilAdapter implements ILongLongMap {
+        private final Long2LongOpenHashMap map;
+
+        FastutilAdapter(final int sizeHint, final float loadFactor) {
+            map = new Long2LongOpenHashMap(sizeHint, loadFactor);
+        }
+
+        public void put(final long key, final long value) {
+            map.put(key, value);
+        }
+
+        public long get(final long key) {
+            return map.get(key);
+        }
+
+        public int size() {
+            return map.size();
+        }
+
+        public void putAll(final long[] keys, final long[] values, final int offset, final int length) {
+            for(int i=offset; i<(offset + length); i++)
+                map.put(keys[i], values[i]);
+        }
+    }
+
+    private static final class PcjOpenAdapter implements ILongLongMap {
+        private final LongKeyLongOpenHashMap map;
+
+        PcjOpenAdapter(final int sizeHint, final float loadFactor) {
+            map = new LongKeyLongOpenHashMap(sizeHint, loadFactor);
+        }
+
+        public void put(final long key, final long value) {
+            map.put(key, value);
+        }
+
+        public long get(final long key) {
+            return map.get(key);
+        }
+
+        public int size() {
+            return map.size();
+        }
+
+        public void putAll(final long[] keys, final long[] values, final int offset, final int length) {
+            for(int i=offset; i<(offset + length); i++)
+                map.put(keys[i], values[i]);
+        }
+    }
+
+    private static final class TroveAdapter implements ILongLongMap {
+        private final TLongLongHashMap map;
+
+        TroveAdapter(final int sizeHint, final float loadFactor) {
+            map = new TLongLongHashMap(sizeHint, loadFactor);
+        }
+
+        public void put(final long key, final long value) {
+            map.put(key, value);
+        }
+
+        public long get(final long key) {
+            return map.get(key);
+        }
+
+        public int size() {
+            return map.size();
+        }
+
+        public void putAll(final long[] keys, final long[] values, final int offset, final int length) {
+            for(int i=offset; i<(offset + length); i++)
+                map.put(keys[i], values[i]);
+        }
+    }
+
+    private static final class MahoutAdapter implements ILongLongMap {
+        private final OpenLongLongHashMap map;
+
+        MahoutAdapter(final int sizeHint, final float loadFactor) {
+            map = new OpenLongLongHashMap(sizeHint, 0.0, loadFactor);
+        }
+
+        public void put(final long key, final long value) {
+            map.put(key, value);
+        }
+
+        public long get(final long key) {
+            return map.get(key);
+        }
+
+        public int size() {
+            return map.size();
+        }
+
+        public void putAll(final long[] keys, final long[] values, final int offset, final int length) {
+            for(int i=offset; i<(offset + length); i++)
+                map.put(keys[i], values[i]);
+        }
+    }
+
+    private static final class ColtAdapter implements ILongLongMap {
+        private final OpenLongObjectHashMap map;
+
+        ColtAdapter(final int sizeHint, final float loadFactor) {
+            map = new OpenLongObjectHashMap(sizeHint, 0.0, loadFactor);
+        }
+
+        public void put(final long key, final long value) {
+            map.put(key, Long.valueOf(value));
+        }
+
+        public long get(final long key) {
+            final Object value = map.get(key);
+            return (value == null) ? 0L : (Long)value;
+        }
+
+        public int size() {
+            return map.size();
+        }
+
+        public void putAll(final long[] keys, final long[] values, final int offset, final int length) {
+            for(int i=offset; i<(offset + length); i++)
+                map.put(keys[i], Long.valueOf(values[i]));
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.libs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a binary id file (see {@link IdFile}) through memory-mapped regions.
+ * Ids are either fixed-width (8 bytes, big-endian) or zig-zag varints.
+ */
+public class MappedIdReader implements IIdReader {
+    // the largest region that is mapped at once. It is a multiple of 8 so that
+    // no fixed-width id spans two regions.
+    private static final int MAX_REGION_SIZE = Integer.MAX_VALUE & ~7;
+
+    // the longest encoding of a varint
+    private static final int MAX_VARINT_SIZE = 10;
+
+    // ************************************************************************
+    private final ByteBuffer[] regions;
+    private final boolean varint;
+
+    // the region currently being read
+    private int regionIndex;
+    private ByteBuffer region;
+
+    /**
+     * @param path the path to the id file
+     * @param varint <code>true</code> if the ids are varints, <code>false</code>
+     *        if they are fixed-width
+     */
+    public MappedIdReader(final String path, final boolean varint) {
+        this.varint = varint;
+
+        final RandomAccessFile file;
+        try {
+            file = new RandomAccessFile(path, "r");
+        } catch(FileNotFoundException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not find file " + path);
+        }
+        try {
+            final FileChannel channel = file.getChannel();
+            final long size = channel.size();
+            if(!varint && (size % 8 != 0))
+                throw new RuntimeException("Id file " + path + " is truncated (" + size + " bytes).");
+
+            final int regionCount = (int)((size + MAX_REGION_SIZE - 1) / MAX_REGION_SIZE);
+            regions = new ByteBuffer[regionCount];
+            for(int i=0; i<regionCount; i++) {
+                final long position = (long)i * MAX_REGION_SIZE;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_REGION_SIZE, size - position));
+            }
+        } catch(IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not map file " + path);
+        } finally {
+            // the mappings remain valid once the file is closed
+            try {
+                file.close();
+            } catch(IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Could not close file.");
+            }
+        }
+
+        regionIndex = 0;
+        region = (regions.length > 0) ? regions[0] : ByteBuffer.allocate(0);
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.libs.IIdReader#hasNext()
+     */
+    public boolean hasNext() {
+        while(!region.hasRemaining()) {
+            if(regionIndex + 1 >= regions.length) return false;
+            region = regions[++regionIndex];
+        }
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.libs.IIdReader#next()
+     */
+    public long next() {
+        hasNext()/*advance to a region with data*/;
+        if(!varint)
+            return region.getLong();
+        else if(region.remaining() >= MAX_VARINT_SIZE)
+            return IdFile.decodeZigZag(readVarint(region));
+        else/*the varint may span regions*/
+            return IdFile.decodeZigZag(readSpanningVarint());
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.libs.IIdReader#nextBatch(long[])
+     */
+    public int nextBatch(final long[] batch) {
+        int count = 0;
+        while((count < batch.length) && hasNext()) {
+            if(varint) {
+                // decode in place while no varint can run off the region
+                final ByteBuffer current = region;
+                while((count < batch.length) && (current.remaining() >= MAX_VARINT_SIZE))
+                    batch[count++] = IdFile.decodeZigZag(readVarint(current));
+                if((count < batch.length) && hasNext())
+                    batch[count++] = next();
+            } else {
+                final ByteBuffer current = region;
+                final int available = Math.min(batch.length - count, current.remaining() / 8);
+                for(int i=0; i<available; i++)
+                    batch[count++] = current.getLong();
+            }
+        }
+        return count;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Reads a varint that is known to be entirely within the buffer.
+     */
+    private static long readVarint(final ByteBuffer buffer) {
+        long value = 0L;
+        int shift = 0;
+        byte currentByte;
+        do {
+            currentByte = buffer.get();
+            value |= (long)(currentByte & 0x7F) << shift;
+            shift += 7;
+        } while(currentByte < 0/*continuation bit set*/);
+        return value;
+    }
+
+    /**
+     * Reads a varint that may continue into the next region.
+     */
+    private long readSpanningVarint() {
+        long value = 0L;
+        int shift = 0;
+        byte currentByte;
+        do {
+            if(!hasNext())
+                throw new RuntimeException("Id file is truncated.");
+            currentByte = region.get();
+            value |= (long)(currentByte & 0x7F) << shift;
+            shift += 7;
+        } while(currentByte < 0/*continuation bit set*/);
+        return value;
+    }
+}
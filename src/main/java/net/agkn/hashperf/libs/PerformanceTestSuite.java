@@ -13,22 +13,31 @@ import java.io.IOException;
 import java.util.List;
 import java.util.Random;
 
-import net.agkn.hashperf.IPerformanceTest;
-import net.agkn.hashperf.PerformanceTestHarness;
-import net.agkn.hashperf.services.BaselinePerformanceTest;
-import net.agkn.hashperf.util.RecordIterator;
-
-import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
-import gnu.trove.map.hash.TLongLongHashMap;
-import bak.pcj.map.LongKeyLongChainedHashMap;
-import bak.pcj.map.LongKeyLongOpenHashMap;
-import java.util.HashMap;
-import com.carrotsearch.hppc.LongLongOpenHashMap;
-import org.apache.mahout.math.map.OpenLongLongHashMap;
+import net.agkn.hashperf.util.GcMonitor;
+import net.agkn.hashperf.util.MemoryProbe;
 
+/**
+ * Runs the 'libraries' comparison: fills each of a list of hash tables (see
+ * {@link LongLongMapType}) with the ids of the test file.
+ *
+ * Usage: <code>PerformanceTestSuite /path/to/ids.csv /path/to/stats/prefix warmupRuns observationRuns pollingInterval sizeHint loadFactor [maps]</code>
+ * where <code>maps</code> is a comma-separated list of map names or
+ * <code>all</code> (by default only <code>HashMap</code>).
+ *
+ * Besides the stats file of each map, a <code>_memory.csv</code> file holds
+ * the live heap and RSS at the end of each run and their growth per entry and
+ * a <code>_gc.csv</code> file holds each garbage collection pause against the
+ * <code>rec_no</code> of the interval it started in. Maps that report their
+ * probe lengths (see {@link RobinHoodLongLongMap}) also get a
+ * <code>_probes.csv</code> file with their distribution at the end of each run.
+ */
 public class PerformanceTestSuite {
-    static public void main(String[] args) {
+    // the number of ids read from the file at a time
+    private static final int BATCH_SIZE = 4096;
+    // the least time between progress reports
+    private static final long PROGRESS_INTERVAL_MILLIS = 1000L;
 
+    static public void main(String[] args) {
         final String testFilePath = args[0];
         final String statsOutfilePrefix = args[1];
         final int warmupRuns = Integer.valueOf(args[2]);
@@ -36,91 +45,163 @@ public class PerformanceTestSuite {
         final int pollingInterval = Integer.valueOf(args[4]);
         final int sizeHint = Integer.valueOf(args[5]);
         final float loadFactor = Float.valueOf(args[6]);
+        final String mapNames = (args.length > 7) ? args[7] : LongLongMapType.HASH_MAP.getName();
 
-        // Substitute any of the maps here down below. Make sure to change the
-        // value of the variable 'c', as well.
+        final String[] names = mapNames.equalsIgnoreCase("all") ? LongLongMapType.names().split(",") : mapNames.split(",");
+        final LongLongMapType[] types = new LongLongMapType[names.length];
+        for(int i=0; i<names.length; i++)
+            types[i] = LongLongMapType.forName(names[i].trim())/*fail before any run*/;
 
-        // chained
-        // final HashMap<Long, Long> map = new HashMap<Long, Long>(sizeHint, loadFactor); 
-        // final LongKeyLongChainedHashMap map = new LongKeyLongChainedHashMap(sizeHint, loadFactor);
+        for(final LongLongMapType type : types) {
+            runMap(type, testFilePath, statsOutfilePrefix, warmupRuns, observationRuns, pollingInterval, sizeHint, loadFactor);
 
-        // linear probing
-        // final LongLongOpenHashMap map = new LongLongOpenHashMap(sizeHint, loadFactor);
-        // final Long2LongOpenHashMap map = new Long2LongOpenHashMap(sizeHint, loadFactor);
-
-        // double hashing
-        // final LongKeyLongOpenHashMap map = new LongKeyLongOpenHashMap(sizeHint, loadFactor);
-        // final TLongLongHashMap map = new TLongLongHashMap(sizeHint, loadFactor);
-        // final OpenLongLongHashMap map = new OpenLongLongHashMap(sizeHint, 0.0, loadFactor);
+            // don't leave the previous map's garbage to the next
+            System.gc();
+        }
+    }
 
-        // replace class below with class choice from above
-        final Class c = HashMap.class;
-        final String statsOutfilePath = statsOutfilePrefix + c.getSimpleName() + "_lf" + (int)Math.floor(loadFactor * 100) + "_init" + (sizeHint/1000000) + ".csv";
+    /**
+     * Runs the warmup and observation runs of a single map.
+     */
+    private static void runMap(final LongLongMapType type, final String testFilePath, final String statsOutfilePrefix, final int warmupRuns, final int observationRuns, final int pollingInterval, final int sizeHint, final float loadFactor) {
+        final String mapName = type.getImplementationClass().getSimpleName();
+        final String statsOutfilePath = statsPath(statsOutfilePrefix, type, sizeHint, loadFactor);
         FileWriter output;
+        FileWriter memoryOutput;
+        FileWriter gcOutput;
+        FileWriter probeOutput = null/*only for maps that report probe lengths*/;
 
         try {
             // warmups
             for(int i=0; i<warmupRuns; i++) {
-                final Random random = new Random(1L);
-                final IdReader iter = new IdReader(testFilePath);
-                final Stats stats = new Stats();
-
-                long counter = 0L;
-                stats.start();
-
-                // replace line below with choice of map from above
-                final HashMap<Long, Long> map = new HashMap<Long, Long>(sizeHint, loadFactor);
-                System.err.println(c.getSimpleName() + " warmup " + i);
-
-                while(iter.hasNext()) {
-                    map.put(iter.next(), random.nextLong());
-                    counter +=1;
-                    if(counter % pollingInterval == 0) {
-                        System.err.println(counter);
-                        stats.observe();
-                    }
-                }
+                System.err.println(mapName + " warmup " + i);
+                fill(type, testFilePath, pollingInterval, sizeHint, loadFactor);
             }
 
             output = new FileWriter(statsOutfilePath);
-            output.write("run,rec_no,time_diff,memory_usage\n");
+            output.write("run,rec_no,time_diff,memory_usage," + MemoryProbe.CSV_HEADER + ",gc_time,gc_count\n");
             output.flush();
+            memoryOutput = new FileWriter(statsOutfilePath.substring(0, statsOutfilePath.length() - 4) + "_memory.csv");
+            memoryOutput.write("run,entries," + MemoryProbe.CSV_HEADER + ",heap_per_entry,rss_per_entry\n");
+            memoryOutput.flush();
+            gcOutput = new FileWriter(statsOutfilePath.substring(0, statsOutfilePath.length() - 4) + "_gc.csv");
+            gcOutput.write("run,rec_no," + GcMonitor.PAUSE_CSV_HEADER + "\n");
+            gcOutput.flush();
+            if(type == LongLongMapType.ROBIN_HOOD) {
+                probeOutput = new FileWriter(statsOutfilePath.substring(0, statsOutfilePath.length() - 4) + "_probes.csv");
+                probeOutput.write("run," + RobinHoodLongLongMap.ProbeStats.CSV_HEADER + "\n");
+                probeOutput.flush();
+            } /* else -- no probe lengths */
 
             // observed runs
             for(int obsRunNo=0; obsRunNo<observationRuns; obsRunNo++) {
-                final Random random = new Random(1L);
-                final IdReader iter = new IdReader(testFilePath);
-                final Stats stats = new Stats();
-
-                long counter = 0L;
-                stats.start();
-
-                // replace line below with choice of map from above
-                final HashMap<Long, Long> map = new HashMap<Long, Long>(sizeHint, loadFactor);
-                System.err.println(c.getSimpleName() + " obs " + obsRunNo);
-
-                while(iter.hasNext()) {
-                    map.put(iter.next(), random.nextLong());
-                    counter +=1;
-                    if(counter % pollingInterval == 0) {
-                        System.err.println(counter);
-                        stats.observe();
-                    }
-                }
+                System.err.println(mapName + " obs " + obsRunNo);
+                final Stats stats = fill(type, testFilePath, pollingInterval, sizeHint, loadFactor);
 
                 // write stats to file
                 final List<Long> timeDiffs = stats.getTimeDiffs();
                 final List<Long> memoryUsage = stats.getMemoryUsage();
+                final List<MemoryProbe.Sample> memorySamples = stats.getMemorySamples();
+                final List<Long> gcTimeDiffs = stats.getGcTimeDiffs();
+                final List<Long> gcCountDiffs = stats.getGcCountDiffs();
                 for(int i=0; i<timeDiffs.size(); i++) {
-                    output.write(obsRunNo + "," + ((long)i * (long)pollingInterval) + "," + timeDiffs.get(i) + "," + memoryUsage.get(i) + "\n");
+                    output.write(obsRunNo + "," + ((long)i * (long)pollingInterval) + "," + timeDiffs.get(i) + "," + memoryUsage.get(i) + "," + memorySamples.get(i).toCsv() + "," + gcTimeDiffs.get(i) + "," + gcCountDiffs.get(i) + "\n");
                 }
                 output.flush();
+
+                // rec_no matches the row of the interval the pause started in
+                // (pauses after the last poll take the next rec_no)
+                final long[] observationTimes = stats.getObservationTimes();
+                long pauseMillis = 0L;
+                for(final GcMonitor.Pause pause : stats.getGcPauses()) {
+                    final long recordNumber = pause.getRecordNumber(observationTimes, pollingInterval);
+                    final long recNo = ((recordNumber < 0L) ? ((observationTimes.length + 1) * (long)pollingInterval) : recordNumber) - pollingInterval;
+                    gcOutput.write(obsRunNo + "," + recNo + "," + pause.toCsv() + "\n");
+                    pauseMillis += pause.getDuration();
+                }
+                gcOutput.flush();
+
+                final MemoryProbe.Sample end = stats.getEnd();
+                final double heapPerEntry = end.getHeapBytesPer(stats.getBaseline(), stats.getEntryCount());
+                final double rssPerEntry = end.getRssBytesPer(stats.getBaseline(), stats.getEntryCount());
+                memoryOutput.write(obsRunNo + "," + stats.getEntryCount() + "," + end.toCsv() + "," + heapPerEntry + "," + rssPerEntry + "\n");
+                memoryOutput.flush();
+                System.err.println(mapName + " " + stats.getEntryCount() + " entries, " + heapPerEntry + " heap bytes per entry, " + stats.getGcPauses().size() + " collections (" + pauseMillis + " ms)");
+
+                if(probeOutput != null) {
+                    probeOutput.write(obsRunNo + "," + stats.getProbeStats().toCsv() + "\n");
+                    probeOutput.flush();
+                    System.err.println(mapName + " " + stats.getProbeStats());
+                } /* else -- no probe lengths */
             }
 
             output.close();
+            memoryOutput.close();
+            gcOutput.close();
+            if(probeOutput != null) probeOutput.close();
         } catch(IOException e) {
             e.printStackTrace();
             throw new RuntimeException("Couldn't open file " + statsOutfilePath);
         }
     }
+
+    /**
+     * @return the path of the stats file of a map. The <code>_memory.csv</code>
+     *         and <code>_gc.csv</code> files sit alongside it.
+     */
+    static String statsPath(final String statsOutfilePrefix, final LongLongMapType type, final int sizeHint, final float loadFactor) {
+        return statsOutfilePrefix + type.getImplementationClass().getSimpleName() + "_lf" + (int)Math.floor(loadFactor * 100) + "_init" + (sizeHint/1000000) + ".csv";
+    }
+
+    /**
+     * Fills a new map with every id of the test file, each with a random
+     * value.
+     *
+     * @return the stats of the run, observed every <code>pollingInterval</code> ids
+     */
+    private static Stats fill(final LongLongMapType type, final String testFilePath, final int pollingInterval, final int sizeHint, final float loadFactor) {
+        final Random random = new Random(1L);
+        final IIdReader iter = IdFile.open(testFilePath);
+        final Stats stats = new Stats();
+        final long[] batch = new long[BATCH_SIZE];
+        final long[] values = new long[BATCH_SIZE];
+
+        long counter = 0L;
+        long lastReport = 0L;
+        stats.start();
+
+        final ILongLongMap map = type.create(sizeHint, loadFactor);
+
+        int batchLength;
+        while((batchLength = iter.nextBatch(batch)) > 0) {
+            for(int j=0; j<batchLength; j++)
+                values[j] = random.nextLong();
+
+            // put the batch in runs that end at each poll
+            int position = 0;
+            while(position < batchLength) {
+                final int untilPoll = pollingInterval - (int)(counter % pollingInterval);
+                final int length = Math.min(batchLength - position, untilPoll);
+                map.putAll(batch, values, position, length);
+                position += length;
+                counter += length;
+                if(counter % pollingInterval == 0) {
+                    stats.observe();
+                    final long now = System.currentTimeMillis();
+                    if(now - lastReport >= PROGRESS_INTERVAL_MILLIS) {
+                        System.err.println(counter);
+                        lastReport = now;
+                    } /* else -- reported recently */
+                } /* else -- between polls */
+            }
+        }
+
+        // the size is read after the collection so the map is still live
+        stats.finish();
+        stats.setEntryCount(map.size());
+        if(map instanceof RobinHoodLongLongMap)
+            stats.setProbeStats(((RobinHoodLongLongMap)map).getProbeStats());
+        /* else -- the library doesn't expose its probes */
+        return stats;
+    }
 }
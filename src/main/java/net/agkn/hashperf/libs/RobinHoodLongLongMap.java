@@ -0,0 +1,379 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.libs;
+
+import net.agkn.hashperf.util.HashUtil;
+
+/**
+ * A <code>long</code> to <code>long</code> open-addressing hash table with
+ * Robin Hood linear probing: a key being inserted takes the slot of any
+ * resident that is closer to its own ideal slot, so the probe lengths stay
+ * nearly equal and their variance stays low even at load factors of 0.9 and
+ * above. Lookups stop as soon as they pass a resident closer to home than the
+ * key would be. Removal shifts the following displaced keys back by a slot
+ * (backward-shift deletion) rather than leaving tombstones.
+ *
+ * Each slot also holds its key's distance from its ideal slot, so that
+ * probing compares distances without rehashing the residents.
+ *
+ * The number of slots need not be a power of two: a key's ideal slot is its
+ * hash scaled to the table (multiply-shift), so the table can be sized to
+ * exactly the requested load. The key <code>0</code> marks an empty slot and
+ * is held outside of the table.
+ *
+ * The probe length of each key (the slots examined by a lookup that finds it)
+ * is summarized by {@link #getProbeStats()}.
+ */
+public class RobinHoodLongLongMap implements ILongLongMap {
+    // the largest number of slots (the largest array the JVM allows)
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+    // the largest distance of a key from its ideal slot that can be held
+    private static final int MAX_DISTANCE = Short.MAX_VALUE;
+
+    // ************************************************************************
+    private final float loadFactor;
+
+    // the slots. A key of 0 marks an empty slot.
+    private long[] keys;
+    private long[] values;
+    // the distance of each slot's key from its ideal slot
+    private short[] distances;
+    private int capacity;
+    // the number of keys at which the table grows
+    private int resizeAt;
+
+    // the number of keys (including the zero key)
+    private int size;
+
+    // the zero key (which can't be held in the table)
+    private boolean hasZeroKey;
+    private long zeroValue;
+
+    /**
+     * @param sizeHint the number of keys to size the table for
+     * @param loadFactor the largest fraction of the slots that may be full
+     *        before the table grows. This must be greater than zero and less
+     *        than one.
+     */
+    public RobinHoodLongLongMap(final int sizeHint, final float loadFactor) {
+        if((loadFactor <= 0.0f) || (loadFactor >= 1.0f))
+            throw new IllegalArgumentException("The load factor must be between zero and one (exclusive) but was " + loadFactor + ".");
+        this.loadFactor = loadFactor;
+        allocate((int)Math.min(MAX_CAPACITY, Math.max(16L, (long)Math.ceil(Math.max(sizeHint, 1) / (double)loadFactor) + 1L)));
+    }
+
+    /**
+     * Allocates an empty table with the given number of slots.
+     */
+    private void allocate(final int capacity) {
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+        this.distances = new short[capacity];
+        this.capacity = capacity;
+        this.resizeAt = (capacity == MAX_CAPACITY) ? (MAX_CAPACITY - 1) : (int)Math.min(capacity - 1, (long)(capacity * (double)loadFactor));
+    }
+
+    // ========================================================================
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.libs.ILongLongMap#put(long, long)
+     */
+    public void put(final long key, final long value) {
+        if(key == 0L) {
+            if(!hasZeroKey) size++;
+            /* else -- replaced */
+            hasZeroKey = true;
+            zeroValue = value;
+            return;
+        } /* else -- a key held in the table */
+
+        if(size >= resizeAt) grow();
+        /* else -- room in the table */
+
+        long currentKey = key;
+        long currentValue = value;
+        int slot = idealSlot(key);
+        int distance = 0;
+        while(true) {
+            final long resident = keys[slot];
+            if(resident == 0L) {
+                keys[slot] = currentKey;
+                values[slot] = currentValue;
+                distances[slot] = (short)distance;
+                size++;
+                return;
+            } /* else -- the slot is taken */
+            if(resident == currentKey) {
+                // only the key being put can be found (a displaced key is
+                // held nowhere else)
+                values[slot] = currentValue;
+                return;
+            } /* else -- another key */
+
+            final int residentDistance = distances[slot];
+            if(residentDistance < distance) {
+                // the resident is closer to home: take its slot and carry it
+                // onwards
+                keys[slot] = currentKey;
+                final long displacedValue = values[slot];
+                values[slot] = currentValue;
+                distances[slot] = (short)distance;
+                currentKey = resident;
+                currentValue = displacedValue;
+                distance = residentDistance;
+            } /* else -- the resident is at least as far from home */
+
+            slot = nextSlot(slot);
+            distance++;
+            if(distance > MAX_DISTANCE)
+                throw new IllegalStateException("A key is more than " + MAX_DISTANCE + " slots from its ideal slot.");
+            /* else -- the distance can be held */
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.libs.ILongLongMap#get(long)
+     */
+    public long get(final long key) {
+        if(key == 0L)
+            return hasZeroKey ? zeroValue : 0L;
+        /* else -- a key held in the table */
+
+        final int slot = findSlot(key);
+        return (slot < 0) ? 0L : values[slot];
+    }
+
+    /**
+     * @return <code>true</code> if the key is held
+     */
+    public boolean containsKey(final long key) {
+        if(key == 0L)
+            return hasZeroKey;
+        /* else -- a key held in the table */
+        return (findSlot(key) >= 0);
+    }
+
+    /**
+     * Removes a key, shifting back the keys that were displaced past it.
+     *
+     * @return the value that was associated with the key or <code>0</code> if
+     *         there was none
+     */
+    public long remove(final long key) {
+        if(key == 0L) {
+            if(!hasZeroKey) return 0L;
+            /* else -- remove the zero key */
+            hasZeroKey = false;
+            size--;
+            final long value = zeroValue;
+            zeroValue = 0L;
+            return value;
+        } /* else -- a key held in the table */
+
+        int slot = findSlot(key);
+        if(slot < 0) return 0L;
+        /* else -- found */
+        final long value = values[slot];
+        size--;
+
+        // shift back every following key until an empty slot or a key in its
+        // ideal slot
+        int next = nextSlot(slot);
+        while((keys[next] != 0L) && (distances[next] > 0)) {
+            keys[slot] = keys[next];
+            values[slot] = values[next];
+            distances[slot] = (short)(distances[next] - 1);
+            slot = next;
+            next = nextSlot(next);
+        }
+        keys[slot] = 0L;
+        values[slot] = 0L;
+        distances[slot] = 0;
+        return value;
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.libs.ILongLongMap#size()
+     */
+    public int size() {
+        return size;
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.libs.ILongLongMap#putAll(long[], long[], int, int)
+     */
+    public void putAll(final long[] keys, final long[] values, final int offset, final int length) {
+        for(int i=offset; i<(offset + length); i++)
+            put(keys[i], values[i]);
+    }
+
+    /**
+     * @return the number of slots
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    // ========================================================================
+    /**
+     * @return the slot holding the key or <code>-1</code> if it isn't held
+     */
+    private int findSlot(final long key) {
+        int slot = idealSlot(key);
+        int distance = 0;
+        while(true) {
+            final long resident = keys[slot];
+            if(resident == key) return slot;
+            if(resident == 0L) return -1;
+            // the key would have taken this slot had it been put
+            if(distances[slot] < distance) return -1;
+            /* else -- keep probing */
+            slot = nextSlot(slot);
+            distance++;
+        }
+    }
+
+    /**
+     * Doubles the table (up to the largest array) and puts every key back.
+     */
+    private void grow() {
+        if(capacity == MAX_CAPACITY)
+            throw new IllegalStateException("The map can't hold more than " + resizeAt + " keys.");
+        /* else -- there is room to grow */
+        final long[] oldKeys = keys;
+        final long[] oldValues = values;
+        final int tableSize = size - (hasZeroKey ? 1 : 0);
+        allocate((int)Math.min(MAX_CAPACITY, 2L * capacity));
+        size -= tableSize/*counted again as they are put*/;
+        for(int i=0; i<oldKeys.length; i++) {
+            if(oldKeys[i] != 0L)
+                put(oldKeys[i], oldValues[i]);
+            /* else -- empty */
+        }
+    }
+
+    /**
+     * @return the slot where the key belongs
+     */
+    private int idealSlot(final long key) {
+        // scale the upper half of the hash to the table
+        return (int)(((HashUtil.hash(key) >>> 32) * capacity) >>> 32);
+    }
+
+    private int nextSlot(final int slot) {
+        final int next = slot + 1;
+        return (next == capacity) ? 0 : next;
+    }
+
+    // ========================================================================
+    /**
+     * Scans the table for the probe length of every key.
+     *
+     * @return the distribution of the probe lengths
+     */
+    public ProbeStats getProbeStats() {
+        final ProbeStats stats = new ProbeStats(capacity);
+        for(int slot=0; slot<capacity; slot++) {
+            if(keys[slot] != 0L)
+                stats.add(distances[slot] + 1/*the ideal slot is one probe*/);
+            /* else -- empty */
+        }
+        return stats;
+    }
+
+    // ************************************************************************
+    /**
+     * The distribution of the probe lengths of the keys of a table (the slots
+     * examined by a lookup that finds the key).
+     */
+    public static class ProbeStats {
+        // the columns of a row of {@link #toCsv()}
+        public static final String CSV_HEADER = "entries,capacity,load,mean_probe,stddev_probe,p99_probe,max_probe";
+
+        private final int capacity;
+        // the number of keys with each probe length (index 0 is unused)
+        private long[] histogram = new long[16];
+        private long count;
+        private long sum;
+        private long sumOfSquares;
+        private int max;
+
+        ProbeStats(final int capacity) {
+            this.capacity = capacity;
+        }
+
+        void add(final int probeLength) {
+            if(probeLength >= histogram.length) {
+                final long[] grown = new long[Math.max(histogram.length * 2, probeLength + 1)];
+                System.arraycopy(histogram, 0, grown, 0, histogram.length);
+                histogram = grown;
+            } /* else -- room in the histogram */
+            histogram[probeLength]++;
+            count++;
+            sum += probeLength;
+            sumOfSquares += (long)probeLength * probeLength;
+            max = Math.max(max, probeLength);
+        }
+
+        /**
+         * @return the number of keys in the table
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return (count == 0L) ? 0.0 : ((double)sum / count);
+        }
+
+        public double getStandardDeviation() {
+            if(count == 0L) return 0.0;
+            final double mean = getMean();
+            return Math.sqrt(Math.max(0.0, ((double)sumOfSquares / count) - (mean * mean)));
+        }
+
+        public int getMax() {
+            return max;
+        }
+
+        /**
+         * @param percentile the percentile, e.g. <code>99.0</code>
+         * @return the smallest probe length of at least the given percentage
+         *         of the keys
+         */
+        public int getPercentile(final double percentile) {
+            final long threshold = (long)Math.ceil(count * percentile / 100.0);
+            long seen = 0L;
+            for(int length=1; length<histogram.length; length++) {
+                seen += histogram[length];
+                if(seen >= threshold) return length;
+                /* else -- keep counting */
+            }
+            return max;
+        }
+
+        /**
+         * @return the number of keys with the given probe length
+         */
+        public long getCount(final int probeLength) {
+            return (probeLength < histogram.length) ? histogram[probeLength] : 0L;
+        }
+
+        /**
+         * @return the stats as a row with the columns of {@link #CSV_HEADER}
+         */
+        public String toCsv() {
+            return count + "," + capacity + "," + ((double)count / capacity) + "," + getMean() + "," + getStandardDeviation() + "," + getPercentile(99.0) + "," + max;
+        }
+
+        @Override
+        public String toString() {
+            return "probe length mean " + getMean() + ", stddev " + getStandardDeviation() + ", p99 " + getPercentile(99.0) + ", max " + max + " at load " + ((double)count / capacity);
+        }
+    }
+}
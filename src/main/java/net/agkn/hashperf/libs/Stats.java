@@ -11,18 +11,57 @@ package net.agkn.hashperf.libs;
 import java.util.ArrayList;
 import java.util.List;
 
+import net.agkn.hashperf.util.GcMonitor;
+import net.agkn.hashperf.util.MemoryProbe;
+
+/**
+ * Collects the time, memory and garbage collection at each poll of a run.
+ * Besides the heap in use (which includes garbage) the live heap, buffer pools
+ * and RSS are sampled (see {@link MemoryProbe}), and the live heap is measured
+ * after a full collection before and after the run to give the bytes per
+ * stored entry. The forced collections are not counted as GC time. During the
+ * run the memory is sampled in the background (see
+ * {@link MemoryProbe#startSampling()}) so that each observation is cheap.
+ */
 public class Stats {
+    private final MemoryProbe probe;
+    private final GcMonitor gcMonitor;
+
     private long startTime;
     private long startMemory;
     private List<Long> timeObservations;
     private List<Long> memoryObservations;
+    private List<MemoryProbe.Sample> memorySamples;
+    private long startGcTime;
+    private long startGcCount;
+    private List<Long> gcTimeObservations;
+    private List<Long> gcCountObservations;
+    private List<GcMonitor.Pause> gcPauses;
+
+    // the samples after a full collection before and after the run
+    private MemoryProbe.Sample baseline;
+    private MemoryProbe.Sample end;
+    private long entryCount;
+    private RobinHoodLongLongMap.ProbeStats probeStats;
 
     public Stats() {
+        probe = new MemoryProbe();
+        gcMonitor = new GcMonitor();
         timeObservations = new ArrayList<Long>();
         memoryObservations = new ArrayList<Long>();
+        memorySamples = new ArrayList<MemoryProbe.Sample>();
+        gcTimeObservations = new ArrayList<Long>();
+        gcCountObservations = new ArrayList<Long>();
     }
 
     public void start() {
+        // collect before the timer starts
+        baseline = probe.sampleAfterGC();
+
+        gcMonitor.start();
+        startGcTime = gcMonitor.getCollectionTime();
+        startGcCount = gcMonitor.getCollectionCount();
+        probe.startSampling();
         startTime = System.currentTimeMillis();
         final Runtime runtime = Runtime.getRuntime();
         startMemory = runtime.totalMemory() - runtime.freeMemory();
@@ -33,6 +72,29 @@ public class Stats {
         final Runtime runtime = Runtime.getRuntime();
         final long usedMemory = runtime.totalMemory() - runtime.freeMemory();
         memoryObservations.add(usedMemory);
+        memorySamples.add(probe.latest());
+        gcTimeObservations.add(gcMonitor.getCollectionTime());
+        gcCountObservations.add(gcMonitor.getCollectionCount());
+    }
+
+    /**
+     * Samples the memory after a full collection at the end of the run.
+     *
+     * NOTE:  the map must still be reachable, e.g. by calling
+     *        {@link #setEntryCount(long)} with its size afterwards.
+     */
+    public void finish() {
+        probe.stopSampling();
+        gcMonitor.stop();
+        gcPauses = gcMonitor.drainPauses();
+        end = probe.sampleAfterGC();
+    }
+
+    /**
+     * @param entryCount the number of entries stored by the end of the run
+     */
+    public void setEntryCount(final long entryCount) {
+        this.entryCount = entryCount;
     }
 
     public List<Long> getTimeDiffs() {
@@ -52,4 +114,90 @@ public class Stats {
         }
         return usages;
     }
+
+    /**
+     * @return the time (in milliseconds) spent collecting since the previous
+     *         observation, at each observation
+     */
+    public List<Long> getGcTimeDiffs() {
+        return diffs(gcTimeObservations, startGcTime);
+    }
+
+    /**
+     * @return the number of collections since the previous observation, at
+     *         each observation
+     */
+    public List<Long> getGcCountDiffs() {
+        return diffs(gcCountObservations, startGcCount);
+    }
+
+    /**
+     * @return the time of each observation in milliseconds since the start
+     */
+    public long[] getObservationTimes() {
+        final long[] times = new long[timeObservations.size()];
+        for(int i=0; i<times.length; i++)
+            times[i] = timeObservations.get(i) - startTime;
+        return times;
+    }
+
+    /**
+     * @return the pauses recorded between {@link #start()} and {@link #finish()}.
+     *         This is empty if the JVM doesn't publish them.
+     */
+    public List<GcMonitor.Pause> getGcPauses() {
+        return gcPauses;
+    }
+
+    private static List<Long> diffs(final List<Long> observations, final long start) {
+        long last = start;
+        final List<Long> diffs = new ArrayList<Long>(observations.size());
+        for(final Long obs : observations) {
+            diffs.add(obs - last);
+            last = obs;
+        }
+        return diffs;
+    }
+
+    /**
+     * @return the memory sampled at each observation
+     */
+    public List<MemoryProbe.Sample> getMemorySamples() {
+        return memorySamples;
+    }
+
+    /**
+     * @return the memory after a full collection before the run
+     */
+    public MemoryProbe.Sample getBaseline() {
+        return baseline;
+    }
+
+    /**
+     * @return the memory after a full collection at the end of the run
+     *         (see {@link #finish()})
+     */
+    public MemoryProbe.Sample getEnd() {
+        return end;
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * @param probeStats the probe lengths of the map at the end of the run
+     *        (only for maps that report them)
+     */
+    public void setProbeStats(final RobinHoodLongLongMap.ProbeStats probeStats) {
+        this.probeStats = probeStats;
+    }
+
+    /**
+     * @return the probe lengths of the map at the end of the run or
+     *         <code>null</code> if the map doesn't report them
+     */
+    public RobinHoodLongLongMap.ProbeStats getProbeStats() {
+        return probeStats;
+    }
 }
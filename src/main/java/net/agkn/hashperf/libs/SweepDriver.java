@@ -0,0 +1,205 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.libs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sweeps the 'libraries' comparison over a grid of maps, initial capacities
+ * and load factors. Each combination is run by {@link PerformanceTestSuite}
+ * in a fresh JVM with the same heap flags so that no run inherits another's
+ * heap or JIT profile, and the time to load, peak memory and bytes per entry
+ * of every observation run are gathered into one results table.
+ *
+ * Usage: <code>SweepDriver /path/to/ids.csv /path/to/results.csv warmupRuns observationRuns pollingInterval sizeHints loadFactors [maps]</code>
+ * where <code>sizeHints</code> and <code>loadFactors</code> are comma-separated
+ * lists and <code>maps</code> is as for {@link PerformanceTestSuite}.
+ *
+ * The JVM flags of each run are set with <code>-Dhashperf.jvmArgs</code>
+ * (space-separated). By default each run gets the driver's own maximum heap
+ * as both its initial and maximum heap. The stats files of each run are kept
+ * in a directory per combination under <code>results_runs/</code>.
+ */
+public class SweepDriver {
+    // the columns of the results table
+    private static final String RESULTS_HEADER = "map,size_hint,load_factor,run,status,entries,load_ms,peak_used_heap,peak_rss,end_live_heap,heap_per_entry,rss_per_entry,gc_time";
+
+    static public void main(String[] args) {
+        final String testFilePath = args[0];
+        final String resultsPath = args[1];
+        final String warmupRuns = args[2];
+        final String observationRuns = args[3];
+        final String pollingInterval = args[4];
+        final String[] sizeHints = args[5].split(",");
+        final String[] loadFactors = args[6].split(",");
+        final String mapNames = (args.length > 7) ? args[7] : LongLongMapType.HASH_MAP.getName();
+
+        final String[] names = mapNames.equalsIgnoreCase("all") ? LongLongMapType.names().split(",") : mapNames.split(",");
+        final LongLongMapType[] types = new LongLongMapType[names.length];
+        for(int i=0; i<names.length; i++)
+            types[i] = LongLongMapType.forName(names[i].trim())/*fail before any run*/;
+        // parse the grid before any run too
+        final int[] sizeHintValues = new int[sizeHints.length];
+        for(int i=0; i<sizeHints.length; i++)
+            sizeHintValues[i] = Integer.parseInt(sizeHints[i].trim());
+        final float[] loadFactorValues = new float[loadFactors.length];
+        for(int i=0; i<loadFactors.length; i++)
+            loadFactorValues[i] = Float.parseFloat(loadFactors[i].trim());
+
+        final List<String> jvmArgs = jvmArgs();
+        final String runsDirectory = (resultsPath.endsWith(".csv") ? resultsPath.substring(0, resultsPath.length() - 4) : resultsPath) + "_runs";
+
+        FileWriter output;
+        try {
+            output = new FileWriter(resultsPath);
+            output.write(RESULTS_HEADER + "\n");
+            output.flush();
+
+            for(final LongLongMapType type : types) {
+                for(final int sizeHint : sizeHintValues) {
+                    for(final float loadFactor : loadFactorValues) {
+                        final File runDirectory = new File(runsDirectory, type.getName() + "_init" + sizeHint + "_lf" + loadFactor);
+                        if(!runDirectory.isDirectory() && !runDirectory.mkdirs())
+                            throw new RuntimeException("Couldn't create directory " + runDirectory);
+                        /* else -- the directory exists */
+                        final String statsOutfilePrefix = runDirectory.getPath() + File.separator;
+
+                        final List<String> command = new ArrayList<String>();
+                        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+                        command.addAll(jvmArgs);
+                        command.add("-classpath");
+                        command.add(System.getProperty("java.class.path"));
+                        command.add(PerformanceTestSuite.class.getName());
+                        command.addAll(Arrays.asList(testFilePath, statsOutfilePrefix, warmupRuns, observationRuns, pollingInterval, Integer.toString(sizeHint), Float.toString(loadFactor), type.getName()));
+
+                        System.err.println("sweep " + type.getName() + " sizeHint " + sizeHint + " loadFactor " + loadFactor);
+                        final int exitCode = runChild(command);
+
+                        final String configuration = type.getName() + "," + sizeHint + "," + loadFactor;
+                        if(exitCode != 0) {
+                            System.err.println("sweep " + type.getName() + " sizeHint " + sizeHint + " loadFactor " + loadFactor + " failed with exit code " + exitCode);
+                            output.write(configuration + ",,exit " + exitCode + ",,,,,,,,\n");
+                        } else
+                            writeResults(output, configuration, PerformanceTestSuite.statsPath(statsOutfilePrefix, type, sizeHint, loadFactor));
+                        output.flush();
+                    }
+                }
+            }
+
+            output.close();
+        } catch(IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Couldn't write file " + resultsPath);
+        }
+    }
+
+    /**
+     * @return the JVM flags of each run
+     */
+    private static List<String> jvmArgs() {
+        final String jvmArgs = System.getProperty("hashperf.jvmArgs");
+        if(jvmArgs != null)
+            return Arrays.asList(jvmArgs.trim().split("\\s+"));
+        /* else -- the driver's own heap */
+        final long heapMegabytes = Runtime.getRuntime().maxMemory() / (1024L * 1024L);
+        return Arrays.asList("-server", "-Xms" + heapMegabytes + "m", "-Xmx" + heapMegabytes + "m");
+    }
+
+    /**
+     * Runs a child JVM to completion, copying its output to standard error.
+     *
+     * @return the exit code of the child
+     */
+    private static int runChild(final List<String> command) throws IOException {
+        final ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        final Process process = builder.start();
+        process.getOutputStream().close();
+
+        final InputStream input = process.getInputStream();
+        final byte[] buffer = new byte[8192];
+        int length;
+        while((length = input.read(buffer)) > 0)
+            System.err.write(buffer, 0, length);
+        input.close();
+        System.err.flush();
+
+        try {
+            return process.waitFor();
+        } catch(InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for " + command);
+        }
+    }
+
+    /**
+     * Writes a row for each observation run of a combination from its stats
+     * and <code>_memory.csv</code> files.
+     */
+    private static void writeResults(final FileWriter output, final String configuration, final String statsOutfilePath)
+            throws IOException {
+        // per-run totals and peaks from the stats file
+        final Map<Long, long[]/*load_ms, peak_used_heap, peak_rss, gc_time*/> polled = new TreeMap<Long, long[]>();
+        for(final Map<String, String> row : readCsv(statsOutfilePath)) {
+            final Long run = Long.valueOf(row.get("run"));
+            long[] totals = polled.get(run);
+            if(totals == null) {
+                totals = new long[4];
+                polled.put(run, totals);
+            } /* else -- a later poll of the run */
+            totals[0] += Long.parseLong(row.get("time_diff"));
+            totals[1] = Math.max(totals[1], Long.parseLong(row.get("used_heap")));
+            totals[2] = Math.max(totals[2], Long.parseLong(row.get("rss")));
+            totals[3] += Long.parseLong(row.get("gc_time"));
+        }
+
+        final String memoryOutfilePath = statsOutfilePath.substring(0, statsOutfilePath.length() - 4) + "_memory.csv";
+        for(final Map<String, String> row : readCsv(memoryOutfilePath)) {
+            final Long run = Long.valueOf(row.get("run"));
+            final long[] totals = polled.containsKey(run) ? polled.get(run) : new long[4]/*no polls*/;
+            output.write(configuration + "," + run + ",ok," + row.get("entries") + "," + totals[0] + "," + totals[1] + "," + totals[2] + "," + row.get("live_heap") + "," + row.get("heap_per_entry") + "," + row.get("rss_per_entry") + "," + totals[3] + "\n");
+        }
+    }
+
+    /**
+     * @return the rows of a stats file, each keyed by the names in its header
+     */
+    private static List<Map<String, String>> readCsv(final String path) throws IOException {
+        final List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+        final BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            final String header = reader.readLine();
+            if(header == null) return rows;
+            final String[] names = header.split(",");
+            String line;
+            while((line = reader.readLine()) != null) {
+                final String[] values = line.split(",");
+                final Map<String, String> row = new HashMap<String, String>();
+                for(int i=0; i<Math.min(names.length, values.length); i++)
+                    row.put(names[i], values[i]);
+                rows.add(row);
+            }
+            return rows;
+        } finally {
+            reader.close();
+        }
+    }
+}
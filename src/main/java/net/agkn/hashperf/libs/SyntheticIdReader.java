@@ -0,0 +1,50 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.libs;
+
+import net.agkn.hashperf.util.SyntheticWorkload;
+
+/**
+ * Yields the <code>person_id</code>s of a {@link SyntheticWorkload} without
+ * touching the disk.
+ */
+public class SyntheticIdReader implements IIdReader {
+    private final SyntheticWorkload.Generator generator;
+
+    /**
+     * @param workload the workload whose ids are read from the start
+     */
+    public SyntheticIdReader(final SyntheticWorkload workload) {
+        this.generator = workload.newGenerator();
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.libs.IIdReader#hasNext()
+     */
+    public boolean hasNext() {
+        return generator.hasNext();
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.libs.IIdReader#next()
+     */
+    public long next() {
+        return generator.nextPersonId();
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.libs.IIdReader#nextBatch(long[])
+     */
+    public int nextBatch(final long[] batch) {
+        int count = 0;
+        while((count < batch.length) && generator.hasNext())
+            batch[count++] = generator.nextPersonId();
+        return count;
+    }
+}
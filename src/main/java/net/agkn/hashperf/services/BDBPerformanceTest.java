@@ -19,8 +19,12 @@ import com.sleepycat.db.DatabaseException;
 import com.sleepycat.db.DatabaseType;
 import com.sleepycat.db.Environment;
 import com.sleepycat.db.EnvironmentConfig;
+import com.sleepycat.db.OperationStatus;
 
+import net.agkn.hashperf.IConcurrentPerformanceTest;
+import net.agkn.hashperf.IMixedWorkloadTest;
 import net.agkn.hashperf.IPerformanceTest;
+import net.agkn.hashperf.util.RecordBatch;
 import net.agkn.hashperf.util.RecordIterator;
 
 /**
@@ -29,20 +33,30 @@ import net.agkn.hashperf.util.RecordIterator;
  * The source to Berkeley DB may be found at http://www.oracle.com/technetwork/database/berkeleydb/downloads/index.html.
  *
  * The license to Berkeley DB may be found at http://www.oracle.com/technetwork/database/berkeleydb/downloads/oslicense-093458.html
+ *
+ * When run concurrently the workers share the (free-threaded) database handle
+ * and the environment uses the Concurrent Data Store locking, so writes are
+ * serialized by BDB itself.
  */
-public class BDBPerformanceTest implements IPerformanceTest {
+public class BDBPerformanceTest implements IPerformanceTest, IConcurrentPerformanceTest, IMixedWorkloadTest {
     private Database db;
     private Environment env;
 
     /**
      * Builds a in-memory BDB Hash database.
+     *
+     * @param concurrent <code>true</code> if several threads will write to the
+     *        database at once
      */
-    private void buildDB() {
+    private void buildDB(final boolean concurrent) {
         EnvironmentConfig envConfig = new EnvironmentConfig();
 
         envConfig.setAllowCreate(true);/*allow creation*/
         envConfig.setPrivate(true);/*only one process*/
-        envConfig.setNoLocking(true);/*no need for locks when only one process*/
+        if(concurrent)
+            envConfig.setInitializeCDB(true);/*many readers or one writer at a time*/
+        else
+            envConfig.setNoLocking(true);/*no need for locks when only one process*/
         envConfig.setTransactional(false);/*no transactions*/
 
         envConfig.setCacheSize(10000000000L);/*10G memory pools*/
@@ -54,8 +68,9 @@ public class BDBPerformanceTest implements IPerformanceTest {
         dbConfig.setAllowCreate(true);/*allow creation*/
         dbConfig.setType(DatabaseType.HASH);/*HASH db*/
 
-        // Our data set has a bit over 78 million unique elements
-        dbConfig.setHashNumElements(78000000);/*estimated number of elements*/
+        // Our data set has a bit over 78 million unique elements. Synthetic
+        // data sets can override this with -Dhashperf.expectedElements.
+        dbConfig.setHashNumElements(Integer.getInteger("hashperf.expectedElements", 78000000));/*estimated number of elements*/
 
         // Fill factor is recommended to be:
         // (pagesize - 32)/(average_key_size + average_data_size + 8)
@@ -93,44 +108,156 @@ public class BDBPerformanceTest implements IPerformanceTest {
      * @see net.agkn.hashperf.IPerformanceTest#doRun(RecordIterator)
      */
     public void doRun(final RecordIterator iter) {
-        buildDB();
+        buildDB(false/*single thread*/);
+        try {
+            appendAll(iter);
+        } finally {
+            closeDB();
+        }
+    }
 
+    /**
+     * Appends every record of the iterator to the database.
+     */
+    private void appendAll(final RecordIterator iter) {
         try {
             iter.start();
             while(iter.hasNext()) {
-                DatabaseEntry keyDBE = new DatabaseEntry(iter.nextPersonId());
-                DatabaseEntry valueDBE = new DatabaseEntry();
+                appendEvent(iter.nextPersonId(), iter.nextEvent());
+                iter.next();
+            }
+            iter.stop();
+        } catch(DatabaseException e) {
+            e.printStackTrace();
+            throw new RuntimeException("BDB couldn't get/put.");
+        }
+    }
 
-                db.get(null, keyDBE, valueDBE, null);
+    /**
+     * Appends an event to the value of a key by reading the value and writing
+     * it back with the event concatenated.
+     */
+    private void appendEvent(final byte[] personId, final byte[] newdata)
+            throws DatabaseException {
+        DatabaseEntry keyDBE = new DatabaseEntry(personId);
+        DatabaseEntry valueDBE = new DatabaseEntry();
 
-                byte[] newdata = iter.nextEvent();
-                byte[] olddata = valueDBE.getData();
+        db.get(null, keyDBE, valueDBE, null);
 
-                if(olddata == null) {
-                    valueDBE.setData(newdata);
-                } else {
-                    byte[] outdata = Arrays.copyOf(olddata, olddata.length + newdata.length);
-                    System.arraycopy(newdata, 0, outdata, olddata.length, newdata.length);
-                    valueDBE.setData(outdata);
-                }
+        byte[] olddata = valueDBE.getData();
 
-                db.put(null, keyDBE, valueDBE);
-                iter.next();
-            }
-            iter.stop();
+        if(olddata == null) {
+            valueDBE.setData(newdata);
+        } else {
+            byte[] outdata = Arrays.copyOf(olddata, olddata.length + newdata.length);
+            System.arraycopy(newdata, 0, outdata, olddata.length, newdata.length);
+            valueDBE.setData(outdata);
+        }
+
+        db.put(null, keyDBE, valueDBE);
+    }
+
+    /**
+     * Clears and closes the database.
+     */
+    private void closeDB() {
+        // make absolutely sure that the memory allocated can be reused
+        try {
+            db.truncate(null, false);
+            db.close();
+            env.close();
+        } catch(DatabaseException e) {
+            e.printStackTrace();
+            throw new RuntimeException("BDB couldn't close.");
+        }
+    }
+
+    // ========================================================================
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IConcurrentPerformanceTest#setUp(int)
+     */
+    public void setUp(final int workerCount) {
+        buildDB(true/*concurrent*/);
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IConcurrentPerformanceTest#doRun(int, RecordIterator, RecordBatch)
+     */
+    public void doRun(final int worker, final RecordIterator iter, final RecordBatch batch) {
+        appendAll(iter);
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IConcurrentPerformanceTest#tearDown()
+     */
+    public void tearDown() {
+        closeDB();
+    }
+
+    // ========================================================================
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#openStore()
+     */
+    public void openStore() {
+        buildDB(false/*single thread*/);
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#append(byte[], byte[])
+     */
+    public void append(final byte[] personId, final byte[] event) {
+        try {
+            appendEvent(personId, event);
         } catch(DatabaseException e) {
             e.printStackTrace();
             throw new RuntimeException("BDB couldn't get/put.");
-        } finally {
-            // make absolutely sure that the memory allocated can be reused
-            try {
-                db.truncate(null, false);
-                db.close();
-                env.close();
-            } catch(DatabaseException e) {
-                e.printStackTrace();
-                throw new RuntimeException("BDB couldn't close.");
-            }
         }
     }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#get(byte[])
+     */
+    public byte[] get(final byte[] personId) {
+        try {
+            final DatabaseEntry valueDBE = new DatabaseEntry();
+            if(db.get(null, new DatabaseEntry(personId), valueDBE, null) != OperationStatus.SUCCESS)
+                return null;
+            /* else -- found */
+            return valueDBE.getData();
+        } catch(DatabaseException e) {
+            e.printStackTrace();
+            throw new RuntimeException("BDB couldn't get.");
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#overwrite(byte[], byte[])
+     */
+    public void overwrite(final byte[] personId, final byte[] event) {
+        try {
+            db.put(null, new DatabaseEntry(personId), new DatabaseEntry(event));
+        } catch(DatabaseException e) {
+            e.printStackTrace();
+            throw new RuntimeException("BDB couldn't put.");
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#delete(byte[])
+     */
+    public boolean delete(final byte[] personId) {
+        try {
+            return (db.delete(null, new DatabaseEntry(personId)) == OperationStatus.SUCCESS);
+        } catch(DatabaseException e) {
+            e.printStackTrace();
+            throw new RuntimeException("BDB couldn't delete.");
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#closeStore()
+     */
+    public void closeStore() {
+        closeDB();
+    }
 }
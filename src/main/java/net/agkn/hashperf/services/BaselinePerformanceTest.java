@@ -8,13 +8,18 @@
  ******************************************************************************/
 package net.agkn.hashperf.services;
 
-import net.agkn.hashperf.IPerformanceTest;
+import net.agkn.hashperf.IBatchPerformanceTest;
+import net.agkn.hashperf.IConcurrentPerformanceTest;
+import net.agkn.hashperf.IMixedWorkloadTest;
+import net.agkn.hashperf.util.RecordBatch;
 import net.agkn.hashperf.util.RecordIterator;
 
 /**
- * Tests the baseline performance of reading and packing records.
+ * Tests the baseline performance of reading and packing records. As a mixed
+ * workload it stores nothing, which measures the cost of choosing and timing
+ * the operations.
  */
-public class BaselinePerformanceTest implements IPerformanceTest{
+public class BaselinePerformanceTest implements IBatchPerformanceTest, IConcurrentPerformanceTest, IMixedWorkloadTest {
     /* (non-Javadoc)
      * @see net.agkn.hashperf.IPerformanceTest#doRun(RecordIterator)
      */
@@ -27,4 +32,79 @@ public class BaselinePerformanceTest implements IPerformanceTest{
         }
         iter.stop();
     }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IBatchPerformanceTest#doRun(RecordIterator, RecordBatch)
+     */
+    public void doRun(final RecordIterator iter, final RecordBatch batch) {
+        iter.start();
+        while(iter.nextBatch(batch) > 0)
+            /* only read the records */;
+        iter.stop();
+    }
+
+    // ========================================================================
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IConcurrentPerformanceTest#setUp(int)
+     */
+    public void setUp(final int workerCount) {
+        /* nothing to build */
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IConcurrentPerformanceTest#doRun(int, RecordIterator, RecordBatch)
+     */
+    public void doRun(final int worker, final RecordIterator iter, final RecordBatch batch) {
+        doRun(iter, batch);
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IConcurrentPerformanceTest#tearDown()
+     */
+    public void tearDown() {
+        /* nothing to release */
+    }
+
+    // ========================================================================
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#openStore()
+     */
+    public void openStore() {
+        /* nothing to build */
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#append(byte[], byte[])
+     */
+    public void append(final byte[] personId, final byte[] event) {
+        /* nothing is stored */
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#get(byte[])
+     */
+    public byte[] get(final byte[] personId) {
+        return null/*nothing is stored*/;
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#overwrite(byte[], byte[])
+     */
+    public void overwrite(final byte[] personId, final byte[] event) {
+        /* nothing is stored */
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#delete(byte[])
+     */
+    public boolean delete(final byte[] personId) {
+        return false/*nothing is stored*/;
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#closeStore()
+     */
+    public void closeStore() {
+        /* nothing to release */
+    }
 }
@@ -0,0 +1,49 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.services;
+
+import net.agkn.hashperf.ConcurrentPerformanceTestHarness;
+import net.agkn.hashperf.IConcurrentPerformanceTest;
+import net.agkn.hashperf.PerformanceTestHarness;
+
+/**
+ * Runs the full suite of performance tests with concurrent writers, sweeping
+ * the number of workers (see <code>-Dhashperf.workers</code>).
+ */
+public class ConcurrentPerformanceTestSuite {
+    static public void main(String[] args) {
+        final IConcurrentPerformanceTest[] tests = new IConcurrentPerformanceTest[] {
+                new BaselinePerformanceTest(),
+                new BDBPerformanceTest(),
+                new KyotoCabinetPerformanceTest(),
+                new RedisPerformanceTest()
+        };
+
+        final String testFilePath = args[0];
+        final String statsOutfilePrefix = args[1];
+        final int warmupRuns = Integer.valueOf(args[2]);
+        final int observationRuns = Integer.valueOf(args[3]);
+        final int pollingInterval = Integer.valueOf(args[4]);
+        final PerformanceTestHarness.Options options = PerformanceTestHarness.Options.fromSystemProperties();
+
+        for(final IConcurrentPerformanceTest test : tests) {
+            System.err.println("Running test " + test.toString());
+            final ConcurrentPerformanceTestHarness harness = new ConcurrentPerformanceTestHarness(
+                    test,
+                    testFilePath,
+                    statsOutfilePrefix + test.getClass().getSimpleName().toString() + "_scaling.csv",
+                    warmupRuns,
+                    observationRuns,
+                    pollingInterval,
+                    options
+            );
+            harness.run();
+        }
+    }
+}
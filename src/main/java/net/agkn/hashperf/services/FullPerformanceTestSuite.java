@@ -20,7 +20,9 @@ public class FullPerformanceTestSuite {
                 new BaselinePerformanceTest(),
                 new BDBPerformanceTest(),
                 new KyotoCabinetPerformanceTest(),
-                new RedisPerformanceTest()
+                new RedisPerformanceTest(),
+                new SlabAppendStorePerformanceTest(),
+                new MappedHashTablePerformanceTest()
         };
 
         final String testFilePath = args[0];
@@ -28,6 +30,7 @@ public class FullPerformanceTestSuite {
         final int warmupRuns = Integer.valueOf(args[2]);
         final int observationRuns = Integer.valueOf(args[3]);
         final int pollingInterval = Integer.valueOf(args[4]);
+        final PerformanceTestHarness.Options options = PerformanceTestHarness.Options.fromSystemProperties();
 
         for(final IPerformanceTest test : tests) {
             System.err.println("Running test " + test.toString());
@@ -37,7 +40,8 @@ public class FullPerformanceTestSuite {
                     statsOutfilePrefix + test.getClass().getSimpleName().toString() + ".csv",
                     warmupRuns,
                     observationRuns,
-                    pollingInterval
+                    pollingInterval,
+                    options
             );
             harness.run();
         }
@@ -9,13 +9,21 @@
 package net.agkn.hashperf.services;
 
 import kyotocabinet.DB;
+import net.agkn.hashperf.IConcurrentPerformanceTest;
+import net.agkn.hashperf.IMixedWorkloadTest;
 import net.agkn.hashperf.IPerformanceTest;
+import net.agkn.hashperf.util.RecordBatch;
 import net.agkn.hashperf.util.RecordIterator;
 
 /**
- * Tests the performance of Kyoto Cabinet.
+ * Tests the performance of Kyoto Cabinet. When run concurrently the workers
+ * share a single database, which Kyoto Cabinet makes thread-safe.
  */
-public class KyotoCabinetPerformanceTest implements IPerformanceTest {
+public class KyotoCabinetPerformanceTest implements IPerformanceTest, IConcurrentPerformanceTest, IMixedWorkloadTest {
+    // the database shared by the workers (only when run concurrently)
+    private DB sharedDB;
+    // the database of a mixed workload (only when its store is open)
+    private DB mixedDB;
 
     /**
      * Builds an in-memory hash database.
@@ -33,14 +41,86 @@ public class KyotoCabinetPerformanceTest implements IPerformanceTest {
      */
     public void doRun(final RecordIterator iter) {
         final DB db = buildDB();
+        appendAll(db, iter);
+        db.close();
+    }
 
+    /**
+     * Appends every record of the iterator to the database.
+     */
+    private static void appendAll(final DB db, final RecordIterator iter) {
         iter.start();
         while(iter.hasNext()) {
             db.append(iter.nextPersonId(), iter.nextEvent());
             iter.next();
         }
         iter.stop();
+    }
 
-        db.close();
+    // ========================================================================
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IConcurrentPerformanceTest#setUp(int)
+     */
+    public void setUp(final int workerCount) {
+        sharedDB = buildDB();
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IConcurrentPerformanceTest#doRun(int, RecordIterator, RecordBatch)
+     */
+    public void doRun(final int worker, final RecordIterator iter, final RecordBatch batch) {
+        appendAll(sharedDB, iter);
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IConcurrentPerformanceTest#tearDown()
+     */
+    public void tearDown() {
+        sharedDB.close();
+        sharedDB = null;
+    }
+
+    // ========================================================================
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#openStore()
+     */
+    public void openStore() {
+        mixedDB = buildDB();
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#append(byte[], byte[])
+     */
+    public void append(final byte[] personId, final byte[] event) {
+        mixedDB.append(personId, event);
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#get(byte[])
+     */
+    public byte[] get(final byte[] personId) {
+        return mixedDB.get(personId);
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#overwrite(byte[], byte[])
+     */
+    public void overwrite(final byte[] personId, final byte[] event) {
+        mixedDB.set(personId, event);
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#delete(byte[])
+     */
+    public boolean delete(final byte[] personId) {
+        return mixedDB.remove(personId)/*false if there was no record*/;
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#closeStore()
+     */
+    public void closeStore() {
+        mixedDB.close();
+        mixedDB = null;
     }
 }
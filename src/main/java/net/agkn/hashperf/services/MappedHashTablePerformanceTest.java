@@ -0,0 +1,125 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.services;
+
+import net.agkn.hashperf.IBatchPerformanceTest;
+import net.agkn.hashperf.IFootprintPerformanceTest;
+import net.agkn.hashperf.IRestartPerformanceTest;
+import net.agkn.hashperf.util.ByteUtil;
+import net.agkn.hashperf.util.MappedHashTable;
+import net.agkn.hashperf.util.RecordBatch;
+import net.agkn.hashperf.util.RecordIterator;
+
+/**
+ * Tests the performance of a pure-Java persistent hash table over a
+ * memory-mapped file (see {@link MappedHashTable}), the counterpart to
+ * {@link BDBPerformanceTest}'s Hash database.
+ *
+ * The table is built in <code>-Dhashperf.mappedFile</code> (default
+ * <code>/tmp/mapped_performance_test.db</code>) with buckets sized for
+ * <code>-Dhashperf.expectedElements</code> keys (default 78 million, as for
+ * BDB). Only the appends are timed. After each run the table is closed (which
+ * writes it to disk) and reopened, and the time taken by each is reported
+ * with the bytes of the file in use before it is deleted.
+ */
+public class MappedHashTablePerformanceTest implements IBatchPerformanceTest, IFootprintPerformanceTest, IRestartPerformanceTest {
+    // the bytes of the table's file in use and the time taken to close and
+    // reopen it at the end of the last run
+    private long footprintBytes;
+    private long closeMillis;
+    private long reopenMillis;
+
+    /**
+     * @return the path of the table's file
+     */
+    private static String getPath() {
+        return System.getProperty("hashperf.mappedFile", "/tmp/mapped_performance_test.db");
+    }
+
+    /**
+     * Builds an empty table.
+     */
+    private static MappedHashTable buildTable() {
+        return MappedHashTable.create(getPath(), Long.getLong("hashperf.expectedElements", 78000000L));
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IPerformanceTest#doRun(RecordIterator)
+     */
+    public void doRun(final RecordIterator iter) {
+        final MappedHashTable table = buildTable();
+        iter.start();
+        while(iter.hasNext()) {
+            table.append(ByteUtil.bytesToLong(iter.nextPersonId(), 0), iter.nextEvent(), 0);
+            iter.next();
+        }
+        iter.stop();
+        restart(table);
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IBatchPerformanceTest#doRun(RecordIterator, RecordBatch)
+     */
+    public void doRun(final RecordIterator iter, final RecordBatch batch) {
+        final MappedHashTable table = buildTable();
+        iter.start();
+        while(iter.nextBatch(batch) > 0) {
+            for(int i=0; i<batch.size; i++)
+                table.append(ByteUtil.bytesToLong(batch.personIds, RecordBatch.personIdOffset(i)), batch.events, RecordBatch.eventOffset(i));
+        }
+        iter.stop();
+        restart(table);
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IFootprintPerformanceTest#getFootprintBytes()
+     */
+    public long getFootprintBytes() {
+        return footprintBytes;
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IRestartPerformanceTest#getCloseMillis()
+     */
+    public long getCloseMillis() {
+        return closeMillis;
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IRestartPerformanceTest#getReopenMillis()
+     */
+    public long getReopenMillis() {
+        return reopenMillis;
+    }
+
+    /**
+     * Closes and reopens the table, recording the time taken by each, and
+     * then deletes it.
+     */
+    private void restart(final MappedHashTable table) {
+        System.err.println(table);
+        footprintBytes = table.getUsedBytes();
+
+        long start = System.nanoTime();
+        table.close();
+        closeMillis = (System.nanoTime() - start) / 1000000L;
+
+        start = System.nanoTime();
+        final MappedHashTable reopened = MappedHashTable.open(getPath());
+        reopenMillis = (System.nanoTime() - start) / 1000000L;
+        try {
+            if((reopened.getKeyCount() != table.getKeyCount()) || (reopened.getEventCount() != table.getEventCount()))
+                throw new RuntimeException("Reopened table has " + reopened.getKeyCount() + " keys and " + reopened.getEventCount() + " events rather than " + table.getKeyCount() + " and " + table.getEventCount() + ".");
+            /* else -- the table survived the restart */
+        } finally {
+            reopened.delete();
+        }
+        System.err.println("close (sync to disk) " + closeMillis + " ms, reopen " + reopenMillis + " ms");
+    }
+}
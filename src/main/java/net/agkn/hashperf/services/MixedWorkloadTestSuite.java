@@ -0,0 +1,52 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.services;
+
+import net.agkn.hashperf.IMixedWorkloadTest;
+import net.agkn.hashperf.MixedWorkloadHarness;
+import net.agkn.hashperf.PerformanceTestHarness;
+import net.agkn.hashperf.util.MixedWorkload;
+
+/**
+ * Runs the full suite of performance tests with a mix of gets, appends,
+ * overwrites and deletes (see <code>-Dhashperf.mix</code>).
+ */
+public class MixedWorkloadTestSuite {
+    static public void main(String[] args) {
+        final IMixedWorkloadTest[] tests = new IMixedWorkloadTest[] {
+                new BaselinePerformanceTest(),
+                new BDBPerformanceTest(),
+                new KyotoCabinetPerformanceTest(),
+                new RedisPerformanceTest()
+        };
+
+        final String testFilePath = args[0];
+        final String statsOutfilePrefix = args[1];
+        final int warmupRuns = Integer.valueOf(args[2]);
+        final int observationRuns = Integer.valueOf(args[3]);
+        final int pollingInterval = Integer.valueOf(args[4]);
+        final PerformanceTestHarness.Options options = PerformanceTestHarness.Options.fromSystemProperties();
+        final MixedWorkload workload = new MixedWorkload(MixedWorkload.Spec.fromSystemProperties());
+
+        for(final IMixedWorkloadTest test : tests) {
+            System.err.println("Running test " + test.toString());
+            final MixedWorkloadHarness harness = new MixedWorkloadHarness(
+                    test,
+                    testFilePath,
+                    statsOutfilePrefix + test.getClass().getSimpleName().toString() + "_mixed.csv",
+                    warmupRuns,
+                    observationRuns,
+                    pollingInterval,
+                    workload,
+                    options
+            );
+            harness.run();
+        }
+    }
+}
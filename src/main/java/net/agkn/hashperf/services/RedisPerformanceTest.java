@@ -11,43 +11,70 @@ package net.agkn.hashperf.services;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.exceptions.JedisConnectionException;
-import net.agkn.hashperf.IPerformanceTest;
+import net.agkn.hashperf.IBatchPerformanceTest;
+import net.agkn.hashperf.IConcurrentPerformanceTest;
+import net.agkn.hashperf.IMixedWorkloadTest;
+import net.agkn.hashperf.util.RecordBatch;
+import net.agkn.hashperf.util.RecordFile;
 import net.agkn.hashperf.util.RecordIterator;
 
 /**
- * Tests Redis performance <em>with</em> pipelining every {@link RedisPerformanceTest#PIPELINE_SYNC_INTERVAL}
- * records.
+ * Tests Redis performance <em>with</em> pipelining: each batch of records is
+ * sent as one pipeline that is synced before the next batch is read.
+ *
+ * When run concurrently each worker has its own connection. A mixed workload
+ * issues one command at a time (and so is not pipelined) since each operation
+ * is timed on its own.
  *
  * NOTE:  Expects a redis-server instance to be running on localhost at the default port.
  */
-public class RedisPerformanceTest implements IPerformanceTest {
-    private static int PIPELINE_SYNC_INTERVAL = 10000;
+public class RedisPerformanceTest implements IBatchPerformanceTest, IConcurrentPerformanceTest, IMixedWorkloadTest {
+    // the connection of a mixed workload (only when its store is open)
+    private Jedis mixedConnection;
 
     /* (non-Javadoc)
      * @see net.agkn.hashperf.IPerformanceTest#doRun(RecordIterator)
      */
     public void doRun(final RecordIterator iter) {
+        doRun(iter, new RecordBatch(RecordBatch.DEFAULT_CAPACITY));
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IBatchPerformanceTest#doRun(RecordIterator, RecordBatch)
+     */
+    public void doRun(final RecordIterator iter, final RecordBatch batch) {
         final Jedis j = new Jedis("localhost");
+        appendAll(j, iter, batch);
+        flush(j);
+        j.disconnect();
+    }
 
-        Pipeline p = j.pipelined();
+    /**
+     * Appends every record of the iterator, one pipeline per batch.
+     */
+    private static void appendAll(final Jedis j, final RecordIterator iter, final RecordBatch batch) {
+        // each command is written to the connection's buffer as it is issued
+        // so these can be reused for every record
+        final byte[] personId = new byte[RecordFile.PERSON_ID_SIZE];
+        final byte[] event = new byte[RecordFile.EVENT_SIZE];
 
         iter.start();
-        while(iter.hasNext()) {
-            p.append(iter.nextPersonId(), iter.nextEvent());
-            iter.next();
-            
-            // sync and regenerate the pipeline
-            if(iter.getCount() % PIPELINE_SYNC_INTERVAL == 0) {
-                p.sync();
-                p = j.pipelined();
+        while(iter.nextBatch(batch) > 0) {
+            final Pipeline p = j.pipelined();
+            for(int i=0; i<batch.size; i++) {
+                batch.getPersonId(i, personId);
+                batch.getEvent(i, event);
+                p.append(personId, event);
             }
+            p.sync();
         }
-
-        // issue final pipeline sync
-        p.sync();
         iter.stop();
+    }
 
-        // clean up after the test is run
+    /**
+     * Clears the database once the test is run.
+     */
+    private static void flush(final Jedis j) {
         try {
             j.flushDB();
         } catch(JedisConnectionException e) {
@@ -64,6 +91,76 @@ public class RedisPerformanceTest implements IPerformanceTest {
                 System.err.println("Not responding yet.");
             }
         }
+    }
+
+    // ========================================================================
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IConcurrentPerformanceTest#setUp(int)
+     */
+    public void setUp(final int workerCount) {
+        /* the server is already running */
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IConcurrentPerformanceTest#doRun(int, RecordIterator, RecordBatch)
+     */
+    public void doRun(final int worker, final RecordIterator iter, final RecordBatch batch) {
+        final Jedis j = new Jedis("localhost");
+        appendAll(j, iter, batch);
+        j.disconnect();
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IConcurrentPerformanceTest#tearDown()
+     */
+    public void tearDown() {
+        final Jedis j = new Jedis("localhost");
+        flush(j);
         j.disconnect();
     }
+
+    // ========================================================================
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#openStore()
+     */
+    public void openStore() {
+        mixedConnection = new Jedis("localhost");
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#append(byte[], byte[])
+     */
+    public void append(final byte[] personId, final byte[] event) {
+        mixedConnection.append(personId, event);
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#get(byte[])
+     */
+    public byte[] get(final byte[] personId) {
+        return mixedConnection.get(personId);
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#overwrite(byte[], byte[])
+     */
+    public void overwrite(final byte[] personId, final byte[] event) {
+        mixedConnection.set(personId, event);
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#delete(byte[])
+     */
+    public boolean delete(final byte[] personId) {
+        return (mixedConnection.del(personId) > 0L);
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IMixedWorkloadTest#closeStore()
+     */
+    public void closeStore() {
+        flush(mixedConnection);
+        mixedConnection.disconnect();
+        mixedConnection = null;
+    }
 }
@@ -0,0 +1,82 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.services;
+
+import net.agkn.hashperf.IBatchPerformanceTest;
+import net.agkn.hashperf.IFootprintPerformanceTest;
+import net.agkn.hashperf.util.ByteUtil;
+import net.agkn.hashperf.util.RecordBatch;
+import net.agkn.hashperf.util.RecordIterator;
+import net.agkn.hashperf.util.SlabAppendStore;
+
+/**
+ * Tests the performance of an in-process, off-heap append store (see
+ * {@link SlabAppendStore}).
+ *
+ * The index is sized for <code>-Dhashperf.expectedElements</code> keys (it
+ * grows from a million otherwise) and each chunk holds
+ * <code>-Dhashperf.slabChunkEvents</code> events (default 8). The footprint of
+ * the store is logged at the end of each run and its direct memory is written
+ * to the results (see {@link IFootprintPerformanceTest}); with
+ * <code>hashperf.memory</code> it is also seen in the direct buffer pool.
+ */
+public class SlabAppendStorePerformanceTest implements IBatchPerformanceTest, IFootprintPerformanceTest {
+    // the direct memory held by the store at the end of the last run
+    private long footprintBytes;
+
+    /**
+     * Builds an empty store.
+     */
+    private static SlabAppendStore buildStore() {
+        return new SlabAppendStore(Long.getLong("hashperf.expectedElements", 1000000L), Integer.getInteger("hashperf.slabChunkEvents", 8));
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IPerformanceTest#doRun(RecordIterator)
+     */
+    public void doRun(final RecordIterator iter) {
+        final SlabAppendStore store = buildStore();
+        iter.start();
+        while(iter.hasNext()) {
+            store.append(ByteUtil.bytesToLong(iter.nextPersonId(), 0), iter.nextEvent(), 0);
+            iter.next();
+        }
+        iter.stop();
+        endRun(store);
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IBatchPerformanceTest#doRun(RecordIterator, RecordBatch)
+     */
+    public void doRun(final RecordIterator iter, final RecordBatch batch) {
+        final SlabAppendStore store = buildStore();
+        iter.start();
+        while(iter.nextBatch(batch) > 0) {
+            for(int i=0; i<batch.size; i++)
+                store.append(ByteUtil.bytesToLong(batch.personIds, RecordBatch.personIdOffset(i)), batch.events, RecordBatch.eventOffset(i));
+        }
+        iter.stop();
+        endRun(store);
+    }
+
+    /**
+     * Logs the footprint of the store and keeps it for the results.
+     */
+    private void endRun(final SlabAppendStore store) {
+        System.err.println(store);
+        footprintBytes = store.getAllocatedBytes();
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.IFootprintPerformanceTest#getFootprintBytes()
+     */
+    public long getFootprintBytes() {
+        return footprintBytes;
+    }
+}
@@ -0,0 +1,336 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.management.ObjectName;
+
+/**
+ * Exposes the progress of the current run as a JMX MBean (named
+ * {@link #OBJECT_NAME}) so that long runs can be watched in JConsole or
+ * VisualVM, and optionally logs it to standard error periodically.
+ *
+ * The monitor is fed the polls of each {@link RecordIterator} of a run (see
+ * {@link #newSink(int)}) on the iterators' background threads, so it costs the
+ * iterating threads nothing. Memory is sampled when it is read.
+ */
+public class BenchmarkMonitor implements BenchmarkMonitorMBean {
+    public static final String OBJECT_NAME = "net.agkn.hashperf:type=BenchmarkMonitor";
+
+    // the least time over which the instantaneous throughput is measured
+    private static final long THROUGHPUT_WINDOW_MILLIS = 1000L;
+    // the time constant of the moving average
+    private static final double MOVING_AVERAGE_MILLIS = 30000.0;
+    // the longest that a memory sample is reused
+    private static final long MEMORY_SAMPLE_MILLIS = 500L;
+
+    // the registered monitor (if any)
+    private static BenchmarkMonitor instance;
+
+    // ************************************************************************
+    private final MemoryProbe memoryProbe;
+    private Timer logTimer;
+
+    // the run
+    private String testName;
+    private String phase;
+    private int runNumber;
+    private long runStart;
+
+    // the records processed as of the last poll of each iterator
+    private long records;
+
+    // the current throughput window
+    private long windowStart;
+    private long windowRecords;
+    private double instantaneousThroughput;
+    private double movingAverageThroughput;
+    private boolean hasMovingAverage;
+
+    // the most recent poll with latencies and the GC time
+    private final long[] latency;
+    private long gcTime;
+
+    // the most recent memory sample
+    private MemoryProbe.Sample memory;
+    private long memoryTime;
+
+    public BenchmarkMonitor() {
+        memoryProbe = new MemoryProbe();
+        latency = new long[LatencyHistogram.SNAPSHOT_FIELDS.length];
+    }
+
+    // ========================================================================
+    /**
+     * Registers a monitor with the platform MBean server, once per JVM.
+     *
+     * @param logIntervalSeconds the seconds between log lines or zero for none
+     * @return the registered monitor
+     */
+    public static synchronized BenchmarkMonitor register(final int logIntervalSeconds) {
+        if(instance == null) {
+            final BenchmarkMonitor monitor = new BenchmarkMonitor();
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(monitor, new ObjectName(OBJECT_NAME));
+            } catch(Exception e) {
+                e.printStackTrace();
+                throw new RuntimeException("Couldn't register " + OBJECT_NAME);
+            }
+            instance = monitor;
+        } /* else -- already registered */
+        if(logIntervalSeconds > 0)
+            instance.startLog(logIntervalSeconds);
+        /* else -- no log */
+        return instance;
+    }
+
+    /**
+     * Logs the progress to standard error every interval (unless it already
+     * is).
+     */
+    private synchronized void startLog(final int logIntervalSeconds) {
+        if(logTimer != null) return;
+        logTimer = new Timer("benchmark-monitor-log", true/*daemon*/);
+        logTimer.schedule(new TimerTask() {
+            public void run() {
+                final String line = logLine();
+                if(line != null) System.err.println(line);
+                /* else -- between runs */
+            }
+        }, logIntervalSeconds * 1000L, logIntervalSeconds * 1000L);
+    }
+
+    // ========================================================================
+    /**
+     * Starts a run. Its iterators report through {@link #newSink(int)}.
+     *
+     * @param testName the name of the test
+     * @param phase <code>warmup</code> or <code>obs</code>
+     * @param runNumber the index of the run within its phase
+     */
+    public synchronized void beginRun(final String testName, final String phase, final int runNumber) {
+        this.testName = testName;
+        this.phase = phase;
+        this.runNumber = runNumber;
+        runStart = System.currentTimeMillis();
+        records = 0L;
+        windowStart = runStart;
+        windowRecords = 0L;
+        instantaneousThroughput = 0.0;
+        movingAverageThroughput = 0.0;
+        hasMovingAverage = false;
+        for(int i=0; i<latency.length; i++)
+            latency[i] = -1L;
+        gcTime = 0L;
+    }
+
+    /**
+     * Ends the run.
+     */
+    public synchronized void endRun() {
+        testName = null;
+    }
+
+    /**
+     * @param pollingInterval the number of records between the polls of the
+     *        iterator
+     * @return the sink for the polls of an iterator of the current run (see
+     *         {@link RecordIterator#streamPolls(TimeSeriesRecorder.ISink)})
+     */
+    public TimeSeriesRecorder.ISink newSink(final int pollingInterval) {
+        return new TimeSeriesRecorder.ISink() {
+            public void write(final long index, final long[] poll) {
+                onPoll(pollingInterval, poll);
+            }
+
+            public void flush() {
+                /* nothing is buffered */
+            }
+        };
+    }
+
+    /**
+     * Counts a poll of one of the run's iterators.
+     */
+    private synchronized void onPoll(final int pollingInterval, final long[] poll) {
+        records += pollingInterval;
+        gcTime = Math.max(gcTime, poll[RecordIterator.POLL_GC_TIME]);
+        if(poll[RecordIterator.POLL_LATENCY/*count*/] > 0L)
+            System.arraycopy(poll, RecordIterator.POLL_LATENCY, latency, 0, latency.length);
+        /* else -- not tracked or nothing in the interval */
+
+        final long now = System.currentTimeMillis();
+        final long windowMillis = now - windowStart;
+        if(windowMillis >= THROUGHPUT_WINDOW_MILLIS) {
+            instantaneousThroughput = 1000.0 * (records - windowRecords) / windowMillis;
+            if(hasMovingAverage) {
+                final double weight = 1.0 - Math.exp(-windowMillis / MOVING_AVERAGE_MILLIS);
+                movingAverageThroughput += weight * (instantaneousThroughput - movingAverageThroughput);
+            } else {
+                movingAverageThroughput = instantaneousThroughput;
+                hasMovingAverage = true;
+            }
+            windowStart = now;
+            windowRecords = records;
+        } /* else -- the window isn't over */
+    }
+
+    /**
+     * @return the progress or <code>null</code> if no run is in progress
+     */
+    private synchronized String logLine() {
+        if(testName == null) return null;
+        final MemoryProbe.Sample sample = sampleMemory();
+        return testName + " " + phase + " " + runNumber + ": " + records + " records in " + (int)getElapsedSeconds() + "s, " +
+               (long)getInstantaneousThroughput() + " records/s (average " + (long)movingAverageThroughput + "), " +
+               "p99 " + latency[4] + " ns, gc " + gcTime + " ms, live heap " + sample.getLiveHeap() + ", rss " + sample.getRss();
+    }
+
+    // ========================================================================
+    // MBean attributes
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.BenchmarkMonitorMBean#getTestName()
+     */
+    public synchronized String getTestName() {
+        return testName;
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.BenchmarkMonitorMBean#getPhase()
+     */
+    public synchronized String getPhase() {
+        return phase;
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.BenchmarkMonitorMBean#getRunNumber()
+     */
+    public synchronized int getRunNumber() {
+        return runNumber;
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.BenchmarkMonitorMBean#getElapsedSeconds()
+     */
+    public synchronized double getElapsedSeconds() {
+        return (System.currentTimeMillis() - runStart) / 1000.0;
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.BenchmarkMonitorMBean#getRecordsProcessed()
+     */
+    public synchronized long getRecordsProcessed() {
+        return records;
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.BenchmarkMonitorMBean#getInstantaneousThroughput()
+     */
+    public synchronized double getInstantaneousThroughput() {
+        // a stalled run has no polls to close the window
+        final long windowMillis = System.currentTimeMillis() - windowStart;
+        if(windowMillis >= 2 * THROUGHPUT_WINDOW_MILLIS)
+            return 1000.0 * (records - windowRecords) / windowMillis;
+        return instantaneousThroughput;
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.BenchmarkMonitorMBean#getMovingAverageThroughput()
+     */
+    public synchronized double getMovingAverageThroughput() {
+        return movingAverageThroughput;
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.BenchmarkMonitorMBean#getRunThroughput()
+     */
+    public synchronized double getRunThroughput() {
+        final long elapsedMillis = System.currentTimeMillis() - runStart;
+        return (elapsedMillis == 0L) ? 0.0 : (1000.0 * records / elapsedMillis);
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.BenchmarkMonitorMBean#getLatencyP50Nanos()
+     */
+    public synchronized long getLatencyP50Nanos() {
+        return latency[2];
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.BenchmarkMonitorMBean#getLatencyP99Nanos()
+     */
+    public synchronized long getLatencyP99Nanos() {
+        return latency[4];
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.BenchmarkMonitorMBean#getLatencyP999Nanos()
+     */
+    public synchronized long getLatencyP999Nanos() {
+        return latency[5];
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.BenchmarkMonitorMBean#getLatencyMaxNanos()
+     */
+    public synchronized long getLatencyMaxNanos() {
+        return latency[6];
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.BenchmarkMonitorMBean#getGcTimeMillis()
+     */
+    public synchronized long getGcTimeMillis() {
+        return gcTime;
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.BenchmarkMonitorMBean#getLiveHeapBytes()
+     */
+    public synchronized long getLiveHeapBytes() {
+        return sampleMemory().getLiveHeap();
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.BenchmarkMonitorMBean#getUsedHeapBytes()
+     */
+    public synchronized long getUsedHeapBytes() {
+        return sampleMemory().getUsedHeap();
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.BenchmarkMonitorMBean#getDirectBytes()
+     */
+    public synchronized long getDirectBytes() {
+        return sampleMemory().getDirect();
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.BenchmarkMonitorMBean#getRssBytes()
+     */
+    public synchronized long getRssBytes() {
+        return sampleMemory().getRss();
+    }
+
+    /**
+     * @return a recent memory sample. The attributes are usually read
+     *         together so a sample is reused briefly.
+     */
+    private MemoryProbe.Sample sampleMemory() {
+        final long now = System.currentTimeMillis();
+        if((memory == null) || (now - memoryTime > MEMORY_SAMPLE_MILLIS)) {
+            memory = memoryProbe.sample();
+            memoryTime = now;
+        } /* else -- recent enough */
+        return memory;
+    }
+}
@@ -0,0 +1,92 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+/**
+ * The JMX attributes of the {@link BenchmarkMonitor}.
+ */
+public interface BenchmarkMonitorMBean {
+    /**
+     * @return the name of the test being run or <code>null</code> if none
+     */
+    String getTestName();
+
+    /**
+     * @return <code>warmup</code> or <code>obs</code>
+     */
+    String getPhase();
+
+    /**
+     * @return the index of the run within its phase
+     */
+    int getRunNumber();
+
+    /**
+     * @return the seconds since the run started
+     */
+    double getElapsedSeconds();
+
+    /**
+     * @return the number of records processed in the run (as of the last poll)
+     */
+    long getRecordsProcessed();
+
+    /**
+     * @return the records per second over the last few seconds
+     */
+    double getInstantaneousThroughput();
+
+    /**
+     * @return the exponentially weighted moving average of the records per
+     *         second
+     */
+    double getMovingAverageThroughput();
+
+    /**
+     * @return the records per second since the run started
+     */
+    double getRunThroughput();
+
+    /**
+     * @return the median latency (in nanoseconds) in the last polling
+     *         interval or <code>-1</code> if latency isn't tracked
+     */
+    long getLatencyP50Nanos();
+
+    long getLatencyP99Nanos();
+
+    long getLatencyP999Nanos();
+
+    long getLatencyMaxNanos();
+
+    /**
+     * @return the milliseconds spent collecting since the run started
+     */
+    long getGcTimeMillis();
+
+    /**
+     * @return the heap in use just after the last collection
+     */
+    long getLiveHeapBytes();
+
+    /**
+     * @return the heap in use, including garbage
+     */
+    long getUsedHeapBytes();
+
+    /**
+     * @return the memory used by direct buffers or <code>-1</code>
+     */
+    long getDirectBytes();
+
+    /**
+     * @return the resident set size of the process or <code>-1</code>
+     */
+    long getRssBytes();
+}
@@ -0,0 +1,65 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Serves fixed-width records (see {@link RecordFile}) straight out of a
+ * sequence of {@link ByteBuffer}s (typically memory-mapped regions of a record
+ * file). No parsing or allocation is done per record.
+ */
+public class BufferRecordSource implements IRecordSource {
+    // the regions to read from, in order. Each holds a whole number of records.
+    private final ByteBuffer[] regions;
+
+    // the index of the region currently being read
+    private int regionIndex;
+
+    /**
+     * @param regions the buffers to read records from, in order. Each must
+     *        contain a whole number of records between its position and limit.
+     *        The buffers' positions are advanced as records are read.
+     */
+    public BufferRecordSource(final ByteBuffer[] regions) {
+        this.regions = regions;
+        regionIndex = 0;
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.IRecordSource#read(byte[], int, byte[], int)
+     */
+    public boolean read(final byte[] personId, final int personIdOffset, final byte[] event, final int eventOffset) {
+        while((regionIndex < regions.length) && !regions[regionIndex].hasRemaining())
+            regionIndex++;
+        if(regionIndex >= regions.length) return false;
+
+        final ByteBuffer region = regions[regionIndex];
+        region.get(personId, personIdOffset, RecordFile.PERSON_ID_SIZE);
+        region.get(event, eventOffset, RecordFile.EVENT_SIZE);
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.IRecordSource#close()
+     */
+    public void close() {
+        /* mapped regions are released when they are collected */
+    }
+
+    /**
+     * Computes the number of records remaining in this source.
+     */
+    public long getRemainingCount() {
+        long remaining = 0L;
+        for(int i=regionIndex; i<regions.length; i++)
+            remaining += regions[i].remaining();
+        return remaining / RecordFile.RECORD_SIZE;
+    }
+}
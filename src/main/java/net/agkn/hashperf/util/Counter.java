@@ -1,29 +1,73 @@
 package net.agkn.hashperf.util;
 
 import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import it.unimi.dsi.fastutil.longs.LongOpenHashBigSet;
 
+/**
+ * Counts the unique ids (one per line) in a file, recording the unique count
+ * every {@link #interval} ids.
+ *
+ * Usage: <code>Counter /path/to/ids.csv /path/to/output.csv [threads | hll[:log2m]]</code>.
+ * With more than one thread the file is parsed in parallel and the ids are
+ * routed by hash to per-thread sets (see {@link #countParallel(int)}). With
+ * <code>hll</code> the counts are estimated with a {@link HyperLogLog} sketch
+ * in kilobytes of memory (see {@link #countApproximate(int)}); the sketch is
+ * written next to the output as <code>output.csv.hll</code>.
+ *
+ * Sketches of separate files or shards can be merged with:
+ * <code>Counter merge /path/to/merged.hll /path/to/a.hll /path/to/b.hll ...</code>
+ */
 public class Counter {
+    // the expected number of unique ids across all sets
+    private static final long EXPECTED_UNIQUES = 1610612736L;
+
+    // the number of ids handed between threads at a time
+    private static final int BATCH_SIZE = 8192;
+    // the number of batches each shard may have in flight
+    private static final int BATCHES_IN_FLIGHT = 8;
+    // the number of batches each parser may have in flight (a few ranges'
+    // worth, so that every parser can work ahead of the dispatcher)
+    private static final int PARSER_BATCHES_IN_FLIGHT = 16;
+    // the number of bytes of the file in each range dealt out to the parsers
+    private static final long RANGE_SIZE = 256L * 1024L;
+
+    // the least time between progress reports
+    private static final long PROGRESS_INTERVAL_MILLIS = 1000L;
+
+    // the default precision of the approximate mode (16K registers, ~0.8% error)
+    private static final int DEFAULT_LOG2M = 14;
+
+    // the number of standard errors either side of an estimate that are
+    // reported as its bounds (~95%)
+    private static final double BOUND_STANDARD_ERRORS = 2.0;
+
+    // ************************************************************************
     final private String filePath;
     final private long interval;
     final private List<Long> uniques;
-    final private LongOpenHashBigSet set;
+
+    // the sketch (only when counting approximately)
+    private HyperLogLog sketch;
 
     public Counter(final String filePath) {
         this.filePath = filePath;
         this.interval = 10000000L;
         this.uniques = new ArrayList<Long>(1000);
-        this.set = new LongOpenHashBigSet(1610612736, (float)0.75);
     }
 
     public void count() {
+        final LongOpenHashBigSet set = new LongOpenHashBigSet(EXPECTED_UNIQUES, (float)0.75);
+
         final BufferedReader reader;
         try {
             reader = new BufferedReader(new FileReader(filePath), 8192 * 16 * 16 * 16/*32M, empirically 'fast enough'*/);
@@ -53,29 +97,345 @@ public class Counter {
         }
     }
 
+    // ========================================================================
+    /**
+     * Estimates the counts with a {@link HyperLogLog} sketch rather than
+     * holding every id.
+     *
+     * @param log2m the precision of the sketch
+     */
+    public void countApproximate(final int log2m) {
+        sketch = new HyperLogLog(log2m);
+
+        final NumericCsvReader reader;
+        try {
+            reader = new NumericCsvReader(new FileInputStream(filePath), ',');
+        } catch(FileNotFoundException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not find file " + filePath);
+        }
+
+        long counter = 0L;
+        int columnCount;
+        while((columnCount = reader.readRecord()) >= 0) {
+            if(columnCount == 0)
+                throw new NumberFormatException("Empty id line.");
+            sketch.add(reader.getValues()[0]);
+            counter += 1;
+
+            if(counter % interval == 0) {
+                final long estimate = sketch.cardinality();
+                System.err.println(counter + " - " + estimate);
+                uniques.add(estimate);
+            }
+        }
+    }
+
+    /**
+     * @return the absolute bound either side of an estimate
+     */
+    private long errorBound(final long estimate) {
+        return Math.round(estimate * sketch.getStandardError() * BOUND_STANDARD_ERRORS);
+    }
+
+    // ========================================================================
+    /**
+     * Counts on several threads. The file is cut into many small ranges that
+     * are dealt out to the parsing threads round-robin, and the ids are then
+     * dispatched in file order (taking each range from its parser in turn) to
+     * shards by hash. Each shard owns a set of the ids that route to
+     * it, so the sets are disjoint and the unique count at each interval is the
+     * sum of the shards' sizes at that interval. The results are the same as
+     * {@link #count()}.
+     *
+     * @param threadCount the number of parsing threads and the number of shards
+     */
+    public void countParallel(final int threadCount) {
+        // start the shards
+        final Shard[] shards = new Shard[threadCount];
+        for(int i=0; i<threadCount; i++) {
+            shards[i] = new Shard(EXPECTED_UNIQUES / threadCount);
+            shards[i].start();
+        }
+
+        // start the parsers
+        final RangeDealer ranges = new RangeDealer(filePath, RANGE_SIZE);
+        final int rangeCount = ranges.getRangeCount();
+        final RangeParser[] parsers = new RangeParser[threadCount];
+        for(int i=0; i<threadCount; i++) {
+            parsers[i] = new RangeParser(ranges, i, threadCount);
+            parsers[i].start();
+        }
+
+        // dispatch the ids in file order
+        final IdBatch[] pending = new IdBatch[threadCount];
+        for(int i=0; i<threadCount; i++)
+            pending[i] = shards[i].takeEmpty();
+        try {
+            long counter = 0L;
+            long lastReport = System.currentTimeMillis();
+            for(int range=0; range<rangeCount; range++) {
+                final RangeParser parser = parsers[range % threadCount];
+                IdBatch batch;
+                while((batch = parser.filled.take()).count > 0) {
+                    final long[] ids = batch.ids;
+                    for(int i=0; i<batch.count; i++) {
+                        final long id = ids[i];
+                        final int shard = route(id, threadCount);
+                        IdBatch target = pending[shard];
+                        target.ids[target.count++] = id;
+                        if(target.count == BATCH_SIZE) {
+                            shards[shard].filled.put(target);
+                            pending[shard] = shards[shard].takeEmpty();
+                        } /* else -- room remains */
+
+                        counter += 1;
+                        if(counter % interval == 0) {
+                            // every shard records its size at the interval
+                            for(int j=0; j<threadCount; j++) {
+                                pending[j].intervalEnd = true;
+                                shards[j].filled.put(pending[j]);
+                                pending[j] = shards[j].takeEmpty();
+                            }
+                            final long now = System.currentTimeMillis();
+                            if(now - lastReport >= PROGRESS_INTERVAL_MILLIS) {
+                                System.err.println(counter);
+                                lastReport = now;
+                            } /* else -- reported recently */
+                        } /* else -- not at an interval */
+                    }
+                    parser.empty.put(batch);
+                }
+                if(parser.failure != null)
+                    throw new RuntimeException("Counter parser died.", parser.failure);
+            }
+
+            // flush and stop the shards
+            for(int i=0; i<threadCount; i++) {
+                shards[i].filled.put(pending[i]);
+                shards[i].filled.put(new IdBatch(0)/*end marker*/);
+            }
+            for(final Shard shard : shards)
+                shard.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Counter interrupted.");
+        }
+
+        // merge the per-shard time series
+        final int intervalCount = shards[0].sizes.size();
+        for(int i=0; i<intervalCount; i++) {
+            long total = 0L;
+            for(final Shard shard : shards)
+                total += shard.sizes.get(i);
+            uniques.add(total);
+        }
+    }
+
+    /**
+     * Routes an id to a shard using the high bits of a multiplicative hash, so
+     * that the ids within a shard remain well spread over their set's table.
+     */
+    private static int route(final long id, final int shardCount) {
+        final long hash = id * 0x9E3779B97F4A7C15L;
+        return (int)(((hash >>> 32) * shardCount) >>> 32);
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * A reusable batch of ids.
+     */
+    private static class IdBatch {
+        final long[] ids;
+        int count;
+        // set if the shard should record its size once this batch is added
+        boolean intervalEnd;
+
+        IdBatch(final int capacity) {
+            ids = new long[capacity];
+        }
+    }
+
+    /**
+     * Parses every <code>parserCount</code>-th range of the file (starting with
+     * its own index) into batches of ids (see {@link RangeDealer}). Each range
+     * is followed by an end marker.
+     */
+    private static class RangeParser extends Thread implements RangeDealer.IRangeParser {
+        final BlockingQueue<IdBatch> empty = new ArrayBlockingQueue<IdBatch>(PARSER_BATCHES_IN_FLIGHT);
+        final BlockingQueue<IdBatch> filled = new ArrayBlockingQueue<IdBatch>(PARSER_BATCHES_IN_FLIGHT + 1/*end marker*/);
+        final RangeDealer ranges;
+        final int index;
+        final int parserCount;
+        volatile Throwable failure;
+
+        RangeParser(final RangeDealer ranges, final int index, final int parserCount) {
+            super("counter-parser-" + index);
+            setDaemon(true);
+            this.ranges = ranges;
+            this.index = index;
+            this.parserCount = parserCount;
+            for(int i=0; i<PARSER_BATCHES_IN_FLIGHT; i++)
+                empty.add(new IdBatch(BATCH_SIZE));
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Thread#run()
+         */
+        @Override
+        public void run() {
+            ranges.parse(index, parserCount, this);
+        }
+
+        /* (non-Javadoc)
+         * @see net.agkn.hashperf.util.RangeDealer.IRangeParser#parseRange(net.agkn.hashperf.util.NumericCsvReader)
+         */
+        public void parseRange(final NumericCsvReader reader) throws InterruptedException {
+            boolean more = true;
+            while(more) {
+                final IdBatch batch = empty.take();
+                int count = 0;
+                while(count < BATCH_SIZE) {
+                    final int columnCount = reader.readRecord();
+                    if(columnCount < 0) {
+                        more = false;
+                        break;
+                    } else if(columnCount == 0)
+                        throw new NumberFormatException("Empty id line.");
+                    batch.ids[count++] = reader.getValues()[0];
+                }
+                batch.count = count;
+                if(count > 0)
+                    filled.put(batch);
+                else
+                    empty.add(batch);
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see net.agkn.hashperf.util.RangeDealer.IRangeParser#endRange()
+         */
+        public void endRange() throws InterruptedException {
+            filled.put(new IdBatch(0)/*end marker*/);
+        }
+
+        /* (non-Javadoc)
+         * @see net.agkn.hashperf.util.RangeDealer.IRangeParser#fail(java.lang.Throwable)
+         */
+        public void fail(final Throwable t) {
+            failure = t;
+        }
+    }
+
+    /**
+     * Owns the set of the ids that route to it, recording its size at each
+     * interval.
+     */
+    private static class Shard extends Thread {
+        final BlockingQueue<IdBatch> empty = new ArrayBlockingQueue<IdBatch>(BATCHES_IN_FLIGHT);
+        final BlockingQueue<IdBatch> filled = new ArrayBlockingQueue<IdBatch>(BATCHES_IN_FLIGHT + 1/*end marker*/);
+        final LongOpenHashBigSet set;
+        final List<Long> sizes = new ArrayList<Long>(1000);
+
+        Shard(final long expectedUniques) {
+            super("counter-shard");
+            setDaemon(true);
+            set = new LongOpenHashBigSet(expectedUniques, (float)0.75);
+            for(int i=0; i<BATCHES_IN_FLIGHT; i++)
+                empty.add(new IdBatch(BATCH_SIZE));
+        }
+
+        IdBatch takeEmpty() {
+            try {
+                final IdBatch batch = empty.take();
+                batch.count = 0;
+                batch.intervalEnd = false;
+                return batch;
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Counter interrupted.");
+            }
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Thread#run()
+         */
+        @Override
+        public void run() {
+            try {
+                IdBatch batch;
+                while((batch = filled.take()).ids.length > 0) {
+                    final long[] ids = batch.ids;
+                    for(int i=0; i<batch.count; i++)
+                        set.add(ids[i]);
+                    if(batch.intervalEnd)
+                        sizes.add(set.size64());
+                    empty.put(batch);
+                }
+            } catch(InterruptedException e) {
+                /* the dispatcher has gone away */
+            }
+        }
+    }
+
+    // ========================================================================
     static public void main(String[] args) {
+        if(args[0].equals("merge")) {
+            merge(args);
+            return;
+        } /* else -- count a file */
+
         final Counter c = new Counter(args[0]);
-        c.count();
+        final String mode = (args.length > 2) ? args[2] : "1";
+        if(mode.startsWith("hll"))
+            c.countApproximate(mode.startsWith("hll:") ? Integer.valueOf(mode.substring(4)) : DEFAULT_LOG2M);
+        else if(Integer.valueOf(mode) > 1)
+            c.countParallel(Integer.valueOf(mode));
+        else
+            c.count();
 
         final String outfilePath = args[1];
         FileWriter output;
 
         try {
             output = new FileWriter(outfilePath);
-            output.write("rec_no,unique_count,unique_diff\n");
+            output.write("rec_no,unique_count,unique_diff" + ((c.sketch != null) ? ",lower_bound,upper_bound" : "") + "\n");
             output.flush();
 
             long lastUniqueCount = 0;
             for(int i=0; i<c.uniques.size(); i++) {
                 final long currentUniques = c.uniques.get(i);
-                output.write(((i + 1) * c.interval) + "," + currentUniques + "," + (currentUniques - lastUniqueCount) + "\n");
+                output.write(((i + 1) * c.interval) + "," + currentUniques + "," + (currentUniques - lastUniqueCount));
+                if(c.sketch != null) {
+                    final long bound = c.errorBound(currentUniques);
+                    output.write("," + (currentUniques - bound) + "," + (currentUniques + bound));
+                } /* else -- exact */
+                output.write("\n");
                 output.flush();
                 lastUniqueCount = currentUniques;
             }
             output.close();
+
+            if(c.sketch != null)
+                c.sketch.write(outfilePath + ".hll");
+            /* else -- nothing to merge later */
         } catch(IOException e) {
             e.printStackTrace();
             throw new RuntimeException("Couldn't open file " + outfilePath);
         }
     }
+
+    /**
+     * Merges sketches: <code>merge /path/to/merged.hll /path/to/a.hll ...</code>.
+     */
+    private static void merge(final String[] args) {
+        final HyperLogLog merged = HyperLogLog.read(args[2]);
+        for(int i=3; i<args.length; i++)
+            merged.merge(HyperLogLog.read(args[i]));
+        merged.write(args[1]);
+
+        final long estimate = merged.cardinality();
+        final long bound = Math.round(estimate * merged.getStandardError() * BOUND_STANDARD_ERRORS);
+        System.out.println("unique_count," + estimate + ",lower_bound," + (estimate - bound) + ",upper_bound," + (estimate + bound));
+    }
 }
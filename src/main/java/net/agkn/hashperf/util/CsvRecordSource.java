@@ -0,0 +1,43 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+/**
+ * Reads records from a CSV file through an {@link EventReader}, packing and
+ * encoding each row as it is read.
+ */
+public class CsvRecordSource implements IRecordSource {
+    // the wrapped reader
+    private final EventReader reader;
+
+    /**
+     * @param path the path to the input csv file
+     */
+    public CsvRecordSource(final String path) {
+        reader = new EventReader(path);
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.IRecordSource#read(byte[], int, byte[], int)
+     */
+    public boolean read(final byte[] personId, final int personIdOffset, final byte[] event, final int eventOffset) {
+        final int length = reader.readValues();
+        if(length < 0) return false;
+
+        RecordFile.encode(reader.getValues(), length, personId, personIdOffset, event, eventOffset);
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.IRecordSource#close()
+     */
+    public void close() {
+        /* EventReader closes itself at EOF */
+    }
+}
@@ -19,10 +19,22 @@ public class EventPacker {
      * @return the packed event
      */
     public static long[] packEvent(final long[] event) {
+        return new long[] { event[0], packKeys(event, event.length) };
+    }
+
+    /**
+     * XORs the key fields (everything but the first element) of an event
+     * without allocating.
+     * @param event the event to pack
+     * @param length the number of valid elements in <code>event</code>
+     * @return the second element of the packed event
+     * @see #packEvent(long[])
+     */
+    public static long packKeys(final long[] event, final int length) {
         long acc = event[1];
-        for(int i=2;i<event.length;i++) {
+        for(int i=2;i<length;i++) {
             acc ^= event[i];
         }
-        return new long[] { event[0], acc };
+        return acc;
     }
 }
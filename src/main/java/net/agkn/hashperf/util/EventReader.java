@@ -8,10 +8,9 @@
  ******************************************************************************/
 package net.agkn.hashperf.util;
 
-import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Reads csv-formatted, test-rig-formatted logs and converts all fields to
@@ -21,57 +20,50 @@ import java.io.IOException;
  * person_id,...key fields... (longs).
  */
 public class EventReader {
-    private BufferedReader reader;
-    private CsvRecordReader csv;
+    private NumericCsvReader csv;
 
     /**
      * @param path the path to the input csv file
      */
     public EventReader(final String path) {
         try {
-            reader = new BufferedReader(new FileReader(path), 8192 * 16 * 16 * 16/*32M, empirically 'fast enough'*/);
+            csv = new NumericCsvReader(new FileInputStream(path), ',');
         } catch(FileNotFoundException e) {
             e.printStackTrace();
             throw new RuntimeException("Could not find file " + path);
         }
-        csv = new CsvRecordReader(',');
     }
 
     /**
      * Returns the next row of the CSV, parsed to <code>long</code>s or <code>null</code>
      * if EOF is reached.
+     *
+     * @see #readValues()
      */
     public long[] next() {
-        String line;
-        try {
-            line = reader.readLine();
-        } catch(IOException e) {
-            e.printStackTrace();
-            throw new RuntimeException("Could not read line.");
-        }
-        if(line == null) {
-            try {
-                reader.close();
-            } catch(IOException e) {
-                e.printStackTrace();
-                throw new RuntimeException("Could not close file.");
-            }
+        final int length = csv.readRecord();
+        if(length < 0)
             return null;
-        } else {
-            final String[] values = csv.readRecord(line);
-            return parseValues(values);
-        }
+        else
+            return Arrays.copyOf(csv.getValues(), length);
     }
 
     /**
-     * Parses the line into longs. Expects <code>values</code> to be non-<code>null</code>.
+     * Reads the next row of the CSV into the array returned by {@link #getValues()}
+     * without allocating.
+     *
+     * @return the number of values in the row or <code>-1</code> if EOF is
+     *         reached
      */
-    private long[] parseValues(final String[] values) {
-        final int length = values.length;
-        final long[] out = new long[length];
-        for(int i=0; i<length; i++) {
-            out[i] = Long.parseLong(values[i]);
-        }
-        return out;
+    public int readValues() {
+        return csv.readRecord();
+    }
+
+    /**
+     * Returns the values read by the last call to {@link #readValues()}. The
+     * array is reused between rows.
+     */
+    public long[] getValues() {
+        return csv.getValues();
     }
 }
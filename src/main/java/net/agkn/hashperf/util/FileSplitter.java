@@ -0,0 +1,163 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the lines of a line-oriented file by byte range, so that the ranges
+ * can be read independently (e.g. on several threads).
+ */
+public class FileSplitter {
+    // the number of bytes read at a time while looking for a line start
+    private static final int SCAN_SIZE = 8192;
+
+    // ========================================================================
+    /**
+     * Opens a stream over the lines that start within a byte range of the
+     * file. The range need not be aligned to lines: a line that spans its
+     * start is left to the range before and a line that spans its end is read
+     * to its end, so adjoining ranges read every line exactly once.
+     *
+     * @param path the path of the file
+     * @param start the offset of the first byte of the range
+     * @param end the offset just past the last byte of the range
+     */
+    public static InputStream openLines(final String path, final long start, final long end) {
+        final RandomAccessFile file = openFile(path);
+        try {
+            final FileChannel channel = file.getChannel();
+            final long size = channel.size();
+            final long lineStart = nextLineStart(channel, Math.min(start, size), size);
+            final long lineEnd = Math.max(lineStart, nextLineStart(channel, Math.min(end, size), size));
+            return new RangeInputStream(file, lineStart, lineEnd);
+        } catch(IOException e) {
+            e.printStackTrace();
+            closeFile(file);
+            throw new RuntimeException("Could not read file " + path);
+        }
+    }
+
+    /**
+     * @return the size of the file in bytes
+     */
+    public static long size(final String path) {
+        final RandomAccessFile file = openFile(path);
+        try {
+            return file.length();
+        } catch(IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not read the size of file " + path);
+        } finally {
+            closeFile(file);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @return the offset of the first line that starts at or after
+     *         <code>offset</code> or the size of the file if there is none
+     */
+    private static long nextLineStart(final FileChannel channel, final long offset, final long size) throws IOException {
+        if(offset <= 0L) return 0L;
+
+        final ByteBuffer buffer = ByteBuffer.allocate(SCAN_SIZE);
+        long position = offset - 1/*the terminator may be the byte before*/;
+        while(position < size) {
+            buffer.clear();
+            final int read = channel.read(buffer, position);
+            if(read <= 0) break;
+            for(int i=0; i<read; i++) {
+                final byte currentByte = buffer.get(i);
+                if(currentByte == '\n')
+                    return position + i + 1;
+                if(currentByte == '\r') {
+                    // a CR may be followed by a LF (possibly in the next read)
+                    final long next = position + i + 1;
+                    if(next >= size) return size;
+                    final ByteBuffer single = ByteBuffer.allocate(1);
+                    channel.read(single, next);
+                    return (single.get(0) == '\n') ? (next + 1) : next;
+                } /* else -- not a terminator */
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private static RandomAccessFile openFile(final String path) {
+        try {
+            return new RandomAccessFile(path, "r");
+        } catch(FileNotFoundException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not find file " + path);
+        }
+    }
+
+    private static void closeFile(final RandomAccessFile file) {
+        try {
+            file.close();
+        } catch(IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not close file.");
+        }
+    }
+
+    // ************************************************************************
+    /**
+     * An {@link InputStream} over a byte range of a file.
+     */
+    private static class RangeInputStream extends InputStream {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+
+        RangeInputStream(final RandomAccessFile file, final long start, final long end) {
+            this.file = file;
+            this.channel = file.getChannel();
+            this.position = start;
+            this.end = end;
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.InputStream#read()
+         */
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return (read(single, 0, 1) < 0) ? -1 : (single[0] & 0xFF);
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.InputStream#read(byte[], int, int)
+         */
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            if(position >= end) return -1;
+            final int toRead = (int)Math.min(length, end - position);
+            final int read = channel.read(ByteBuffer.wrap(buffer, offset, toRead), position);
+            if(read > 0) position += read;
+            return read;
+        }
+
+        /* (non-Javadoc)
+         * @see java.io.InputStream#close()
+         */
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
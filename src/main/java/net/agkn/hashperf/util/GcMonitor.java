@@ -0,0 +1,325 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+/**
+ * Watches the garbage collectors during a run.
+ *
+ * The total collection time and count of every collector can always be
+ * polled (see {@link #getCollectionTime()}) to give the GC time in each
+ * polling interval. Where the JVM publishes a notification for each
+ * collection (HotSpot 7u4 and later) each pause is also recorded with its
+ * collector, cause, duration and heap before and after (see {@link #drainPauses()}).
+ * The notifications are read as plain JMX {@link CompositeData} so that no
+ * <code>com.sun</code> classes are needed.
+ */
+public class GcMonitor {
+    // the type of HotSpot's per-collection notification
+    private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+    // the longest that stop() waits for the notifications of the run's last
+    // collections to be delivered
+    private static final long DELIVERY_WAIT_MILLIS = 1000L;
+
+    // the columns of Pause#toCsv()
+    public static final String PAUSE_CSV_HEADER = "collector,action,cause,start,duration,heap_before,heap_after";
+
+    // ************************************************************************
+    private final List<GarbageCollectorMXBean> collectors;
+    // the names of the heap pools (the notifications cover every pool)
+    private final Set<String> heapPoolNames;
+
+    private final NotificationListener listener;
+    // the user data of each notification (parsed once the run is over)
+    private final ConcurrentLinkedQueue<CompositeData> notifications;
+    private boolean subscribed = false/*default*/;
+    // true if any collector publishes notifications
+    private final boolean notifying;
+
+    // the start and end times of a collection are on the JVM's own clock
+    // which is not quite its uptime. The wall-clock time of the clock's zero
+    // is estimated as the least difference between the time a notification
+    // is delivered and the end of its collection.
+    private volatile long clockOffset = Long.MAX_VALUE/*none delivered*/;
+
+    // the number of collection notifications delivered since the JVM started
+    // (only the one delivery thread writes)
+    private volatile long deliveredCount = 0L;
+
+    // the wall-clock time at the start of the run
+    private long startTime;
+    // the collection count and delivered notifications at the start of the run
+    private long startCount;
+    private long startDeliveredCount;
+
+    public GcMonitor() {
+        collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        boolean notifying = false;
+        for(final GarbageCollectorMXBean collector : collectors)
+            notifying |= (collector instanceof NotificationEmitter);
+        this.notifying = notifying;
+        heapPoolNames = new HashSet<String>();
+        for(final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if(pool.getType() == MemoryType.HEAP)
+                heapPoolNames.add(pool.getName());
+            /* else -- not heap */
+        }
+
+        notifications = new ConcurrentLinkedQueue<CompositeData>();
+        listener = new NotificationListener() {
+            public void handleNotification(final Notification notification, final Object handback) {
+                if(GC_NOTIFICATION.equals(notification.getType()) && (notification.getUserData() instanceof CompositeData)) {
+                    final CompositeData data = (CompositeData)notification.getUserData();
+                    final long endTime = ((Long)((CompositeData)data.get("gcInfo")).get("endTime")).longValue();
+                    clockOffset = Math.min(clockOffset, System.currentTimeMillis() - endTime)/*only the one delivery thread writes*/;
+                    notifications.add(data);
+                    deliveredCount++;
+                } /* else -- not a collection */
+            }
+        };
+    }
+
+    // ========================================================================
+    /**
+     * Subscribes to the collection notifications (where supported) and marks
+     * the start of a run. Any pauses recorded before are discarded.
+     */
+    public void start() {
+        notifications.clear();
+        if(!subscribed) {
+            for(final GarbageCollectorMXBean collector : collectors) {
+                if(collector instanceof NotificationEmitter)
+                    ((NotificationEmitter)collector).addNotificationListener(listener, null, null);
+                /* else -- this JVM doesn't publish collections */
+            }
+            subscribed = true;
+        } /* else -- already subscribed */
+        startTime = System.currentTimeMillis();
+        startCount = getCollectionCount();
+        startDeliveredCount = deliveredCount;
+    }
+
+    /**
+     * Unsubscribes from the collection notifications. The notifications are
+     * delivered asynchronously so this first waits (for at most
+     * {@link #DELIVERY_WAIT_MILLIS}) until one has been delivered for every
+     * collection of the run.
+     */
+    public void stop() {
+        if(!subscribed) return;
+        /* else -- wait for the last notifications */
+        if(notifying) {
+            final long collections = getCollectionCount() - startCount;
+            final long deadline = System.currentTimeMillis() + DELIVERY_WAIT_MILLIS;
+            while(((deliveredCount - startDeliveredCount) < collections) && (System.currentTimeMillis() < deadline)) {
+                try {
+                    Thread.sleep(1L);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break/*stop waiting*/;
+                }
+            }
+        } /* else -- nothing is delivered */
+
+        for(final GarbageCollectorMXBean collector : collectors) {
+            if(collector instanceof NotificationEmitter) {
+                try {
+                    ((NotificationEmitter)collector).removeNotificationListener(listener);
+                } catch(ListenerNotFoundException e) {
+                    /* never subscribed */
+                }
+            } /* else -- never subscribed */
+        }
+        subscribed = false;
+    }
+
+    /**
+     * @return <code>true</code> if each pause is recorded, <code>false</code>
+     *         if only the totals can be polled
+     */
+    public boolean isNotifying() {
+        return notifying;
+    }
+
+    /**
+     * @return the total time (in milliseconds) spent collecting by every
+     *         collector since the JVM started
+     */
+    public long getCollectionTime() {
+        long time = 0L;
+        for(final GarbageCollectorMXBean collector : collectors)
+            time += Math.max(0L, collector.getCollectionTime()/*-1 if undefined*/);
+        return time;
+    }
+
+    /**
+     * @return the total number of collections by every collector since the
+     *         JVM started
+     */
+    public long getCollectionCount() {
+        long count = 0L;
+        for(final GarbageCollectorMXBean collector : collectors)
+            count += Math.max(0L, collector.getCollectionCount()/*-1 if undefined*/);
+        return count;
+    }
+
+    /**
+     * @return the pauses recorded since the run started, in order. They are
+     *         removed from the monitor.
+     */
+    public List<Pause> drainPauses() {
+        final List<Pause> drained = new ArrayList<Pause>();
+        CompositeData data;
+        while((data = notifications.poll()) != null)
+            drained.add(parse(data));
+        return drained;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parses the user data of a HotSpot collection notification (see
+     * <code>com.sun.management.GarbageCollectionNotificationInfo</code>).
+     */
+    private Pause parse(final CompositeData data) {
+        final CompositeData info = (CompositeData)data.get("gcInfo");
+        final long start = ((Long)info.get("startTime")).longValue() + clockOffset - startTime;
+        final long duration = ((Long)info.get("duration")).longValue();
+        return new Pause((String)data.get("gcName"),
+                         (String)data.get("gcAction"),
+                         (String)data.get("gcCause"),
+                         start,
+                         duration,
+                         heapUsed((TabularData)info.get("memoryUsageBeforeGc")),
+                         heapUsed((TabularData)info.get("memoryUsageAfterGc")));
+    }
+
+    /**
+     * @param usage the usage of each pool keyed by the pool's name
+     * @return the sum of the usage of the heap pools
+     */
+    private long heapUsed(final TabularData usage) {
+        long used = 0L;
+        for(final Object row : usage.values()) {
+            final CompositeData entry = (CompositeData)row;
+            if(heapPoolNames.contains(entry.get("key")))
+                used += MemoryUsage.from((CompositeData)entry.get("value")).getUsed();
+            /* else -- not heap */
+        }
+        return used;
+    }
+
+    // ************************************************************************
+    /**
+     * A single collection.
+     */
+    public static class Pause {
+        private final String collector;
+        private final String action;
+        private final String cause;
+        private final long start;
+        private final long duration;
+        private final long heapBefore;
+        private final long heapAfter;
+
+        public Pause(final String collector, final String action, final String cause, final long start, final long duration, final long heapBefore, final long heapAfter) {
+            this.collector = collector;
+            this.action = action;
+            this.cause = cause;
+            this.start = start;
+            this.duration = duration;
+            this.heapBefore = heapBefore;
+            this.heapAfter = heapAfter;
+        }
+
+        public String getCollector() {
+            return collector;
+        }
+
+        /**
+         * @return e.g. "end of minor GC"
+         */
+        public String getAction() {
+            return action;
+        }
+
+        /**
+         * @return e.g. "Allocation Failure"
+         */
+        public String getCause() {
+            return cause;
+        }
+
+        /**
+         * @return the start of the pause in milliseconds since the run started
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return the duration in milliseconds
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        public long getHeapBefore() {
+            return heapBefore;
+        }
+
+        public long getHeapAfter() {
+            return heapAfter;
+        }
+
+        /**
+         * @param polledTimes the times (since the run started) of each poll
+         * @param pollingInterval the number of records between polls
+         * @return the record number of the poll that ends the interval in
+         *         which the pause started, or <code>-1</code> if it started
+         *         after the last poll
+         */
+        public long getRecordNumber(final long[] polledTimes, final int pollingInterval) {
+            for(int i=0; i<polledTimes.length; i++) {
+                if(start <= polledTimes[i])
+                    return (i + 1) * (long)pollingInterval;
+                /* else -- a later interval */
+            }
+            return -1L;
+        }
+
+        /**
+         * @return the pause in the columns of {@link GcMonitor#PAUSE_CSV_HEADER}
+         */
+        public String toCsv() {
+            return quote(collector) + "," + quote(action) + "," + quote(cause) + "," + start + "," + duration + "," + heapBefore + "," + heapAfter;
+        }
+
+        private static String quote(final String value) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+/**
+ * Hashing utilities.
+ */
+public class HashUtil {
+    /**
+     * The 64-bit finalizer of MurmurHash3: spreads every bit of the key over
+     * the hash, so that sequential keys (such as the production ids) spread
+     * across a table or sketch.
+     *
+     * @param key the value to hash
+     * @return the hash of <code>key</code>
+     */
+    public static long hash(long key) {
+        key ^= (key >>> 33);
+        key *= 0xff51afd7ed558ccdL;
+        key ^= (key >>> 33);
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= (key >>> 33);
+        return key;
+    }
+}
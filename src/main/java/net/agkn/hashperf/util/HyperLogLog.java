@@ -0,0 +1,161 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A HyperLogLog sketch (Flajolet et al., "HyperLogLog: the analysis of a
+ * near-optimal cardinality estimation algorithm", 2007) for estimating the
+ * number of distinct <code>long</code>s in a stream in <code>2^log2m</code>
+ * bytes. Sketches of the same precision can be merged, so separate files or
+ * shards can be counted independently and combined.
+ *
+ * A 64-bit hash is used so no large-range correction is needed. The
+ * small-range (linear counting) correction is applied.
+ */
+public class HyperLogLog {
+    // the range of precisions allowed
+    public static final int MIN_LOG2M = 4;
+    public static final int MAX_LOG2M = 20;
+
+    // ************************************************************************
+    private final int log2m;
+    private final int m;
+    private final byte[] registers;
+
+    /**
+     * @param log2m the precision: the log (base 2) of the number of registers.
+     *        The relative standard error is <code>1.04 / sqrt(2^log2m)</code>.
+     */
+    public HyperLogLog(final int log2m) {
+        if((log2m < MIN_LOG2M) || (log2m > MAX_LOG2M))
+            throw new IllegalArgumentException("Precision must be between " + MIN_LOG2M + " and " + MAX_LOG2M + " but was " + log2m + ".");
+        this.log2m = log2m;
+        this.m = 1 << log2m;
+        this.registers = new byte[m];
+    }
+
+    // ========================================================================
+    /**
+     * Adds a value to the sketch.
+     */
+    public void add(final long value) {
+        final long hash = HashUtil.hash(value);
+        final int index = (int)(hash >>> (64 - log2m));
+        // the guard bit bounds the rank at (64 - log2m + 1)
+        final long remaining = (hash << log2m) | (1L << (log2m - 1));
+        final byte rank = (byte)(Long.numberOfLeadingZeros(remaining) + 1);
+        if(rank > registers[index])
+            registers[index] = rank;
+    }
+
+    /**
+     * @return the estimated number of distinct values added
+     */
+    public long cardinality() {
+        double sum = 0.0;
+        int zeroRegisters = 0;
+        for(int i=0; i<m; i++) {
+            final int register = registers[i];
+            sum += 1.0 / (1L << register);
+            if(register == 0) zeroRegisters++;
+        }
+        final double estimate = alpha() * m * m / sum;
+
+        if((estimate <= 2.5 * m) && (zeroRegisters > 0))
+            return Math.round(m * Math.log(m / (double)zeroRegisters))/*linear counting*/;
+        else
+            return Math.round(estimate);
+    }
+
+    /**
+     * @return the relative standard error of the estimate (one standard deviation)
+     */
+    public double getStandardError() {
+        return 1.04 / Math.sqrt(m);
+    }
+
+    /**
+     * Merges another sketch into this one. Afterwards this sketch estimates
+     * the number of distinct values added to either.
+     *
+     * @param other a sketch of the same precision
+     */
+    public void merge(final HyperLogLog other) {
+        if(other.log2m != log2m)
+            throw new IllegalArgumentException("Cannot merge a sketch of precision " + other.log2m + " into one of precision " + log2m + ".");
+        for(int i=0; i<m; i++) {
+            if(other.registers[i] > registers[i])
+                registers[i] = other.registers[i];
+        }
+    }
+
+    public int getLog2m() {
+        return log2m;
+    }
+
+    // ------------------------------------------------------------------------
+    private double alpha() {
+        switch(m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1.0 + 1.079 / m);
+        }
+    }
+
+    // ========================================================================
+    /**
+     * Writes the sketch to a file: the precision as one byte followed by the
+     * registers.
+     */
+    public void write(final String path) {
+        try {
+            final DataOutputStream output = new DataOutputStream(new FileOutputStream(path));
+            output.writeByte(log2m);
+            output.write(registers);
+            output.close();
+        } catch(IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not write sketch " + path);
+        }
+    }
+
+    /**
+     * Reads a sketch written by {@link #write(String)}.
+     */
+    public static HyperLogLog read(final String path) {
+        final DataInputStream input;
+        try {
+            input = new DataInputStream(new FileInputStream(path));
+        } catch(FileNotFoundException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not find sketch " + path);
+        }
+        try {
+            final HyperLogLog sketch = new HyperLogLog(input.readUnsignedByte());
+            input.readFully(sketch.registers);
+            input.close();
+            return sketch;
+        } catch(IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not read sketch " + path);
+        }
+    }
+}
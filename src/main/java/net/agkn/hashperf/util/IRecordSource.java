@@ -0,0 +1,35 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+/**
+ * A source of encoded records for a {@link RecordIterator}. Each record is an
+ * 8-byte <code>person_id</code> and a 16-byte packed event, laid out as
+ * described in {@link RecordFile}.
+ */
+public interface IRecordSource {
+    /**
+     * Reads the next record into the given arrays. Implementations must not
+     * allocate per record.
+     *
+     * @param personId the array to write the <code>person_id</code> into
+     * @param personIdOffset the offset in <code>personId</code> at which to write
+     * @param event the array to write the packed event into
+     * @param eventOffset the offset in <code>event</code> at which to write
+     * @return <code>true</code> if a record was read, <code>false</code> if
+     *         the source is exhausted
+     */
+    boolean read(byte[] personId, int personIdOffset, byte[] event, int eventOffset);
+
+    /**
+     * Releases any resources held by the source. This may be called more than
+     * once.
+     */
+    void close();
+}
@@ -0,0 +1,152 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+/**
+ * A histogram of latencies (in nanoseconds) with log-linear buckets in the
+ * style of HdrHistogram: each power of two is split into
+ * {@link #SUB_BUCKET_COUNT} equal buckets, so any recorded value is reported
+ * to within 1% of its true value however large it is. Values above
+ * {@link #MAX_VALUE} are clamped to it.
+ *
+ * Recording is a few shifts and an array increment and never allocates, so it
+ * can be done per record without disturbing the numbers being measured.
+ */
+public class LatencyHistogram {
+    // the number of linear buckets in each power of two (2^SUB_BUCKET_BITS)
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    // the largest value tracked (~18 minutes)
+    public static final long MAX_VALUE = (1L << 40) - 1;
+
+    // the number of buckets needed to reach MAX_VALUE
+    private static final int BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1;
+
+    // the fields written by snapshot(), in order
+    public static final String[] SNAPSHOT_FIELDS = { "count", "mean", "p50", "p90", "p99", "p999", "max" };
+
+    // ************************************************************************
+    private final long[] counts = new long[BUCKET_COUNT];
+
+    private long totalCount;
+    private long totalValue;
+    private long maxValue;
+
+    // ========================================================================
+    /**
+     * Records a single latency.
+     *
+     * @param nanos the latency. Negative values are recorded as zero.
+     */
+    public void record(long nanos) {
+        if(nanos < 0L) nanos = 0L;
+        else if(nanos > MAX_VALUE) nanos = MAX_VALUE;
+
+        counts[bucketIndex(nanos)]++;
+        totalCount++;
+        totalValue += nanos;
+        if(nanos > maxValue) maxValue = nanos;
+    }
+
+    /**
+     * Adds every value recorded in another histogram to this one.
+     */
+    public void add(final LatencyHistogram other) {
+        for(int i=0; i<BUCKET_COUNT; i++)
+            counts[i] += other.counts[i];
+        totalCount += other.totalCount;
+        totalValue += other.totalValue;
+        if(other.maxValue > maxValue) maxValue = other.maxValue;
+    }
+
+    /**
+     * Clears all recorded values.
+     */
+    public void reset() {
+        for(int i=0; i<BUCKET_COUNT; i++)
+            counts[i] = 0L;
+        totalCount = 0L;
+        totalValue = 0L;
+        maxValue = 0L;
+    }
+
+    // ========================================================================
+    public long getCount() {
+        return totalCount;
+    }
+
+    public long getMax() {
+        return maxValue;
+    }
+
+    /**
+     * @return the mean of the recorded values or zero if none were recorded
+     */
+    public double getMean() {
+        return (totalCount == 0L) ? 0.0 : (totalValue / (double)totalCount);
+    }
+
+    /**
+     * @param percentile the percentile (between 0 and 100)
+     * @return the largest value that is equivalent (within the precision of
+     *         the histogram) to the value at the given percentile, or zero if
+     *         none were recorded
+     */
+    public long getValueAtPercentile(final double percentile) {
+        if(totalCount == 0L) return 0L;
+        final long target = Math.max(1L, (long)Math.ceil((percentile / 100.0) * totalCount));
+        long seen = 0L;
+        for(int i=0; i<BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if(seen >= target)
+                return Math.min(highestEquivalentValue(i), maxValue);
+        }
+        return maxValue;
+    }
+
+    /**
+     * Writes the summary of the histogram (see {@link #SNAPSHOT_FIELDS}) into
+     * the given array without allocating.
+     *
+     * @param snapshot the array to write into
+     * @param offset the position in the array of the first field
+     */
+    public void snapshot(final long[] snapshot, final int offset) {
+        snapshot[offset] = totalCount;
+        snapshot[offset + 1] = Math.round(getMean());
+        snapshot[offset + 2] = getValueAtPercentile(50.0);
+        snapshot[offset + 3] = getValueAtPercentile(90.0);
+        snapshot[offset + 4] = getValueAtPercentile(99.0);
+        snapshot[offset + 5] = getValueAtPercentile(99.9);
+        snapshot[offset + 6] = maxValue;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Values below <code>2 * SUB_BUCKET_COUNT</code> have a bucket each.
+     * Above that, a value whose highest bit is bit <code>b</code> is shifted
+     * down by <code>b - SUB_BUCKET_BITS</code> to leave it between
+     * <code>SUB_BUCKET_COUNT</code> and <code>2 * SUB_BUCKET_COUNT</code>.
+     */
+    private static int bucketIndex(final long value) {
+        final int shift = Math.max(0, (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS);
+        return (shift * SUB_BUCKET_COUNT) + (int)(value >>> shift);
+    }
+
+    /**
+     * @return the largest value that falls in the given bucket
+     */
+    private static long highestEquivalentValue(final int index) {
+        if(index < (2 * SUB_BUCKET_COUNT)) return index;
+        final int shift = (index / SUB_BUCKET_COUNT) - 1;
+        final long subBucket = (index % SUB_BUCKET_COUNT) + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
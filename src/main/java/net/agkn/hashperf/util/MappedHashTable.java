@@ -0,0 +1,487 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A persistent, append-only store of events by <code>person_id</code> held in
+ * a memory-mapped file. The file is a header followed by a fixed number of
+ * buckets and then an overflow area:
+ * <ul>
+ *   <li>a key hashes to one of the buckets, each of which holds up to
+ *       {@link #SLOTS_PER_BUCKET} keys. A full bucket is chained to an
+ *       overflow bucket, so the number of buckets never changes (and keys are
+ *       never rehashed);</li>
+ *   <li>each key's slot points to a chain of fixed-size chunks of events in
+ *       the overflow area. Appending an event writes it into the last chunk
+ *       of its key's chain (adding a chunk when that is full), so earlier
+ *       events are never copied.</li>
+ * </ul>
+ * Overflow buckets and chunks are allocated sequentially from the end of the
+ * file, which is extended as needed. Every structure is {@link #BLOCK_SIZE}
+ * bytes so that none straddles two mapped regions.
+ *
+ * Reopening a file (see {@link #open(String)}) only maps it and reads its
+ * header, so it takes near-constant time whatever the number of keys. The
+ * header records whether the file was closed cleanly; a file that wasn't may
+ * be inconsistent and is refused. Data is written in the native byte order
+ * and a file can't be opened on a machine of another byte order.
+ *
+ * Not thread-safe.
+ */
+public class MappedHashTable {
+    // the size of each mapped region of the file
+    private static final int REGION_BITS = 30/*1GB*/;
+    private static final int REGION_SIZE = 1 << REGION_BITS;
+    private static final long OFFSET_MASK = REGION_SIZE - 1;
+    // the smallest mapping of the last region (which doubles as it grows)
+    private static final int MIN_MAPPING_SIZE = 1 << 20/*1MB*/;
+
+    // identifies the file (and its byte order)
+    private static final long MAGIC = 0x4841534850455246L/*"HASHPERF"*/;
+    private static final long VERSION = 1L;
+
+    // the layout of the header
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 8;
+    private static final int HEADER_BUCKET_COUNT = 16;
+    private static final int HEADER_END = 24;
+    private static final int HEADER_KEY_COUNT = 32;
+    private static final int HEADER_EVENT_COUNT = 40;
+    private static final int HEADER_OVERFLOW_BUCKET_COUNT = 48;
+    private static final int HEADER_CHUNK_COUNT = 56;
+    private static final int HEADER_CLEAN = 64;
+    private static final int HEADER_SIZE = 4096;
+
+    // the size of a bucket and of a chunk
+    public static final int BLOCK_SIZE = 256;
+
+    // the layout of a bucket: the next (overflow) bucket in the chain (or
+    // none), the number of slots in use and the slots
+    private static final int BUCKET_NEXT = 0;
+    private static final int BUCKET_USED = 8;
+    private static final int BUCKET_SLOTS = 32;
+    public static final int SLOTS_PER_BUCKET = 7;
+
+    // the layout of a slot: the key, the first and last chunks of its chain and
+    // the number of events
+    private static final int SLOT_KEY = 0;
+    private static final int SLOT_HEAD = 8;
+    private static final int SLOT_TAIL = 16;
+    private static final int SLOT_COUNT = 24;
+    private static final int SLOT_SIZE = 32;
+
+    // the layout of a chunk: the next chunk in the chain (or none) followed by
+    // the events
+    private static final int CHUNK_NEXT = 0;
+    private static final int CHUNK_EVENTS = 16;
+    public static final int EVENTS_PER_CHUNK = (BLOCK_SIZE - CHUNK_EVENTS) / RecordFile.EVENT_SIZE;
+
+    // the fraction of the bucket slots that are expected to be full when the
+    // table is sized
+    private static final double LOAD_FACTOR = 0.75;
+
+    // ************************************************************************
+    /**
+     * Creates an empty table, replacing any file at the path.
+     *
+     * @param path the path of the file
+     * @param expectedKeys the number of distinct keys to size the buckets for.
+     *        More keys can be held but at the cost of overflow buckets.
+     */
+    public static MappedHashTable create(final String path, final long expectedKeys) {
+        long bucketCount = 16L;
+        while(bucketCount * SLOTS_PER_BUCKET * LOAD_FACTOR < expectedKeys)
+            bucketCount <<= 1;
+
+        final File file = new File(path);
+        if(file.exists() && !file.delete())
+            throw new RuntimeException("Could not delete existing file " + path);
+        /* else -- no file in the way */
+        final MappedHashTable table = new MappedHashTable(path);
+        table.ensureCapacity(HEADER_SIZE + (bucketCount * BLOCK_SIZE))/*the file is extended with zeros, i.e. empty buckets*/;
+        table.bucketMask = bucketCount - 1;
+        table.end = HEADER_SIZE + (bucketCount * BLOCK_SIZE);
+        table.putLong(HEADER_MAGIC, MAGIC);
+        table.putLong(HEADER_VERSION, VERSION);
+        table.putLong(HEADER_BUCKET_COUNT, bucketCount);
+        table.writeHeader(false/*open*/);
+        return table;
+    }
+
+    /**
+     * Opens an existing table. Only the header is read.
+     *
+     * @param path the path of the file
+     */
+    public static MappedHashTable open(final String path) {
+        if(!new File(path).exists())
+            throw new RuntimeException("Could not find file " + path);
+        /* else -- the file exists */
+        final MappedHashTable table = new MappedHashTable(path);
+        try {
+            if((table.fileSize < HEADER_SIZE) || (table.getLong(HEADER_MAGIC) != MAGIC))
+                throw new RuntimeException("File " + path + " is not a mapped hash table (or was written with another byte order).");
+            if(table.getLong(HEADER_VERSION) != VERSION)
+                throw new RuntimeException("File " + path + " is version " + table.getLong(HEADER_VERSION) + " rather than " + VERSION + ".");
+            if(table.getLong(HEADER_CLEAN) == 0L)
+                throw new RuntimeException("File " + path + " was not closed cleanly.");
+            if(table.getLong(HEADER_END) > table.fileSize)
+                throw new RuntimeException("File " + path + " is truncated (" + table.fileSize + " of " + table.getLong(HEADER_END) + " bytes).");
+            /* else -- a consistent table */
+        } catch(RuntimeException e) {
+            table.closeFile();
+            throw e;
+        }
+
+        table.bucketMask = table.getLong(HEADER_BUCKET_COUNT) - 1;
+        table.end = table.getLong(HEADER_END);
+        table.keyCount = table.getLong(HEADER_KEY_COUNT);
+        table.eventCount = table.getLong(HEADER_EVENT_COUNT);
+        table.overflowBucketCount = table.getLong(HEADER_OVERFLOW_BUCKET_COUNT);
+        table.chunkCount = table.getLong(HEADER_CHUNK_COUNT);
+        table.writeHeader(false/*open*/);
+        return table;
+    }
+
+    // ************************************************************************
+    private final String path;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    // the mapped regions of the file. Only the last may be shorter than
+    // REGION_SIZE.
+    private MappedByteBuffer[] regions;
+    // the bytes of the file that are mapped (the length of the file)
+    private long fileSize;
+
+    // the number of buckets is a power of two
+    private long bucketMask;
+    // the offset at which the next overflow bucket or chunk is allocated
+    private long end;
+
+    private long keyCount;
+    private long eventCount;
+    private long overflowBucketCount;
+    private long chunkCount;
+
+    /**
+     * Maps the whole of the file at the path (creating it if needed).
+     */
+    private MappedHashTable(final String path) {
+        this.path = path;
+        try {
+            file = new RandomAccessFile(path, "rw");
+        } catch(FileNotFoundException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not open file " + path);
+        }
+        channel = file.getChannel();
+
+        try {
+            fileSize = channel.size();
+        } catch(IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not read the size of file " + path);
+        }
+        final int regionCount = (int)((fileSize + REGION_SIZE - 1) >>> REGION_BITS);
+        regions = new MappedByteBuffer[regionCount];
+        for(int i=0; i<regionCount; i++) {
+            final long position = (long)i << REGION_BITS;
+            regions[i] = map(position, (int)Math.min(REGION_SIZE, fileSize - position));
+        }
+    }
+
+    // ========================================================================
+    /**
+     * Appends an event to the events of a key.
+     *
+     * @param personId the key
+     * @param event the event. Only its first {@link RecordFile#EVENT_SIZE}
+     *        bytes are stored.
+     * @param eventOffset the offset of the event in <code>event</code>
+     */
+    public void append(final long personId, final byte[] event, final int eventOffset) {
+        final long slot = findSlot(personId, true/*create*/);
+        final long count = getLong(slot + SLOT_COUNT);
+        long tail;
+        if((count % EVENTS_PER_CHUNK) == 0L) {
+            // a new key or the last chunk is full
+            final long chunk = allocateBlock();
+            chunkCount++;
+            if(count == 0L)
+                putLong(slot + SLOT_HEAD, chunk);
+            else
+                putLong(getLong(slot + SLOT_TAIL) + CHUNK_NEXT, chunk);
+            putLong(slot + SLOT_TAIL, chunk);
+            tail = chunk;
+        } else
+            tail = getLong(slot + SLOT_TAIL);
+
+        final long position = tail + CHUNK_EVENTS + ((count % EVENTS_PER_CHUNK) * RecordFile.EVENT_SIZE);
+        putLong(position, ByteUtil.bytesToLong(event, eventOffset));
+        putLong(position + 8, ByteUtil.bytesToLong(event, eventOffset + 8));
+        putLong(slot + SLOT_COUNT, count + 1);
+        eventCount++;
+    }
+
+    /**
+     * @param personId the key
+     * @return the events of the key, in the order appended (or <code>null</code>
+     *         if the key has none)
+     */
+    public byte[] get(final long personId) {
+        final long slot = findSlot(personId, false/*don't create*/);
+        if(slot < 0L) return null;
+        /* else -- the key exists */
+
+        final long count = getLong(slot + SLOT_COUNT);
+        final byte[] events = new byte[(int)(count * RecordFile.EVENT_SIZE)];
+        long chunk = getLong(slot + SLOT_HEAD);
+        for(long i=0; i<count; i++) {
+            if((i > 0) && ((i % EVENTS_PER_CHUNK) == 0L))
+                chunk = getLong(chunk + CHUNK_NEXT);
+            /* else -- in the same chunk */
+            final long position = chunk + CHUNK_EVENTS + ((i % EVENTS_PER_CHUNK) * RecordFile.EVENT_SIZE);
+            final int offset = (int)(i * RecordFile.EVENT_SIZE);
+            ByteUtil.longToBytes(getLong(position), events, offset);
+            ByteUtil.longToBytes(getLong(position + 8), events, offset + 8);
+        }
+        return events;
+    }
+
+    /**
+     * @param create <code>true</code> if a slot should be taken for the key if
+     *        it isn't held
+     * @return the offset of the slot of the key or <code>-1</code> if it isn't
+     *         held (and wasn't created). A created slot holds no events.
+     */
+    private long findSlot(final long personId, final boolean create) {
+        long bucket = HEADER_SIZE + ((HashUtil.hash(personId) & bucketMask) * BLOCK_SIZE);
+        while(true) {
+            final long used = getLong(bucket + BUCKET_USED);
+            for(long i=0; i<used; i++) {
+                final long slot = bucket + BUCKET_SLOTS + (i * SLOT_SIZE);
+                if(getLong(slot + SLOT_KEY) == personId) return slot;
+                /* else -- another key */
+            }
+
+            if(used < SLOTS_PER_BUCKET) {
+                if(!create) return -1L;
+                /* else -- take the next slot of the bucket */
+                final long slot = bucket + BUCKET_SLOTS + (used * SLOT_SIZE);
+                putLong(slot + SLOT_KEY, personId);
+                putLong(bucket + BUCKET_USED, used + 1);
+                keyCount++;
+                return slot;
+            } /* else -- the bucket is full */
+
+            long next = getLong(bucket + BUCKET_NEXT);
+            if(next == 0L) {
+                if(!create) return -1L;
+                /* else -- chain an overflow bucket */
+                next = allocateBlock();
+                overflowBucketCount++;
+                putLong(bucket + BUCKET_NEXT, next);
+            } /* else -- look in the overflow bucket */
+            bucket = next;
+        }
+    }
+
+    /**
+     * @return the offset of a new (zeroed) bucket or chunk at the end of the
+     *         table
+     */
+    private long allocateBlock() {
+        final long block = end;
+        ensureCapacity(block + BLOCK_SIZE);
+        end = block + BLOCK_SIZE;
+        return block;
+    }
+
+    // ========================================================================
+    /**
+     * Writes the header and then every modified page of the file to disk.
+     */
+    public void force() {
+        writeHeader(false/*still open*/);
+        forceRegions();
+    }
+
+    /**
+     * Marks the table as cleanly closed, writes it to disk and closes the file.
+     * The table can't be used once closed.
+     */
+    public void close() {
+        writeHeader(true/*closed*/);
+        forceRegions();
+        closeFile();
+    }
+
+    /**
+     * Closes the table and deletes its file.
+     */
+    public void delete() {
+        close();
+        if(!new File(path).delete())
+            throw new RuntimeException("Could not delete file " + path);
+        /* else -- deleted */
+    }
+
+    /**
+     * Writes the counts to the header. A table that is open is marked as not
+     * clean so that it is refused if it isn't closed.
+     */
+    private void writeHeader(final boolean clean) {
+        putLong(HEADER_END, end);
+        putLong(HEADER_KEY_COUNT, keyCount);
+        putLong(HEADER_EVENT_COUNT, eventCount);
+        putLong(HEADER_OVERFLOW_BUCKET_COUNT, overflowBucketCount);
+        putLong(HEADER_CHUNK_COUNT, chunkCount);
+        putLong(HEADER_CLEAN, clean ? 1L : 0L);
+    }
+
+    /**
+     * Closes the file. Its regions are unmapped once they are collected.
+     */
+    private void closeFile() {
+        regions = null;
+        try {
+            file.close();
+        } catch(IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not close file " + path);
+        }
+    }
+
+    private void forceRegions() {
+        for(final MappedByteBuffer region : regions)
+            region.force();
+    }
+
+    // ========================================================================
+    // the file
+    /**
+     * Extends the file (and its mapping) until it holds at least the given
+     * number of bytes. Until it is a whole region the last region only grows
+     * to twice its size at a time (it is remapped rather than copied).
+     */
+    private void ensureCapacity(final long bytes) {
+        if(bytes <= fileSize) return;
+        /* else -- the file must grow */
+
+        // the last region doubles until it is whole
+        final int lastRegion = (int)((bytes - 1) >>> REGION_BITS);
+        final long lastStart = (long)lastRegion << REGION_BITS;
+        long lastSize = Math.max(MIN_MAPPING_SIZE, fileSize - lastStart);
+        while(lastSize < (bytes - lastStart))
+            lastSize <<= 1;
+        lastSize = Math.min(lastSize, REGION_SIZE);
+
+        final MappedByteBuffer[] grown = new MappedByteBuffer[lastRegion + 1];
+        System.arraycopy(regions, 0, grown, 0, Math.min(regions.length, grown.length));
+        for(int i=0; i<lastRegion; i++) {
+            if((grown[i] == null) || (grown[i].capacity() < REGION_SIZE))
+                grown[i] = map((long)i << REGION_BITS, REGION_SIZE);
+            /* else -- already whole */
+        }
+        grown[lastRegion] = map(lastStart, (int)lastSize);
+        regions = grown;
+        fileSize = lastStart + lastSize;
+    }
+
+    /**
+     * Maps a region of the file, extending the file if it is shorter.
+     */
+    private MappedByteBuffer map(final long position, final int size) {
+        try {
+            final MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+            region.order(ByteOrder.nativeOrder());
+            return region;
+        } catch(IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not map file " + path);
+        }
+    }
+
+    private long getLong(final long offset) {
+        return regions[(int)(offset >>> REGION_BITS)].getLong((int)(offset & OFFSET_MASK));
+    }
+
+    private void putLong(final long offset, final long value) {
+        regions[(int)(offset >>> REGION_BITS)].putLong((int)(offset & OFFSET_MASK), value);
+    }
+
+    // ========================================================================
+    // footprint
+    /**
+     * @return the number of distinct keys
+     */
+    public long getKeyCount() {
+        return keyCount;
+    }
+
+    /**
+     * @return the number of events appended
+     */
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * @return the number of buckets (not counting overflow buckets)
+     */
+    public long getBucketCount() {
+        return bucketMask + 1;
+    }
+
+    /**
+     * @return the number of overflow buckets chained to full buckets
+     */
+    public long getOverflowBucketCount() {
+        return overflowBucketCount;
+    }
+
+    /**
+     * @return the number of chunks allocated
+     */
+    public long getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @return the bytes of the file that are in use
+     */
+    public long getUsedBytes() {
+        return end;
+    }
+
+    /**
+     * @return the length of the file
+     */
+    public long getFileBytes() {
+        return fileSize;
+    }
+
+    /**
+     * @return the footprint in a form fit for a log line
+     */
+    @Override
+    public String toString() {
+        return keyCount + " keys, " + eventCount + " events in " + (bucketMask + 1) + " buckets (" + overflowBucketCount + " overflow) and " + chunkCount + " chunks; " +
+               end + " bytes used of a " + fileSize + " byte file; " + ((eventCount == 0L) ? 0L : (end / eventCount)) + " bytes per event";
+    }
+}
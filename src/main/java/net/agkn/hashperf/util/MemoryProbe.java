@@ -0,0 +1,300 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Samples the memory of the process more accurately than
+ * <code>totalMemory() - freeMemory()</code>, which counts garbage that has
+ * not yet been collected:
+ * <ul>
+ *   <li>the live heap: the heap in use just after the last collection of
+ *       each pool;</li>
+ *   <li>the heap in use right now (including garbage);</li>
+ *   <li>the direct and mapped buffer pools (Java 7 and later);</li>
+ *   <li>the resident set size of the process (Linux), which includes native
+ *       memory such as BDB's cache or Kyoto Cabinet's database.</li>
+ * </ul>
+ * Any value that cannot be sampled on this JVM or OS is <code>-1</code>.
+ *
+ * Sampling reads <code>/proc</code> and queries the MBean server so it is too
+ * slow for a timed loop. While a run is timed the memory is instead sampled by
+ * a background thread (see {@link #startSampling()}) and the loop only takes
+ * the most recent sample (see {@link #latest()}).
+ */
+public class MemoryProbe {
+    // the columns of Sample#toCsv()
+    public static final String CSV_HEADER = "live_heap,used_heap,direct,mapped,rss";
+    // the number of fields of a Sample (see Sample#copyTo())
+    public static final int FIELD_COUNT = 5;
+
+    // the buffer pool MBeans (see java.lang.management.BufferPoolMXBean,
+    // which is only in Java 7 and later)
+    private static final String DIRECT_POOL = "java.nio:type=BufferPool,name=direct";
+    private static final String MAPPED_POOL = "java.nio:type=BufferPool,name=mapped";
+
+    private static final String PROC_STATUS = "/proc/self/status";
+    private static final String RSS_FIELD = "VmRSS:";
+
+    // the time between background samples
+    public static final long SAMPLE_INTERVAL_MILLIS = 100L;
+
+    // ************************************************************************
+    private final List<MemoryPoolMXBean> heapPools;
+    private final MBeanServer server;
+
+    // the background sampler (only between startSampling() and stopSampling())
+    private Timer sampleTimer;
+    // the most recent background sample
+    private volatile Sample latest;
+
+    public MemoryProbe() {
+        heapPools = new ArrayList<MemoryPoolMXBean>();
+        for(final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if(pool.getType() == MemoryType.HEAP)
+                heapPools.add(pool);
+            /* else -- code cache, perm gen, etc */
+        }
+        server = ManagementFactory.getPlatformMBeanServer();
+    }
+
+    // ========================================================================
+    /**
+     * Samples the memory without forcing a collection. The live heap is as of
+     * the last collection of each pool.
+     */
+    public Sample sample() {
+        long liveHeap = 0L;
+        long usedHeap = 0L;
+        for(final MemoryPoolMXBean pool : heapPools) {
+            final MemoryUsage collectionUsage = pool.getCollectionUsage();
+            if(collectionUsage != null)
+                liveHeap += collectionUsage.getUsed();
+            else
+                liveHeap += pool.getUsage().getUsed()/*pool is never collected*/;
+            usedHeap += pool.getUsage().getUsed();
+        }
+        return new Sample(liveHeap, usedHeap, bufferPoolUsed(DIRECT_POOL), bufferPoolUsed(MAPPED_POOL), readRss());
+    }
+
+    /**
+     * Forces a full collection and then samples the memory, so that the live
+     * heap is current.
+     */
+    public Sample sampleAfterGC() {
+        System.gc();
+        return sample();
+    }
+
+    /**
+     * Samples the memory now and then every {@link #SAMPLE_INTERVAL_MILLIS} on
+     * a background thread until {@link #stopSampling()} is called.
+     */
+    public synchronized void startSampling() {
+        if(sampleTimer != null) return;
+        latest = sample();
+        sampleTimer = new Timer("memory-probe-sample", true/*daemon*/);
+        sampleTimer.schedule(new TimerTask() {
+            public void run() {
+                latest = sample();
+            }
+        }, SAMPLE_INTERVAL_MILLIS, SAMPLE_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Stops the background sampling. {@link #latest()} keeps the last sample.
+     */
+    public synchronized void stopSampling() {
+        if(sampleTimer == null) return;
+        sampleTimer.cancel();
+        sampleTimer = null;
+    }
+
+    /**
+     * @return the most recent background sample (at most about
+     *         {@link #SAMPLE_INTERVAL_MILLIS} old while sampling) or
+     *         <code>null</code> if {@link #startSampling()} has never been
+     *         called
+     */
+    public Sample latest() {
+        return latest;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * @return the bytes used by the named buffer pool or <code>-1</code> if
+     *         there is no such pool
+     */
+    private long bufferPoolUsed(final String poolName) {
+        try {
+            return ((Number)server.getAttribute(new ObjectName(poolName), "MemoryUsed")).longValue();
+        } catch(Exception e) {
+            return -1L/*not available before Java 7*/;
+        }
+    }
+
+    /**
+     * @return the resident set size of the process in bytes or <code>-1</code>
+     *         if it is not available
+     */
+    private static long readRss() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(PROC_STATUS));
+            String line;
+            while((line = reader.readLine()) != null) {
+                if(line.startsWith(RSS_FIELD)) {
+                    // e.g. "VmRSS:     123456 kB"
+                    final String[] fields = line.substring(RSS_FIELD.length()).trim().split("\\s+");
+                    return Long.parseLong(fields[0]) * 1024L;
+                } /* else -- keep looking */
+            }
+            return -1L;
+        } catch(IOException e) {
+            return -1L/*not Linux*/;
+        } catch(NumberFormatException e) {
+            return -1L;
+        } finally {
+            if(reader != null) {
+                try {
+                    reader.close();
+                } catch(IOException e) {
+                    /* nothing more to do */
+                }
+            } /* else -- never opened */
+        }
+    }
+
+    // ************************************************************************
+    /**
+     * The memory of the process at a point in time, in bytes.
+     */
+    public static class Sample {
+        private final long liveHeap;
+        private final long usedHeap;
+        private final long direct;
+        private final long mapped;
+        private final long rss;
+
+        public Sample(final long liveHeap, final long usedHeap, final long direct, final long mapped, final long rss) {
+            this.liveHeap = liveHeap;
+            this.usedHeap = usedHeap;
+            this.direct = direct;
+            this.mapped = mapped;
+            this.rss = rss;
+        }
+
+        /**
+         * @param src the fields of a sample as written by {@link #copyTo(long[], int)}
+         * @param offset the index of the first field
+         */
+        public static Sample from(final long[] src, final int offset) {
+            return new Sample(src[offset], src[offset + 1], src[offset + 2], src[offset + 3], src[offset + 4]);
+        }
+
+        /**
+         * Copies the {@link MemoryProbe#FIELD_COUNT} fields of the sample (in
+         * the order of {@link MemoryProbe#CSV_HEADER}).
+         *
+         * @param dst the array into which the fields are copied
+         * @param offset the index of the first field
+         */
+        public void copyTo(final long[] dst, final int offset) {
+            dst[offset] = liveHeap;
+            dst[offset + 1] = usedHeap;
+            dst[offset + 2] = direct;
+            dst[offset + 3] = mapped;
+            dst[offset + 4] = rss;
+        }
+
+        /**
+         * @return the heap in use just after the last collection
+         */
+        public long getLiveHeap() {
+            return liveHeap;
+        }
+
+        /**
+         * @return the heap in use, including garbage
+         */
+        public long getUsedHeap() {
+            return usedHeap;
+        }
+
+        /**
+         * @return the memory used by direct buffers or <code>-1</code>
+         */
+        public long getDirect() {
+            return direct;
+        }
+
+        /**
+         * @return the memory used by mapped buffers or <code>-1</code>
+         */
+        public long getMapped() {
+            return mapped;
+        }
+
+        /**
+         * @return the resident set size of the process or <code>-1</code>
+         */
+        public long getRss() {
+            return rss;
+        }
+
+        /**
+         * @param baseline the sample taken before anything was stored
+         * @param count the number of entries (or records) stored
+         * @return the growth in the live heap per entry since the baseline
+         */
+        public double getHeapBytesPer(final Sample baseline, final long count) {
+            return (count == 0L) ? 0.0 : ((liveHeap - baseline.liveHeap) / (double)count);
+        }
+
+        /**
+         * @param baseline the sample taken before anything was stored
+         * @param count the number of entries (or records) stored
+         * @return the growth in the resident set size per entry since the
+         *         baseline or <code>-1</code> if it is not available
+         */
+        public double getRssBytesPer(final Sample baseline, final long count) {
+            if((rss < 0L) || (baseline.rss < 0L)) return -1.0;
+            return (count == 0L) ? 0.0 : ((rss - baseline.rss) / (double)count);
+        }
+
+        /**
+         * @return the sample in the columns of {@link MemoryProbe#CSV_HEADER}
+         */
+        public String toCsv() {
+            return liveHeap + "," + usedHeap + "," + direct + "," + mapped + "," + rss;
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return "live heap " + liveHeap + ", used heap " + usedHeap + ", direct " + direct + ", mapped " + mapped + ", rss " + rss;
+        }
+    }
+}
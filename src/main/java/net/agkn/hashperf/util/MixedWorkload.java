@@ -0,0 +1,348 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+/**
+ * Interleaves lookups, overwrites and deletes with the appends of a record
+ * stream in configurable ratios. Appends and overwrites write the next record
+ * of the stream; gets and deletes choose a key that has already been written
+ * according to a {@link KeyPolicy}. The same {@link Spec} (including the seed)
+ * always yields the same sequence of operations for the same stream.
+ *
+ * Keys are chosen from a bounded sample of the writes (see {@link Spec#sample})
+ * that is allocated when a run's {@link Generator} is created, so that the
+ * workload adds neither garbage nor a footprint that grows with the stream to
+ * the stores being measured.
+ *
+ * A spec is a list of comma-separated <code>name=value</code> pairs, e.g.:
+ *
+ * <pre>
+ *   get=70,append=20,overwrite=5,delete=5,keys=zipf,exponent=0.99
+ * </pre>
+ */
+public class MixedWorkload {
+    /**
+     * An operation on a store.
+     */
+    public static enum Operation {
+        /**
+         * Looks up the events of a key.
+         */
+        GET,
+
+        /**
+         * Appends the next record's event to its key.
+         */
+        APPEND,
+
+        /**
+         * Replaces the events of the next record's key with its event.
+         */
+        OVERWRITE,
+
+        /**
+         * Removes a key.
+         */
+        DELETE;
+
+        /**
+         * @return the name used in specs and stats files
+         */
+        public String getName() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * How gets and deletes choose among the keys written so far. Each write
+     * adds its key to the keys that may be chosen (once per write, so a key
+     * that is written often is chosen more often). Once there are more writes
+     * than the sample holds the choice is approximate, as described for each
+     * policy.
+     */
+    public static enum KeyPolicy {
+        /**
+         * Recently written keys are favored: the key is that of the write a
+         * geometrically distributed number of writes ago (with a mean of
+         * <code>window</code>). The sample holds the latest writes, so no
+         * write further back than the sample is chosen.
+         */
+        RECENT,
+
+        /**
+         * Every write is equally likely. The sample is a uniform random sample
+         * (reservoir) of the writes.
+         */
+        UNIFORM,
+
+        /**
+         * The write of rank <code>k</code> (in the order written) is chosen
+         * with probability proportional to <code>1 / k^exponent</code>, so the
+         * keys written first stay the most popular. Half of the sample holds
+         * the first writes (the most popular ranks); a rank beyond those is
+         * chosen uniformly from a random sample of the later writes held in
+         * the other half.
+         */
+        ZIPF
+    }
+
+    /**
+     * The parameters of a mixed workload.
+     */
+    public static class Spec {
+        // the relative weights of the operations (indexed by ordinal)
+        public final double[] weights = { 70.0, 20.0, 5.0, 5.0 };
+
+        public KeyPolicy keyPolicy = KeyPolicy.UNIFORM;
+        // ZIPF: the exponent (skew)
+        public double exponent = 0.99;
+        // RECENT: the mean number of writes back from the latest
+        public double window = 1000.0;
+        // the number of written keys held for choosing among
+        public int sample = 1 << 20;
+
+        public long seed = 1L;
+
+        /**
+         * Parses a spec of comma-separated <code>name=value</code> pairs.
+         * Unnamed parameters keep their defaults.
+         */
+        public static Spec parse(final String text) {
+            final Spec spec = new Spec();
+            for(final String pair : text.split(",")) {
+                if(pair.length() == 0) continue;
+                final int separator = pair.indexOf('=');
+                if(separator < 0)
+                    throw new IllegalArgumentException("Expected name=value but got '" + pair + "'.");
+                final String name = pair.substring(0, separator).trim();
+                final String value = pair.substring(separator + 1).trim();
+                if(name.equals("get"))
+                    spec.weights[Operation.GET.ordinal()] = Double.parseDouble(value);
+                else if(name.equals("append"))
+                    spec.weights[Operation.APPEND.ordinal()] = Double.parseDouble(value);
+                else if(name.equals("overwrite"))
+                    spec.weights[Operation.OVERWRITE.ordinal()] = Double.parseDouble(value);
+                else if(name.equals("delete"))
+                    spec.weights[Operation.DELETE.ordinal()] = Double.parseDouble(value);
+                else if(name.equals("keys"))
+                    spec.keyPolicy = KeyPolicy.valueOf(value.toUpperCase());
+                else if(name.equals("exponent"))
+                    spec.exponent = Double.parseDouble(value);
+                else if(name.equals("window"))
+                    spec.window = Double.parseDouble(value);
+                else if(name.equals("sample"))
+                    spec.sample = Integer.parseInt(value);
+                else if(name.equals("seed"))
+                    spec.seed = Long.parseLong(value);
+                else
+                    throw new IllegalArgumentException("Unknown mixed workload parameter '" + name + "'.");
+            }
+            return spec;
+        }
+
+        /**
+         * @return the spec as set by <code>-Dhashperf.mix</code> (or the
+         *         defaults)
+         */
+        public static Spec fromSystemProperties() {
+            final String text = System.getProperty("hashperf.mix");
+            return (text == null) ? new Spec() : parse(text);
+        }
+
+        /**
+         * @return the spec in the form that {@link #parse(String)} takes
+         */
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder();
+            for(final Operation operation : Operation.values())
+                builder.append(operation.getName()).append('=').append(weights[operation.ordinal()]).append(',');
+            builder.append("keys=").append(keyPolicy.name().toLowerCase());
+            if(keyPolicy == KeyPolicy.ZIPF)
+                builder.append(",exponent=").append(exponent);
+            else if(keyPolicy == KeyPolicy.RECENT)
+                builder.append(",window=").append(window);
+            /* else -- no parameter */
+            builder.append(",sample=").append(sample);
+            builder.append(",seed=").append(seed);
+            return builder.toString();
+        }
+    }
+
+    // ************************************************************************
+    private final Spec spec;
+    // the cumulative probability of each operation (indexed by ordinal)
+    private final double[] cumulative;
+
+    /**
+     * @param spec the parameters of the workload
+     */
+    public MixedWorkload(final Spec spec) {
+        final Operation[] operations = Operation.values();
+        double total = 0.0;
+        for(final Operation operation : operations) {
+            if(spec.weights[operation.ordinal()] < 0.0)
+                throw new IllegalArgumentException("The weight of " + operation.getName() + " cannot be negative.");
+            total += spec.weights[operation.ordinal()];
+        }
+        if(spec.weights[Operation.APPEND.ordinal()] + spec.weights[Operation.OVERWRITE.ordinal()] <= 0.0)
+            throw new IllegalArgumentException("Either append or overwrite must have a positive weight.");
+        if((spec.keyPolicy == KeyPolicy.ZIPF) && (spec.exponent <= 0.0))
+            throw new IllegalArgumentException("The Zipf exponent must be positive.");
+        if((spec.keyPolicy == KeyPolicy.RECENT) && (spec.window < 1.0))
+            throw new IllegalArgumentException("The recent window must be at least one.");
+        if(spec.sample < 2)
+            throw new IllegalArgumentException("The key sample must hold at least two keys.");
+
+        this.spec = spec;
+        this.cumulative = new double[operations.length];
+        double sum = 0.0;
+        for(final Operation operation : operations) {
+            sum += spec.weights[operation.ordinal()];
+            cumulative[operation.ordinal()] = sum / total;
+        }
+    }
+
+    /**
+     * @return the parameters of the workload
+     */
+    public Spec getSpec() {
+        return spec;
+    }
+
+    /**
+     * @return a new generator of the operations of a single run
+     */
+    public Generator newGenerator() {
+        return new Generator();
+    }
+
+    // ========================================================================
+    /**
+     * Chooses the operations of a single run and the keys that they read or
+     * delete. Not thread-safe.
+     */
+    public class Generator {
+        private final SyntheticWorkload.SplitMix64 random;
+
+        // the sample of the written keys (see KeyPolicy) and the number of
+        // writes
+        private final long[] sample;
+        private long writeCount;
+
+        // ZIPF: the first writes (in order) are held in the first 'head'
+        // slots and a reservoir of the later writes in the rest
+        private final int head;
+        // ZIPF: the sampler over the first 'zipfKeys' writes (rebuilt as the
+        // writes double)
+        private SyntheticWorkload.ZipfSampler zipf;
+        private long zipfKeys;
+
+        Generator() {
+            this.random = new SyntheticWorkload.SplitMix64(spec.seed);
+            this.sample = new long[spec.sample];
+            this.writeCount = 0L;
+            this.head = spec.sample / 2;
+        }
+
+        /**
+         * @return the next operation. This is always a write until a key has
+         *         been written.
+         */
+        public Operation nextOperation() {
+            final double u = random.nextDouble();
+            Operation operation = Operation.DELETE/*in case of rounding*/;
+            for(final Operation candidate : Operation.values()) {
+                if(u < cumulative[candidate.ordinal()]) {
+                    operation = candidate;
+                    break;
+                } /* else -- a later operation */
+            }
+            if((writeCount == 0L) && ((operation == Operation.GET) || (operation == Operation.DELETE)))
+                return (spec.weights[Operation.APPEND.ordinal()] > 0.0) ? Operation.APPEND : Operation.OVERWRITE;
+            /* else -- there is a key to choose */
+            return operation;
+        }
+
+        /**
+         * Records a write of a key so that it may be chosen by later gets and
+         * deletes.
+         */
+        public void addKey(final long key) {
+            switch(spec.keyPolicy) {
+                case RECENT:
+                    sample[(int)(writeCount % sample.length)] = key;
+                    break;
+                case ZIPF:
+                    if(writeCount < sample.length)
+                        sample[(int)writeCount] = key;
+                    else
+                        replace(head, writeCount - head, key)/*the writes after the head*/;
+                    break;
+                default/*UNIFORM*/:
+                    if(writeCount < sample.length)
+                        sample[(int)writeCount] = key;
+                    else
+                        replace(0, writeCount, key);
+                    break;
+            }
+            writeCount++;
+        }
+
+        /**
+         * Adds a key to a full reservoir (algorithm R): it replaces a random
+         * key with the probability that keeps the reservoir a uniform sample.
+         *
+         * @param start the index of the first slot of the reservoir
+         * @param seen the number of keys offered to the reservoir before this one
+         */
+        private void replace(final int start, final long seen, final long key) {
+            final long index = random.nextLong(seen + 1);
+            if(index < (sample.length - start))
+                sample[start + (int)index] = key;
+            /* else -- not kept */
+        }
+
+        /**
+         * @return a key that has been written, chosen by the {@link KeyPolicy}.
+         *         At least one key must have been written.
+         */
+        public long nextKey() {
+            final int held = (int)Math.min(writeCount, sample.length);
+            switch(spec.keyPolicy) {
+                case RECENT: {
+                    // geometric with the given mean (by inversion)
+                    final double back = -Math.log(1.0 - random.nextDouble()) * spec.window;
+                    final long write = (back >= held) ? (writeCount - held) : (writeCount - 1 - (long)back);
+                    return sample[(int)(write % sample.length)];
+                }
+                case ZIPF: {
+                    if((zipf == null) || (writeCount >= 2 * zipfKeys)) {
+                        zipfKeys = writeCount;
+                        zipf = new SyntheticWorkload.ZipfSampler(zipfKeys, spec.exponent);
+                    } /* else -- the sampler still covers at least half of the keys */
+                    final long rank = zipf.sample(random);
+                    if((rank <= head) || (writeCount <= sample.length))
+                        return sample[(int)(rank - 1)];
+                    /* else -- a later write */
+                    return sample[head + (int)random.nextLong(sample.length - head)];
+                }
+                default/*UNIFORM*/:
+                    return sample[(int)random.nextLong(held)];
+            }
+        }
+
+        /**
+         * @return the number of writes so far
+         */
+        public long getKeyCount() {
+            return writeCount;
+        }
+    }
+}
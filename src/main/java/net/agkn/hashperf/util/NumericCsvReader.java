@@ -0,0 +1,248 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A CSV reader specialized for all-numeric, unquoted files. It scans raw bytes
+ * (no charset decoding) and parses each delimited column straight into a
+ * reused <code>long[]</code>, so no garbage is created per record. It is
+ * reusable but <i>not</i> thread-safe.
+ *
+ * Lines are terminated as with {@link java.io.BufferedReader#readLine()}
+ * (<code>\n</code>, <code>\r</code> or <code>\r\n</code>). Any line containing
+ * something other than digits, a leading minus sign and the delimiter (e.g.
+ * text qualifiers, escapes or whitespace), or a column that may overflow a
+ * <code>long</code>, is handed to a {@link CsvRecordReader} with the full
+ * {@link CsvRecordReader.ParseStrategy} and parsed with {@link Long#parseLong(String)},
+ * so the results are always the same as the general path.
+ */
+public class NumericCsvReader {
+    // initial / default values
+    private static final int BUFFER_SIZE = 8192 * 16 * 16/*2M*/;
+    private static final int COLUMN_COUNT = 10;
+
+    // the most digits that can't overflow a long
+    private static final int MAX_SAFE_DIGITS = 18;
+
+    // ************************************************************************
+    // the stream being read. It is closed at EOF.
+    private final InputStream input;
+
+    // the column delimiter
+    private final byte delimiter;
+
+    // the general-purpose reader that is used for lines that can't be parsed
+    // by the fast path
+    private final CsvRecordReader fallbackReader;
+
+    // ------------------------------------------------------------------------
+    // input buffer
+    private byte[] buffer;
+    private int bufferPosition = 0/*default*/;
+    private int bufferLimit = 0/*default*/;
+    private boolean endOfInput = false/*default*/;
+
+    // set when the last line ended in a CR so that a following LF is skipped
+    private boolean skipLineFeed = false/*default*/;
+
+    // the parsed columns of the current record
+    private long[] values;
+
+    // ========================================================================
+    /**
+     * @param  input the stream to read from. This cannot be <code>null</code>.
+     * @param  delimiter the character to use as the column delimiter. It must
+     *         be a single-byte (ASCII) character.
+     */
+    public NumericCsvReader(final InputStream input, final char delimiter) {
+        this.input = input;
+        this.delimiter = (byte)delimiter;
+        this.fallbackReader = new CsvRecordReader(delimiter);
+        this.buffer = new byte[BUFFER_SIZE];
+        this.values = new long[COLUMN_COUNT];
+    }
+
+    // ========================================================================
+    /**
+     * Reads and parses the next record.
+     *
+     * @return the number of columns read (available from {@link #getValues()})
+     *         or <code>-1</code> if the end of the input was reached
+     */
+    public int readRecord() {
+        // find the end of the line, refilling the buffer as necessary
+        int lineEnd = bufferPosition;
+        while(true) {
+            if(lineEnd >= bufferLimit) {
+                if(endOfInput) break/*the last line is unterminated*/;
+                lineEnd -= bufferPosition;
+                fill();
+                lineEnd += bufferPosition;
+                continue;
+            } /* else -- more data in the buffer */
+
+            final byte currentByte = buffer[lineEnd];
+            if(skipLineFeed) {
+                skipLineFeed = false;
+                if(currentByte == '\n') {
+                    bufferPosition++;
+                    lineEnd++;
+                    continue;
+                } /* else -- not the second half of a CRLF */
+            } /* else -- not following a CR */
+
+            if((currentByte == '\n') || (currentByte == '\r'))
+                break;
+            lineEnd++;
+        }
+
+        final int lineStart = bufferPosition;
+        if(lineEnd >= bufferLimit) {
+            // EOF reached
+            if(lineEnd == lineStart) {
+                close();
+                return -1;
+            } /* else -- the last line had no terminator */
+            bufferPosition = lineEnd;
+        } else {
+            skipLineFeed = (buffer[lineEnd] == '\r');
+            bufferPosition = lineEnd + 1/*past the terminator*/;
+        }
+
+        final int columnCount = parseNumeric(lineStart, lineEnd);
+        if(columnCount >= 0)
+            return columnCount;
+        else/*not simple numeric data*/
+            return parseGeneral(lineStart, lineEnd);
+    }
+
+    /**
+     * @return the parsed columns of the last record read. Only the first
+     *         <code>n</code> elements are valid, where <code>n</code> is the
+     *         value returned by {@link #readRecord()}. The array is reused by
+     *         subsequent reads.
+     */
+    public long[] getValues() {
+        return values;
+    }
+
+    /**
+     * Closes the underlying stream. This may be called more than once.
+     */
+    public void close() {
+        endOfInput = true;
+        try {
+            input.close();
+        } catch(IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not close file.");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Parses the line in the buffer as delimited <code>long</code>s.
+     *
+     * @return the number of columns parsed or <code>-1</code> if the line
+     *         cannot be handled by the fast path
+     */
+    private int parseNumeric(final int lineStart, final int lineEnd) {
+        int columnCount = 0;
+        int columnStart = lineStart;
+        int position = lineStart;
+        long value = 0L;
+        boolean negative = false;
+        while(true) {
+            if((position == lineEnd) || (buffer[position] == delimiter)) {
+                // end of column
+                int digits = position - columnStart;
+                if(negative) digits--;
+                if((digits <= 0) || (digits > MAX_SAFE_DIGITS))
+                    return -1/*empty or may overflow*/;
+
+                if(columnCount == values.length)
+                    values = growValues(values);
+                values[columnCount++] = (negative ? -value : value);
+
+                if(position == lineEnd)
+                    return columnCount;
+                /* else -- more columns */
+                position++;
+                columnStart = position;
+                value = 0L;
+                negative = false;
+                continue;
+            } /* else -- within a column */
+
+            final int currentByte = buffer[position];
+            if((currentByte >= '0') && (currentByte <= '9'))
+                value = (value * 10) + (currentByte - '0');
+            else if((currentByte == '-') && (position == columnStart))
+                negative = true;
+            else/*anything else needs the general parser*/
+                return -1;
+            position++;
+        }
+    }
+
+    /**
+     * Parses the line in the buffer with the general CSV reader.
+     *
+     * @return the number of columns parsed
+     */
+    private int parseGeneral(final int lineStart, final int lineEnd) {
+        final String[] columns = fallbackReader.readRecord(new String(buffer, lineStart, (lineEnd - lineStart)/*default charset, as with FileReader*/));
+        final int columnCount = columns.length;
+        while(columnCount > values.length)
+            values = growValues(values);
+        for(int i=0; i<columnCount; i++)
+            values[i] = Long.parseLong(columns[i]);
+        return columnCount;
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Moves any unread bytes to the front of the buffer (growing it if a single
+     * line fills it) and reads more from the input.
+     */
+    private void fill() {
+        final int unread = bufferLimit - bufferPosition;
+        if(unread == buffer.length) {
+            final byte[] grown = new byte[buffer.length * 2];
+            System.arraycopy(buffer, bufferPosition, grown, 0, unread);
+            buffer = grown;
+        } else
+            System.arraycopy(buffer, bufferPosition, buffer, 0, unread);
+        bufferPosition = 0;
+        bufferLimit = unread;
+
+        try {
+            final int read = input.read(buffer, bufferLimit, (buffer.length - bufferLimit));
+            if(read < 0)
+                endOfInput = true;
+            else
+                bufferLimit += read;
+        } catch(IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not read line.");
+        }
+    }
+
+    /**
+     * @return a copy of <code>array</code> with twice the length
+     */
+    private static long[] growValues(final long[] array) {
+        final long[] grown = new long[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
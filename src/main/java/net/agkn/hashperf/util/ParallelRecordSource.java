@@ -0,0 +1,243 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses a CSV file on several threads. The file is cut into many small byte
+ * ranges which are dealt out to the parsing threads round-robin (see
+ * {@link RangeDealer}), and each range is parsed and
+ * encoded into {@link RecordChunk}s by the same {@link NumericCsvReader} /
+ * {@link RecordFile#encode(long[], int, byte[], int, byte[], int)} path as
+ * {@link CsvRecordSource}, so the records are byte-identical.
+ *
+ * Chunks are delivered in file order: the ranges are reassembled from each
+ * thread in turn. Since the ranges are small, every thread works a few ranges
+ * ahead of the consumer, bounded by its pool of chunks. Each thread's pool is recycled with {@link #recycle(RecordChunk)},
+ * so no garbage is created once the pools are full.
+ */
+public class ParallelRecordSource implements IRecordSource {
+    // initial / default values
+    public static final int DEFAULT_CHUNK_SIZE = 1024/*records*/;
+    public static final int DEFAULT_CHUNKS_PER_THREAD = 64;
+    public static final long DEFAULT_RANGE_SIZE = 512L * 1024L/*bytes*/;
+
+    // ************************************************************************
+    private final RangeDealer ranges;
+    private final int threadCount;
+    private final int rangeCount;
+
+    // per-thread pools of empty chunks
+    private final List<BlockingQueue<RecordChunk>> emptyChunks;
+    // per-thread queues of filled chunks
+    private final List<BlockingQueue<RecordChunk>> filledChunks;
+
+    private final ExecutorService executor;
+
+    // any failure on a parsing thread that is rethrown to the consumer
+    private volatile Throwable parseFailure;
+
+    // ------------------------------------------------------------------------
+    // consumer state
+    private int currentRange = 0/*delivery position*/;
+    private RecordChunk currentChunk;
+    private int chunkPosition;
+    private boolean exhausted = false/*default*/;
+
+    // ========================================================================
+    /**
+     * @param path the path to the input csv file
+     * @param threadCount the number of parsing threads
+     */
+    public ParallelRecordSource(final String path, final int threadCount) {
+        this(path, threadCount, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNKS_PER_THREAD, DEFAULT_RANGE_SIZE);
+    }
+
+    /**
+     * @param path the path to the input csv file
+     * @param threadCount the number of parsing threads
+     * @param chunkSize the number of records in each chunk
+     * @param chunksPerThread the number of chunks each thread may have in flight
+     * @param rangeSize the number of bytes in each range of the file
+     */
+    public ParallelRecordSource(final String path, final int threadCount, final int chunkSize, final int chunksPerThread, final long rangeSize) {
+        this.ranges = new RangeDealer(path, rangeSize);
+        this.rangeCount = ranges.getRangeCount();
+        this.threadCount = Math.min(threadCount, rangeCount)/*no idle threads*/;
+
+        emptyChunks = new ArrayList<BlockingQueue<RecordChunk>>(this.threadCount);
+        for(int i=0; i<this.threadCount; i++) {
+            final BlockingQueue<RecordChunk> pool = new ArrayBlockingQueue<RecordChunk>(chunksPerThread);
+            for(int j=0; j<chunksPerThread; j++)
+                pool.add(new RecordChunk(chunkSize, i));
+            emptyChunks.add(pool);
+        }
+        filledChunks = new ArrayList<BlockingQueue<RecordChunk>>(this.threadCount);
+        for(int i=0; i<this.threadCount; i++)
+            filledChunks.add(new ArrayBlockingQueue<RecordChunk>(chunksPerThread + 1/*end marker*/));
+
+        executor = Executors.newFixedThreadPool(this.threadCount, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(0);
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "record-parser-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        for(int i=0; i<this.threadCount; i++) {
+            final int thread = i;
+            executor.execute(new Runnable() {
+                public void run() {
+                    parseRanges(thread);
+                }
+            });
+        }
+        executor.shutdown()/*threads exit once the ranges are parsed*/;
+    }
+
+    // ========================================================================
+    /**
+     * Parses every <code>threadCount</code>-th range of the file (starting
+     * with the thread's own index) into chunks, ending each range with an
+     * empty chunk. Run on a parsing thread.
+     */
+    private void parseRanges(final int thread) {
+        final BlockingQueue<RecordChunk> empty = emptyChunks.get(thread);
+        final BlockingQueue<RecordChunk> filled = filledChunks.get(thread);
+        ranges.parse(thread, threadCount, new RangeDealer.IRangeParser() {
+            public void parseRange(final NumericCsvReader reader) throws InterruptedException {
+                final IRecordSource source = new RangeRecordSource(reader);
+                boolean more = true;
+                while(more) {
+                    final RecordChunk chunk = empty.take();
+                    more = chunk.fill(source);
+                    if(chunk.count > 0)
+                        filled.put(chunk);
+                    else
+                        empty.add(chunk);
+                }
+            }
+
+            public void endRange() throws InterruptedException {
+                filled.put(new RecordChunk(0, thread)/*end of the range*/);
+            }
+
+            public void fail(final Throwable t) {
+                parseFailure = t;
+            }
+        });
+    }
+
+    // ========================================================================
+    /**
+     * Takes the next chunk of records in file order. Each chunk must be handed
+     * back with {@link #recycle(RecordChunk)} once it has been read.
+     *
+     * @return the next chunk or <code>null</code> if every range has been
+     *         delivered
+     */
+    public RecordChunk nextChunk() {
+        try {
+            while(currentRange < rangeCount) {
+                final RecordChunk chunk = filledChunks.get(currentRange % threadCount).take();
+                if(chunk.count > 0) return chunk;
+                checkFailure();
+                currentRange++/*end of range*/;
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for records.");
+        }
+        return null;
+    }
+
+    /**
+     * Rethrows the failure of any parsing thread.
+     */
+    private void checkFailure() {
+        if(parseFailure != null)
+            throw new RuntimeException("Record parser failed.", parseFailure);
+        /* else -- no failure */
+    }
+
+    /**
+     * Hands a chunk taken with {@link #nextChunk()} back to its parser.
+     */
+    public void recycle(final RecordChunk chunk) {
+        emptyChunks.get(chunk.owner).add(chunk)/*never blocks since the pools are bounded*/;
+    }
+
+    // ------------------------------------------------------------------------
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.IRecordSource#read(byte[], int, byte[], int)
+     */
+    public boolean read(final byte[] personId, final int personIdOffset, final byte[] event, final int eventOffset) {
+        if((currentChunk == null) || (chunkPosition == currentChunk.count)) {
+            if(exhausted) return false;
+            if(currentChunk != null) recycle(currentChunk);
+            currentChunk = nextChunk();
+            chunkPosition = 0;
+            if(currentChunk == null) {
+                exhausted = true;
+                return false;
+            } /* else -- a chunk of records */
+        } /* else -- records remain in the current chunk */
+
+        System.arraycopy(currentChunk.data, RecordChunk.personIdOffset(chunkPosition), personId, personIdOffset, RecordFile.PERSON_ID_SIZE);
+        System.arraycopy(currentChunk.data, RecordChunk.eventOffset(chunkPosition), event, eventOffset, RecordFile.EVENT_SIZE);
+        chunkPosition++;
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.IRecordSource#close()
+     */
+    public void close() {
+        executor.shutdownNow()/*interrupts any parsers still running*/;
+    }
+
+    // ************************************************************************
+    /**
+     * Reads the records of a range of a CSV file.
+     */
+    private static class RangeRecordSource implements IRecordSource {
+        private final NumericCsvReader reader;
+
+        RangeRecordSource(final NumericCsvReader reader) {
+            this.reader = reader;
+        }
+
+        /* (non-Javadoc)
+         * @see net.agkn.hashperf.util.IRecordSource#read(byte[], int, byte[], int)
+         */
+        public boolean read(final byte[] personId, final int personIdOffset, final byte[] event, final int eventOffset) {
+            final int length = reader.readRecord();
+            if(length < 0) return false;
+
+            RecordFile.encode(reader.getValues(), length, personId, personIdOffset, event, eventOffset);
+            return true;
+        }
+
+        /* (non-Javadoc)
+         * @see net.agkn.hashperf.util.IRecordSource#close()
+         */
+        public void close() {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads, parses and encodes records on a separate thread so that the consumer
+ * (the store under test) doesn't wait for the next record to be prepared.
+ * Encoded records are handed over in chunks through a bounded ring: the reader
+ * fills empty chunks and the consumer returns them once they have been read, so
+ * no garbage is created once the ring is full.
+ *
+ * Each stage tracks how long it was busy and how long it waited on the other,
+ * along with the occupancy of the ring, so that a run can be identified as
+ * limited by the input or by the store.
+ */
+public class PipelinedRecordSource implements IRecordSource {
+    // initial / default values
+    public static final int DEFAULT_CHUNK_SIZE = 4096/*records*/;
+    public static final int DEFAULT_CHUNK_COUNT = 16;
+
+    // ************************************************************************
+    // the wrapped source, read on the reader thread
+    private final IRecordSource source;
+
+    // the ring. Chunks cycle from 'empty' to 'filled' and back.
+    private final int chunkCount;
+    private final BlockingQueue<RecordChunk> emptyChunks;
+    private final BlockingQueue<RecordChunk> filledChunks;
+
+    private final Thread readerThread;
+
+    // any failure on the reader thread that is rethrown to the consumer
+    private volatile Throwable readerFailure;
+
+    // ------------------------------------------------------------------------
+    // consumer state
+    private RecordChunk currentChunk;
+    private int chunkPosition;
+    private boolean exhausted = false/*default*/;
+
+    // ------------------------------------------------------------------------
+    // stats
+    // written by the reader thread and read once it has finished
+    private volatile long readerBusyNanos;
+    private volatile long readerIdleNanos;
+
+    private long consumerStartNanos;
+    private long consumerEndNanos;
+    private long consumerIdleNanos;
+
+    // the sum of the ring occupancy sampled at each chunk hand-off
+    private long occupancySum;
+    private long occupancySamples;
+
+    // ========================================================================
+    /**
+     * @param source the source to read on the reader thread
+     */
+    public PipelinedRecordSource(final IRecordSource source) {
+        this(source, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNK_COUNT);
+    }
+
+    /**
+     * @param source the source to read on the reader thread
+     * @param chunkSize the number of records in each chunk
+     * @param chunkCount the number of chunks in the ring
+     */
+    public PipelinedRecordSource(final IRecordSource source, final int chunkSize, final int chunkCount) {
+        this.source = source;
+        this.chunkCount = chunkCount;
+        this.emptyChunks = new ArrayBlockingQueue<RecordChunk>(chunkCount);
+        this.filledChunks = new ArrayBlockingQueue<RecordChunk>(chunkCount + 1/*end marker*/);
+        for(int i=0; i<chunkCount; i++)
+            emptyChunks.add(new RecordChunk(chunkSize, 0/*single reader*/));
+
+        readerThread = new Thread(new Runnable() {
+            public void run() {
+                readAll();
+            }
+        }, "record-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    // ========================================================================
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.IRecordSource#read(byte[], int, byte[], int)
+     */
+    public boolean read(final byte[] personId, final int personIdOffset, final byte[] event, final int eventOffset) {
+        if((currentChunk == null) || (chunkPosition == currentChunk.count)) {
+            if(exhausted) return false;
+            if(!nextChunk()) return false;
+        } /* else -- records remain in the current chunk */
+
+        final int offset = chunkPosition * RecordFile.RECORD_SIZE;
+        System.arraycopy(currentChunk.data, offset, personId, personIdOffset, RecordFile.PERSON_ID_SIZE);
+        System.arraycopy(currentChunk.data, offset + RecordFile.PERSON_ID_SIZE, event, eventOffset, RecordFile.EVENT_SIZE);
+        chunkPosition++;
+        return true;
+    }
+
+    /**
+     * Returns the current chunk to the ring and takes the next filled chunk.
+     *
+     * @return <code>false</code> if the reader has no more records
+     */
+    private boolean nextChunk() {
+        if(currentChunk == null)
+            consumerStartNanos = System.nanoTime();
+        else
+            emptyChunks.add(currentChunk)/*never blocks since the ring is bounded*/;
+
+        occupancySum += filledChunks.size();
+        occupancySamples++;
+
+        final long waitStart = System.nanoTime();
+        try {
+            currentChunk = filledChunks.take();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for records.");
+        }
+        final long now = System.nanoTime();
+        consumerIdleNanos += (now - waitStart);
+        chunkPosition = 0;
+
+        if(currentChunk.count == 0) {
+            // end marker
+            exhausted = true;
+            consumerEndNanos = now;
+            if(readerFailure != null)
+                throw new RuntimeException("Record reader failed.", readerFailure);
+            return false;
+        } /* else -- a chunk of records */
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.IRecordSource#close()
+     */
+    public void close() {
+        if(readerThread.isAlive()) {
+            // the consumer stopped early
+            readerThread.interrupt();
+            try {
+                readerThread.join();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } /* else -- the reader has finished */
+        if(consumerEndNanos == 0L)
+            consumerEndNanos = System.nanoTime();
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Reads every record of the source into chunks. Run on the reader thread.
+     */
+    private void readAll() {
+        try {
+            boolean done = false;
+            while(!done) {
+                long start = System.nanoTime();
+                final RecordChunk chunk = emptyChunks.take();
+                long now = System.nanoTime();
+                readerIdleNanos += (now - start);
+
+                start = now;
+                done = !chunk.fill(source);
+                now = System.nanoTime();
+                readerBusyNanos += (now - start);
+
+                if(chunk.count > 0) {
+                    start = now;
+                    filledChunks.put(chunk);
+                    readerIdleNanos += (System.nanoTime() - start);
+                } /* else -- nothing read */
+            }
+        } catch(InterruptedException e) {
+            /* the consumer has gone away */
+        } catch(Throwable t) {
+            t.printStackTrace();
+            readerFailure = t;
+        } finally {
+            source.close();
+
+            // the end marker always fits since the filled queue has room for
+            // every chunk plus the marker
+            filledChunks.offer(new RecordChunk(0, 0));
+        }
+    }
+
+    // ========================================================================
+    // stats getters
+    /**
+     * @return the busy/idle time of the reader (read, parse and encode) stage.
+     *         Idle time is time spent waiting for the consumer to free a chunk.
+     */
+    public StageStats getReaderStats() {
+        return new StageStats("reader", readerBusyNanos, readerIdleNanos);
+    }
+
+    /**
+     * @return the busy/idle time of the consumer (store) stage. Idle time is
+     *         time spent waiting for the reader to fill a chunk.
+     */
+    public StageStats getConsumerStats() {
+        final long elapsed = consumerEndNanos - consumerStartNanos;
+        return new StageStats("store", Math.max(0L, elapsed - consumerIdleNanos), consumerIdleNanos);
+    }
+
+    /**
+     * @return the mean number of filled chunks waiting when the consumer took
+     *         the next chunk
+     */
+    public double getMeanOccupancy() {
+        return (occupancySamples == 0L) ? 0.0 : (occupancySum / (double)occupancySamples);
+    }
+
+    /**
+     * @return the number of chunks in the ring
+     */
+    public int getCapacity() {
+        return chunkCount;
+    }
+
+    /**
+     * @return <code>"input"</code> if the consumer spent longer waiting on the
+     *         reader than the reader spent waiting on the consumer, otherwise
+     *         <code>"store"</code>
+     */
+    public String getLimitingStage() {
+        return (consumerIdleNanos > readerIdleNanos) ? "input" : "store";
+    }
+}
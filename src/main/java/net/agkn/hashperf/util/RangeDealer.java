@@ -0,0 +1,105 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+/**
+ * Cuts a CSV file into many small byte ranges and deals them out to several
+ * parsers round-robin. Parser <code>i</code> of <code>n</code> parses ranges
+ * <code>i</code>, <code>i + n</code>, <code>i + 2n</code>, ... in turn and
+ * ends each one, so a consumer that takes range <code>r</code> from parser
+ * <code>r % n</code> sees the file in order. Each range is read with
+ * {@link FileSplitter#openLines(String, long, long)}, so every line is parsed
+ * exactly once.
+ */
+public class RangeDealer {
+    private final String path;
+    private final long size;
+    private final long rangeSize;
+    private final int rangeCount;
+
+    /**
+     * @param path the path to the input csv file
+     * @param rangeSize the number of bytes in each range of the file
+     */
+    public RangeDealer(final String path, final long rangeSize) {
+        this.path = path;
+        this.size = FileSplitter.size(path);
+        this.rangeSize = rangeSize;
+        this.rangeCount = (int)Math.max(1L, (size + rangeSize - 1) / rangeSize);
+    }
+
+    // ========================================================================
+    /**
+     * @return the number of ranges (at least one, even for an empty file)
+     */
+    public int getRangeCount() {
+        return rangeCount;
+    }
+
+    /**
+     * Parses the ranges dealt to a parser, ending each one. If the parser
+     * fails the failure is handed to it and the range being parsed is ended
+     * so that the consumer sees the failure. Run on the parser's thread.
+     *
+     * @param parser the index of the parser
+     * @param parserCount the number of parsers
+     * @param rangeParser parses and ends each range
+     */
+    public void parse(final int parser, final int parserCount, final IRangeParser rangeParser) {
+        boolean failed = false;
+        try {
+            for(int range=parser; range<rangeCount; range+=parserCount) {
+                final long start = range * rangeSize;
+                final NumericCsvReader reader = new NumericCsvReader(FileSplitter.openLines(path, start, Math.min(size, start + rangeSize)), ',');
+                try {
+                    rangeParser.parseRange(reader);
+                } finally {
+                    reader.close();
+                }
+                rangeParser.endRange();
+            }
+        } catch(InterruptedException e) {
+            /* the consumer has gone away */
+        } catch(Throwable t) {
+            t.printStackTrace();
+            rangeParser.fail(t);
+            failed = true;
+        }
+
+        if(failed) {
+            try {
+                rangeParser.endRange();
+            } catch(InterruptedException e) {
+                /* the consumer has gone away */
+            }
+        } /* else -- every range was ended */
+    }
+
+    // ************************************************************************
+    /**
+     * Parses the ranges dealt to one parser.
+     */
+    public interface IRangeParser {
+        /**
+         * Parses a whole range. The reader is closed afterwards.
+         */
+        void parseRange(NumericCsvReader reader) throws InterruptedException;
+
+        /**
+         * Marks the end of a range for the consumer.
+         */
+        void endRange() throws InterruptedException;
+
+        /**
+         * Records a failure for the consumer to rethrow once it sees the end
+         * of the range.
+         */
+        void fail(Throwable t);
+    }
+}
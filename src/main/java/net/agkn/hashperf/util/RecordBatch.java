@@ -0,0 +1,69 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+/**
+ * A reusable batch of records filled by {@link RecordIterator#nextBatch(RecordBatch)}.
+ * The <code>person_id</code>s and events are held back to back in two arrays
+ * so that a store can hand the whole batch to its bulk path.
+ */
+public class RecordBatch {
+    // initial / default values
+    public static final int DEFAULT_CAPACITY = 10000/*records*/;
+
+    // ************************************************************************
+    // the person ids, RecordFile.PERSON_ID_SIZE bytes each
+    public final byte[] personIds;
+    // the packed events, RecordFile.EVENT_SIZE bytes each
+    public final byte[] events;
+    // the maximum number of records held
+    public final int capacity;
+    // the number of valid records
+    public int size;
+
+    /**
+     * @param capacity the maximum number of records held
+     */
+    public RecordBatch(final int capacity) {
+        if(capacity < 1)
+            throw new IllegalArgumentException("Batch capacity must be positive but was " + capacity + ".");
+        this.capacity = capacity;
+        this.personIds = new byte[capacity * RecordFile.PERSON_ID_SIZE];
+        this.events = new byte[capacity * RecordFile.EVENT_SIZE];
+    }
+
+    // ========================================================================
+    /**
+     * @return the offset in {@link #personIds} of the given record
+     */
+    public static int personIdOffset(final int record) {
+        return record * RecordFile.PERSON_ID_SIZE;
+    }
+
+    /**
+     * @return the offset in {@link #events} of the given record
+     */
+    public static int eventOffset(final int record) {
+        return record * RecordFile.EVENT_SIZE;
+    }
+
+    /**
+     * Copies the <code>person_id</code> of the given record.
+     */
+    public void getPersonId(final int record, final byte[] personId) {
+        System.arraycopy(personIds, personIdOffset(record), personId, 0, RecordFile.PERSON_ID_SIZE);
+    }
+
+    /**
+     * Copies the packed event of the given record.
+     */
+    public void getEvent(final int record, final byte[] event) {
+        System.arraycopy(events, eventOffset(record), event, 0, RecordFile.EVENT_SIZE);
+    }
+}
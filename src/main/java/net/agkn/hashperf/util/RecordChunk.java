@@ -0,0 +1,73 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+/**
+ * A reusable block of encoded records (see {@link RecordFile}) that is handed
+ * between threads.
+ */
+public class RecordChunk {
+    // the encoded records, back to back
+    public final byte[] data;
+    // the maximum number of records held
+    public final int capacity;
+    // the number of valid records in 'data'. A count of zero marks the end of
+    // a stream of chunks.
+    public int count;
+
+    // the index of the producer that owns this chunk (for recycling)
+    final int owner;
+
+    /**
+     * @param capacity the maximum number of records held
+     * @param owner the index of the producer that owns this chunk
+     */
+    RecordChunk(final int capacity, final int owner) {
+        this.capacity = capacity;
+        this.owner = owner;
+        this.data = new byte[capacity * RecordFile.RECORD_SIZE];
+    }
+
+    /**
+     * Fills the chunk from the source.
+     *
+     * @return <code>false</code> if the source was exhausted (the chunk may
+     *         still hold records)
+     */
+    boolean fill(final IRecordSource source) {
+        int filled = 0;
+        int offset = 0;
+        boolean more = true;
+        while(filled < capacity) {
+            if(!source.read(data, offset, data, offset + RecordFile.PERSON_ID_SIZE)) {
+                more = false;
+                break;
+            } /* else -- a record was read */
+            filled++;
+            offset += RecordFile.RECORD_SIZE;
+        }
+        count = filled;
+        return more;
+    }
+
+    /**
+     * @return the offset in {@link #data} of the <code>person_id</code> of the
+     *         given record
+     */
+    public static int personIdOffset(final int record) {
+        return record * RecordFile.RECORD_SIZE;
+    }
+
+    /**
+     * @return the offset in {@link #data} of the packed event of the given record
+     */
+    public static int eventOffset(final int record) {
+        return (record * RecordFile.RECORD_SIZE) + RecordFile.PERSON_ID_SIZE;
+    }
+}
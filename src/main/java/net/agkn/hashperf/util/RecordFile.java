@@ -0,0 +1,170 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The pre-compiled binary record format. A record file is a sequence of
+ * fixed-width records, each of which is the 8-byte <code>person_id</code>
+ * followed by the 16-byte packed event, exactly as yielded by
+ * {@link RecordIterator#nextPersonId()} and {@link RecordIterator#nextEvent()}.
+ * There is no header.
+ *
+ * Running this class converts a CSV file into a record file:
+ *
+ * <pre>
+ *   RecordFile /path/to/data.csv /path/to/data.rec
+ * </pre>
+ *
+ * Any path ending in {@link #EXTENSION} is read as a record file by
+ * {@link #open(String)} (and so by {@link RecordIterator}).
+ */
+public class RecordFile {
+    // the file extension that identifies a record file
+    public static final String EXTENSION = ".rec";
+
+    // record layout
+    public static final int PERSON_ID_SIZE = 8;
+    public static final int EVENT_SIZE = 16;
+    public static final int RECORD_SIZE = PERSON_ID_SIZE + EVENT_SIZE;
+
+    // the largest region that is mapped at once. It is a whole number of
+    // records so that no record spans two regions.
+    private static final int MAX_REGION_SIZE = (Integer.MAX_VALUE / RECORD_SIZE) * RECORD_SIZE;
+
+    // ************************************************************************
+    /**
+     * Encodes a row of <code>long</code>s (as read by {@link EventReader}) into
+     * a <code>person_id</code> and packed event.
+     *
+     * @param values the row to encode. The first element is the <code>person_id</code>.
+     * @param length the number of valid elements in <code>values</code>
+     * @param personId the array to write the <code>person_id</code> into
+     * @param personIdOffset the offset in <code>personId</code> at which to write
+     * @param event the array to write the packed event into
+     * @param eventOffset the offset in <code>event</code> at which to write
+     */
+    public static void encode(final long[] values, final int length, final byte[] personId, final int personIdOffset, final byte[] event, final int eventOffset) {
+        // NOTE:  this is EventPacker#packEvent() without the allocation
+        ByteUtil.longToBytes(values[0], personId, personIdOffset);
+        ByteUtil.longToBytes(values[0], event, eventOffset);
+        ByteUtil.longToBytes(EventPacker.packKeys(values, length), event, eventOffset + 8);
+    }
+
+    // ========================================================================
+    /**
+     * @return <code>true</code> if the path names a record file (by extension)
+     */
+    public static boolean isRecordFile(final String path) {
+        return path.endsWith(EXTENSION);
+    }
+
+    /**
+     * Opens the appropriate {@link IRecordSource} for the path: record files
+     * are memory-mapped, synthetic specs (see {@link SyntheticWorkload}) are
+     * generated in-process and everything else is read as CSV.
+     */
+    public static IRecordSource open(final String path) {
+        if(isRecordFile(path))
+            return new BufferRecordSource(map(path));
+        else if(SyntheticWorkload.isSpec(path))
+            return new SyntheticWorkload(SyntheticWorkload.Spec.parse(path)).newRecordSource();
+        else
+            return new CsvRecordSource(path);
+    }
+
+    /**
+     * Memory-maps the record file read-only as a sequence of regions.
+     */
+    public static ByteBuffer[] map(final String path) {
+        final RandomAccessFile file;
+        try {
+            file = new RandomAccessFile(path, "r");
+        } catch(FileNotFoundException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not find file " + path);
+        }
+
+        try {
+            final FileChannel channel = file.getChannel();
+            final long size = channel.size();
+            if(size % RECORD_SIZE != 0)
+                throw new RuntimeException("Record file " + path + " is truncated (" + size + " bytes).");
+
+            final int regionCount = (int)((size + MAX_REGION_SIZE - 1) / MAX_REGION_SIZE);
+            final ByteBuffer[] regions = new ByteBuffer[regionCount];
+            for(int i=0; i<regionCount; i++) {
+                final long position = (long)i * MAX_REGION_SIZE;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_REGION_SIZE, size - position));
+            }
+            return regions;
+        } catch(IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not map file " + path);
+        } finally {
+            // the mappings remain valid once the file is closed
+            try {
+                file.close();
+            } catch(IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Could not close file.");
+            }
+        }
+    }
+
+    // ========================================================================
+    /**
+     * Writes every record of the source to the output path as a record file.
+     *
+     * @return the number of records written
+     */
+    public static long write(final IRecordSource source, final String outputPath) {
+        final OutputStream output;
+        try {
+            output = new BufferedOutputStream(new FileOutputStream(outputPath), 8192 * 16 * 16 * 16/*32M*/);
+        } catch(FileNotFoundException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not open file " + outputPath);
+        }
+
+        final byte[] record = new byte[RECORD_SIZE];
+        long count = 0L;
+        try {
+            while(source.read(record, 0, record, PERSON_ID_SIZE)) {
+                output.write(record);
+                count++;
+            }
+            output.close();
+        } catch(IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not write file " + outputPath);
+        } finally {
+            source.close();
+        }
+        return count;
+    }
+
+    static public void main(String[] args) {
+        final String csvPath = args[0];
+        final String outputPath = args[1];
+        if(!isRecordFile(outputPath))
+            System.err.println("WARNING: " + outputPath + " doesn't end in " + EXTENSION + " so it won't be read as a record file.");
+
+        final long count = write(new CsvRecordSource(csvPath), outputPath);
+        System.err.println("Wrote " + count + " records to " + outputPath);
+    }
+}
@@ -8,30 +8,70 @@
  ******************************************************************************/
 package net.agkn.hashperf.util;
 
+import java.io.IOException;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
 /**
- * Wraps an {@link EventReader}, and yields each record as bytes. Also provides
- * basic polling-based statistics collection.
+ * Wraps an {@link IRecordSource} (by default, an {@link EventReader} over a CSV
+ * file or a memory-mapped {@link RecordFile}), and yields each record as bytes.
+ * Also provides basic polling-based statistics collection and, optionally, a
+ * histogram of the latency of each record or batch (see {@link #trackLatency()})
+ * samples of the process's memory (see {@link #trackMemory(MemoryProbe)}) and
+ * the garbage collections in each polling interval (see {@link #trackGc(GcMonitor)}).
+ *
+ * Each poll is recorded into an unbounded {@link TimeSeriesRecorder} (so any
+ * number of polls may be taken) with the fields <code>POLL_*</code>. Between
+ * {@link #start()} and {@link #stop()} a background thread reports progress
+ * (at most every {@link #PROGRESS_INTERVAL_MILLIS}) and hands the polls to a
+ * sink if any are given (see {@link #streamPolls(TimeSeriesRecorder.ISink)}).
+ * The polls may be released once handed off if only the sinks need them (see
+ * {@link #releaseStreamedPolls()}). The latencies of each polling interval are
+ * summarized on that thread too, so a poll costs the iterating thread no more
+ * than swapping in an empty histogram.
  */
 public class RecordIterator {
-    // The maximum number of times to poll
-    private static int POLL_COUNT = 1000;
+    // the fields of each poll. Those not tracked are zero. The POLL_LATENCY
+    // fields are filled in as each poll is handed off (see start()).
+    public static final int POLL_TIME = 0/*since the start*/;
+    public static final int POLL_GC_TIME = 1/*since the start*/;
+    public static final int POLL_GC_COUNT = 2/*since the start*/;
+    public static final int POLL_JIT_TIME = 3/*since the start*/;
+    public static final int POLL_LATENCY = 4/*see LatencyHistogram#SNAPSHOT_FIELDS*/;
+    public static final int POLL_MEMORY = POLL_LATENCY + LatencyHistogram.SNAPSHOT_FIELDS.length/*see MemoryProbe#CSV_HEADER*/;
+    public static final int POLL_WIDTH = POLL_MEMORY + MemoryProbe.FIELD_COUNT;
+
+    // the least time between progress reports
+    public static final long PROGRESS_INTERVAL_MILLIS = 1000L;
+    // the time between polls being handed off to the sink
+    private static final long WRITER_INTERVAL_MILLIS = 100L;
 
     // ************************************************************************
 
-    // the wrapped reader
-    final private EventReader reader;
+    // the wrapped source
+    final private IRecordSource source;
 
     // ------------------------------------------------------------------------
     // stats
 
-    // the polled times
-    final private long[] times;
+    // the polls
+    final private TimeSeriesRecorder polls;
+    // the fields of the poll being taken
+    final private long[] poll;
 
     // the number of records between polls
     final private int pollingInterval;
 
-    // the pointer to the next available position to write to in the stats array
-    private int pollPosition;
+    // the sinks to which polls are streamed during the run
+    final private List<TimeSeriesRecorder.ISink> pollSinks;
+
+    // the time of each poll, kept once the polls themselves are released
+    // (only if they are, see releaseStreamedPolls())
+    private TimeSeriesRecorder pollTimes;
 
     // the starting and ending times of this iterator
     private long start;
@@ -40,6 +80,53 @@ public class RecordIterator {
     // the number of records seen
     private long counter;
 
+    // set by any thread to end the iteration at the next poll
+    private volatile boolean endRequested;
+    // true if the iteration was ended before the source was exhausted
+    private boolean endedEarly;
+
+    // ------------------------------------------------------------------------
+    // latency stats (only when tracking latency)
+
+    // the latencies since the last poll and over the whole run. At each poll
+    // the interval's histogram is handed to the writer thread, which adds it
+    // to the run (until the stop, only the writer thread touches the run's)
+    private LatencyHistogram intervalLatency;
+    private LatencyHistogram runLatency;
+    // the histograms handed off at each poll (in the order of the polls) and
+    // those that the writer thread has summarized and emptied for reuse
+    private Queue<LatencyHistogram> filledLatencies;
+    private Queue<LatencyHistogram> spareLatencies;
+    // the summary of the latencies in each polling interval (only if the
+    // polls are kept)
+    private TimeSeriesRecorder intervalLatencies;
+
+    // the time at which the current record (or batch) was handed out
+    private long lastNanos;
+    // true if a batch has been handed out whose latency is not yet recorded
+    private boolean batchPending;
+
+    // ------------------------------------------------------------------------
+    // memory stats (only when tracking memory)
+    private MemoryProbe memoryProbe;
+    // the memory after a full collection at the end
+    private MemoryProbe.Sample endMemory;
+
+    // ------------------------------------------------------------------------
+    // JIT stats (null if the JVM doesn't report its compilation time)
+    private final CompilationMXBean compilation;
+    // the compilation time at the start
+    private long startJitTime;
+
+    // ------------------------------------------------------------------------
+    // GC stats (only when tracking GC)
+    private GcMonitor gcMonitor;
+    // the collection time and count at the start
+    private long startGcTime;
+    private long startGcCount;
+    // the pauses recorded between the start and the stop
+    private List<GcMonitor.Pause> gcPauses;
+
     // ------------------------------------------------------------------------
     // iterator state
 
@@ -49,17 +136,30 @@ public class RecordIterator {
     private byte[] event;
 
     /**
-     * @param filePath the path of the file containing the records
+     * @param filePath the path of the file containing the records. Paths ending
+     *        in {@link RecordFile#EXTENSION} are memory-mapped, everything else
+     *        is parsed as CSV.
      * @param pollingInterval the number of records in between timing polls
      */
     public RecordIterator(final String filePath, final int pollingInterval) {
+        this(RecordFile.open(filePath), pollingInterval);
+    }
+
+    /**
+     * @param source the source of the records
+     * @param pollingInterval the number of records in between timing polls
+     */
+    public RecordIterator(final IRecordSource source, final int pollingInterval) {
         this.pollingInterval = pollingInterval;
         counter = 0L;
         personId = new byte[8];
         event = new byte[16];
-        times = new long[POLL_COUNT];
-        pollPosition = 0;
-        reader = new EventReader(filePath);
+        polls = new TimeSeriesRecorder(POLL_WIDTH);
+        poll = new long[POLL_WIDTH];
+        pollSinks = new ArrayList<TimeSeriesRecorder.ISink>();
+        final CompilationMXBean bean = ManagementFactory.getCompilationMXBean();
+        compilation = ((bean != null) && bean.isCompilationTimeMonitoringSupported()) ? bean : null;
+        this.source = source;
         // prime the iterator
         getNext();
     }
@@ -77,7 +177,12 @@ public class RecordIterator {
      * Advances the iterator to the next record.
      */
     public void next() {
-        getNext();
+        if(runLatency != null) {
+            intervalLatency.record(System.nanoTime() - lastNanos);
+            getNext();
+            lastNanos = System.nanoTime();
+        } else
+            getNext();
     }
 
     /**
@@ -96,35 +201,220 @@ public class RecordIterator {
         return event;
     }
 
+    /**
+     * Copies records into the batch, starting with the current record, and
+     * advances the iterator past them. Records are counted (and polled) one
+     * at a time just as with {@link #next()}.
+     *
+     * @param batch the batch to fill. This cannot be <code>null</code>.
+     * @return the number of records in the batch. This is zero once the
+     *         iterator is exhausted.
+     */
+    public int nextBatch(final RecordBatch batch) {
+        if((runLatency != null) && batchPending)
+            intervalLatency.record(System.nanoTime() - lastNanos);
+
+        int size = 0;
+        while((size < batch.capacity) && (event != null)) {
+            System.arraycopy(personId, 0, batch.personIds, RecordBatch.personIdOffset(size), RecordFile.PERSON_ID_SIZE);
+            System.arraycopy(event, 0, batch.events, RecordBatch.eventOffset(size), RecordFile.EVENT_SIZE);
+            size++;
+            getNext();
+        }
+        batch.size = size;
+
+        if(runLatency != null) {
+            batchPending = (size > 0);
+            lastNanos = System.nanoTime();
+        } /* else -- not tracking latency */
+        return size;
+    }
+
     /**
      * Advances the iterator's internal state.
      */
     private void getNext() {
-        long[] raw = reader.next();
-        if(raw == null) {
+        if(!source.read(personId, 0, event, 0)) {
+            source.close();
             personId = null;
             event = null;
         } else {
-            ByteUtil.longToBytes(raw[0], personId, 0);
-            final long[] packed = EventPacker.packEvent(raw);
-            ByteUtil.longToBytes(packed[0], event, 0);
-            ByteUtil.longToBytes(packed[1], event, 8);
             counter += 1;
             if(counter % pollingInterval == 0) {
-                System.err.println(counter);
-                times[pollPosition] = (System.currentTimeMillis() - start);
-                pollPosition += 1;
-            }
+                poll();
+                if(endRequested) {
+                    // the record just read is not yielded
+                    counter -= 1;
+                    endedEarly = true;
+                    source.close();
+                    personId = null;
+                    event = null;
+                } /* else -- keep going */
+            } /* else -- between polls */
         }
     }
 
+    /**
+     * Records a poll.
+     */
+    private void poll() {
+        poll[POLL_TIME] = (System.currentTimeMillis() - start);
+        if(gcMonitor != null) {
+            poll[POLL_GC_TIME] = gcMonitor.getCollectionTime() - startGcTime;
+            poll[POLL_GC_COUNT] = gcMonitor.getCollectionCount() - startGcCount;
+        } /* else -- not tracking GC */
+        if(compilation != null)
+            poll[POLL_JIT_TIME] = compilation.getTotalCompilationTime() - startJitTime;
+        /* else -- not reported */
+        if(runLatency != null) {
+            // hand the latencies since the last poll to the writer thread to be
+            // summarized (see start()) and carry on with an empty histogram
+            filledLatencies.offer(intervalLatency);
+            final LatencyHistogram spare = spareLatencies.poll();
+            intervalLatency = (spare != null) ? spare : new LatencyHistogram()/*the writer is behind*/;
+        } /* else -- not tracking latency */
+        if(memoryProbe != null)
+            memoryProbe.latest().copyTo(poll, POLL_MEMORY)/*sampled in the background*/;
+        /* else -- not tracking memory */
+        polls.record(poll);
+    }
+
+    /**
+     * Ends the iteration at the next poll as if the source were exhausted.
+     * This may be called from any thread (e.g. a sink of the polls, see
+     * {@link #streamPolls(TimeSeriesRecorder.ISink)}). The iteration is only
+     * checked at each poll so that the cost per record is unchanged.
+     */
+    public void endEarly() {
+        endRequested = true;
+    }
+
+    /**
+     * @return <code>true</code> if the iteration was ended by {@link #endEarly()}
+     *         before the source was exhausted
+     */
+    public boolean isEndedEarly() {
+        return endedEarly;
+    }
+
     // ************************************************************************
     // timer methods
+    /**
+     * Records the latency of each record (the time between it being yielded
+     * and {@link #next()} being called) or of each batch (the time between
+     * successive calls to {@link #nextBatch(RecordBatch)}). This must be
+     * called before {@link #start()}.
+     */
+    public void trackLatency() {
+        intervalLatency = new LatencyHistogram();
+        runLatency = new LatencyHistogram();
+        filledLatencies = new ConcurrentLinkedQueue<LatencyHistogram>();
+        spareLatencies = new ConcurrentLinkedQueue<LatencyHistogram>();
+    }
+
+    /**
+     * Records the most recent background sample of the memory (see
+     * {@link MemoryProbe#startSampling()}) at each poll and, after a full
+     * collection, samples it once the timer is stopped (while the store still
+     * holds every record). This must be called before {@link #start()}.
+     */
+    public void trackMemory(final MemoryProbe probe) {
+        memoryProbe = probe;
+    }
+
+    /**
+     * Polls the time and count of the collections at each poll and records
+     * each pause between the start and the stop (where the JVM publishes
+     * them, see {@link GcMonitor#isNotifying()}). This must be called before
+     * {@link #start()}.
+     */
+    public void trackGc(final GcMonitor monitor) {
+        gcMonitor = monitor;
+    }
+
+    /**
+     * Hands each poll (with the fields <code>POLL_*</code>) to the sink during
+     * the run, on a background thread. Every poll has been handed off by the
+     * time {@link #stop()} returns. Any number of sinks may be added (each
+     * gets every poll, in the order added). This must be called before
+     * {@link #start()}.
+     */
+    public void streamPolls(final TimeSeriesRecorder.ISink sink) {
+        pollSinks.add(sink);
+    }
+
+    /**
+     * Releases the polls once they have been handed to the sinks (see
+     * {@link #streamPolls(TimeSeriesRecorder.ISink)}) so that a long run with
+     * a small polling interval doesn't hold every poll. Only the time of each
+     * poll is kept (see {@link #getPolledTimes()}); the other per-poll getters
+     * can't be used. This must be called before {@link #start()}.
+     */
+    public void releaseStreamedPolls() {
+        pollTimes = new TimeSeriesRecorder(1);
+    }
+
     /**
      * Starts the timer.
      */
     public void start() {
+        if((runLatency != null) && (pollTimes == null))
+            intervalLatencies = new TimeSeriesRecorder(LatencyHistogram.SNAPSHOT_FIELDS.length);
+        /* else -- not tracking latency or the polls are released */
+        polls.startWriter(new TimeSeriesRecorder.ISink() {
+            private final long[] time = new long[1];
+            private final long[] latency = new long[LatencyHistogram.SNAPSHOT_FIELDS.length];
+            private long lastReport = System.currentTimeMillis();
+            private long lastIndex = -1L;
+
+            public void write(final long index, final long[] sample) throws IOException {
+                if(runLatency != null) {
+                    // summarize the latencies of the poll's interval and add
+                    // them to the run. The histogram was handed off before the
+                    // poll was recorded.
+                    final LatencyHistogram histogram = filledLatencies.poll();
+                    histogram.snapshot(sample, POLL_LATENCY);
+                    runLatency.add(histogram);
+                    histogram.reset();
+                    spareLatencies.offer(histogram);
+                    if(intervalLatencies != null) {
+                        System.arraycopy(sample, POLL_LATENCY, latency, 0, latency.length);
+                        intervalLatencies.record(latency);
+                    } /* else -- the polls are released */
+                } /* else -- not tracking latency */
+                for(final TimeSeriesRecorder.ISink sink : pollSinks)
+                    sink.write(index, sample);
+                if(pollTimes != null) {
+                    time[0] = sample[POLL_TIME];
+                    pollTimes.record(time);
+                } /* else -- every poll is kept */
+                lastIndex = index;
+            }
+
+            public void flush() throws IOException {
+                for(final TimeSeriesRecorder.ISink sink : pollSinks)
+                    sink.flush();
+                final long now = System.currentTimeMillis();
+                if((lastIndex >= 0L) && (now - lastReport >= PROGRESS_INTERVAL_MILLIS)) {
+                    System.err.println((lastIndex + 1) * pollingInterval);
+                    lastReport = now;
+                } /* else -- reported recently */
+            }
+        }, WRITER_INTERVAL_MILLIS, (pollTimes != null)/*release*/);
+
+        if(gcMonitor != null) {
+            gcMonitor.start();
+            startGcTime = gcMonitor.getCollectionTime();
+            startGcCount = gcMonitor.getCollectionCount();
+        } /* else -- not tracking GC */
+        if(compilation != null)
+            startJitTime = compilation.getTotalCompilationTime();
+        /* else -- not reported */
+        if(memoryProbe != null)
+            memoryProbe.startSampling();
+        /* else -- not tracking memory */
         start = System.currentTimeMillis();
+        lastNanos = System.nanoTime();
     }
 
     /**
@@ -132,6 +422,20 @@ public class RecordIterator {
      */
     public void stop() {
         end = System.currentTimeMillis();
+        polls.close()/*every poll is handed off and its latencies summarized*/;
+        if(gcMonitor != null) {
+            gcMonitor.stop();
+            gcPauses = gcMonitor.drainPauses();
+        } /* else -- not tracking GC */
+        if(runLatency != null) {
+            // the records since the last poll
+            runLatency.add(intervalLatency);
+            intervalLatency.reset();
+        } /* else -- not tracking latency */
+        if(memoryProbe != null) {
+            memoryProbe.stopSampling();
+            endMemory = memoryProbe.sampleAfterGC()/*after the timer*/;
+        } /* else -- not tracking memory */
     }
 
     // ************************************************************************
@@ -170,9 +474,137 @@ public class RecordIterator {
      * Returns the polled times.
      */
     public long[] getPolledTimes() {
-        final long[] usedTimes = new long[pollPosition];
-        System.arraycopy(times, 0, usedTimes, 0, pollPosition);
-        return usedTimes;
+        if(pollTimes == null) return getPolledField(POLL_TIME);
+
+        // the polls were released (see releaseStreamedPolls())
+        final long[] times = new long[(int)pollTimes.size()];
+        for(int i=0; i<times.length; i++)
+            times[i] = pollTimes.get(i, 0);
+        return times;
+    }
+
+    /**
+     * Returns the number of polls taken.
+     */
+    public long getPollCount() {
+        return polls.size();
+    }
+
+    /**
+     * Returns the polls (with the fields <code>POLL_*</code> other than
+     * <code>POLL_LATENCY</code>, see {@link #getIntervalLatencies()}). Those
+     * handed off can't be read if {@link #releaseStreamedPolls()} was called.
+     */
+    public TimeSeriesRecorder getPolls() {
+        return polls;
+    }
+
+    /**
+     * Fails if the polls were released once streamed.
+     */
+    private void checkPollsKept() {
+        if(pollTimes != null)
+            throw new RuntimeException("The polls were released once streamed (see releaseStreamedPolls()).");
+        /* else -- every poll is kept */
+    }
+
+    /**
+     * @return the given field of each poll
+     */
+    private long[] getPolledField(final int field) {
+        checkPollsKept();
+        final long[] values = new long[(int)polls.size()];
+        for(int i=0; i<values.length; i++)
+            values[i] = polls.get(i, field);
+        return values;
+    }
+
+    /**
+     * Returns the summary of the latencies in each polling interval: one row
+     * per poll, with the columns of {@link LatencyHistogram#SNAPSHOT_FIELDS}.
+     *
+     * NOTE:  {@link #trackLatency()} must have been called.
+     */
+    public long[][] getIntervalLatencies() {
+        checkPollsKept();
+        final long[][] latencies = new long[(int)intervalLatencies.size()][LatencyHistogram.SNAPSHOT_FIELDS.length];
+        for(int i=0; i<latencies.length; i++)
+            intervalLatencies.copy(i, latencies[i]);
+        return latencies;
+    }
+
+    /**
+     * Returns the latencies over the whole run.
+     *
+     * NOTE:  {@link #trackLatency()} must have been called.
+     */
+    public LatencyHistogram getRunLatency() {
+        return runLatency;
+    }
+
+    /**
+     * Returns the memory sampled at each poll.
+     *
+     * NOTE:  {@link #trackMemory(MemoryProbe)} must have been called.
+     */
+    public MemoryProbe.Sample[] getPolledMemory() {
+        checkPollsKept();
+        final MemoryProbe.Sample[] samples = new MemoryProbe.Sample[(int)polls.size()];
+        final long[] sample = new long[POLL_WIDTH];
+        for(int i=0; i<samples.length; i++) {
+            polls.copy(i, sample);
+            samples[i] = MemoryProbe.Sample.from(sample, POLL_MEMORY);
+        }
+        return samples;
+    }
+
+    /**
+     * Returns the memory after a full collection when the timer was stopped.
+     *
+     * NOTE:  {@link #trackMemory(MemoryProbe)} must have been called.
+     */
+    public MemoryProbe.Sample getEndMemory() {
+        return endMemory;
+    }
+
+    /**
+     * Returns the time (in milliseconds) spent collecting in each polling
+     * interval.
+     *
+     * NOTE:  {@link #trackGc(GcMonitor)} must have been called.
+     */
+    public long[] getIntervalGcTimes() {
+        return intervalDeltas(getPolledField(POLL_GC_TIME));
+    }
+
+    /**
+     * Returns the number of collections in each polling interval.
+     *
+     * NOTE:  {@link #trackGc(GcMonitor)} must have been called.
+     */
+    public long[] getIntervalGcCounts() {
+        return intervalDeltas(getPolledField(POLL_GC_COUNT));
+    }
+
+    /**
+     * Returns the pauses recorded between the start and the stop. This is
+     * empty if the JVM doesn't publish them.
+     *
+     * NOTE:  {@link #trackGc(GcMonitor)} must have been called.
+     */
+    public List<GcMonitor.Pause> getGcPauses() {
+        return gcPauses;
+    }
+
+    /**
+     * @param totals a total since the start at each poll
+     * @return the increase in the total in each polling interval
+     */
+    private long[] intervalDeltas(final long[] totals) {
+        final long[] deltas = new long[totals.length];
+        for(int i=0; i<totals.length; i++)
+            deltas[i] = totals[i] - ((i == 0) ? 0L : totals[i - 1]);
+        return deltas;
     }
 
     /**
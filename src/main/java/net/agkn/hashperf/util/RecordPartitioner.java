@@ -0,0 +1,273 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Splits a stream of records into partitions by the hash of their
+ * <code>person_id</code> so that several workers can each consume one
+ * partition. Every record of a given <code>person_id</code> lands in the same
+ * partition in its original order, so per-key ordering is preserved.
+ *
+ * The source is read on a separate thread that hands each partition its
+ * records in chunks through a bounded ring (as with {@link PipelinedRecordSource}).
+ * A worker that falls behind eventually stalls the reader and so the other
+ * workers.
+ *
+ * A {@link ParallelRecordSource} is read a chunk at a time rather than a
+ * record at a time. Its chunks are still delivered in file order.
+ */
+public class RecordPartitioner {
+    // initial / default values
+    public static final int DEFAULT_CHUNK_SIZE = 4096/*records*/;
+    public static final int DEFAULT_CHUNKS_PER_PARTITION = 8;
+
+    // ************************************************************************
+    // the wrapped source, read on the reader thread
+    private final IRecordSource source;
+    // the source as a parallel source, read by chunk (null otherwise)
+    private final ParallelRecordSource chunkSource;
+
+    // the ring of each partition. Chunks cycle from 'empty' to 'filled' and back.
+    private final List<BlockingQueue<RecordChunk>> emptyChunks;
+    private final List<BlockingQueue<RecordChunk>> filledChunks;
+
+    private final Partition[] partitions;
+
+    private final Thread readerThread;
+
+    // any failure on the reader thread that is rethrown to the workers
+    private volatile Throwable readerFailure;
+
+    // ========================================================================
+    /**
+     * @param source the source to read on the reader thread
+     * @param partitionCount the number of partitions
+     */
+    public RecordPartitioner(final IRecordSource source, final int partitionCount) {
+        this(source, partitionCount, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNKS_PER_PARTITION);
+    }
+
+    /**
+     * @param source the source to read on the reader thread
+     * @param partitionCount the number of partitions
+     * @param chunkSize the number of records in each chunk
+     * @param chunksPerPartition the number of chunks in the ring of each partition
+     */
+    public RecordPartitioner(final IRecordSource source, final int partitionCount, final int chunkSize, final int chunksPerPartition) {
+        this.source = source;
+        if(source instanceof ParallelRecordSource)
+            this.chunkSource = (ParallelRecordSource)source;
+        else
+            this.chunkSource = null/*read by record*/;
+        this.emptyChunks = new ArrayList<BlockingQueue<RecordChunk>>(partitionCount);
+        this.filledChunks = new ArrayList<BlockingQueue<RecordChunk>>(partitionCount);
+        this.partitions = new Partition[partitionCount];
+        for(int i=0; i<partitionCount; i++) {
+            final BlockingQueue<RecordChunk> ring = new ArrayBlockingQueue<RecordChunk>(chunksPerPartition);
+            for(int j=0; j<chunksPerPartition; j++)
+                ring.add(new RecordChunk(chunkSize, i));
+            emptyChunks.add(ring);
+            filledChunks.add(new ArrayBlockingQueue<RecordChunk>(chunksPerPartition + 1/*end marker*/));
+            partitions[i] = new Partition(i);
+        }
+
+        readerThread = new Thread(new Runnable() {
+            public void run() {
+                readAll();
+            }
+        }, "record-partitioner");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    // ========================================================================
+    /**
+     * @return the number of partitions
+     */
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    /**
+     * @param index the index of the partition
+     * @return the records of the given partition. This should be read by a
+     *         single thread.
+     */
+    public IRecordSource getPartition(final int index) {
+        return partitions[index];
+    }
+
+    /**
+     * @param personId the encoded <code>person_id</code>
+     * @param personIdOffset the offset of the <code>person_id</code>
+     * @param partitionCount the number of partitions
+     * @return the partition of the record
+     */
+    public static int partition(final byte[] personId, final int personIdOffset, final int partitionCount) {
+        // spread the id (which may be sequential) over the high bits and take
+        // the partition from those
+        final long hash = ByteUtil.bytesToLong(personId, personIdOffset) * 0x9E3779B97F4A7C15L;
+        return (int)(((hash >>> 32) * partitionCount) >>> 32);
+    }
+
+    /**
+     * Stops the reader if it hasn't finished (e.g. a worker failed) and closes
+     * the source.
+     */
+    public void close() {
+        if(readerThread.isAlive()) {
+            readerThread.interrupt();
+            try {
+                readerThread.join();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } /* else -- the reader has finished */
+    }
+
+    // ------------------------------------------------------------------------
+    /**
+     * Reads every record of the source into the chunk of its partition. Run on
+     * the reader thread.
+     */
+    private void readAll() {
+        final int partitionCount = partitions.length;
+        final RecordChunk[] filling = new RecordChunk[partitionCount];
+        try {
+            for(int i=0; i<partitionCount; i++) {
+                filling[i] = emptyChunks.get(i).take();
+                filling[i].count = 0;
+            }
+
+            if(chunkSource != null) {
+                RecordChunk parsed;
+                while((parsed = chunkSource.nextChunk()) != null) {
+                    for(int i=0; i<parsed.count; i++)
+                        distribute(parsed.data, RecordChunk.personIdOffset(i), filling);
+                    chunkSource.recycle(parsed);
+                }
+            } else {
+                final byte[] record = new byte[RecordFile.RECORD_SIZE];
+                while(source.read(record, 0, record, RecordFile.PERSON_ID_SIZE))
+                    distribute(record, 0, filling);
+            }
+
+            // hand over the partially filled chunks
+            for(int i=0; i<partitionCount; i++) {
+                if(filling[i].count > 0)
+                    filledChunks.get(i).put(filling[i]);
+                /* else -- nothing to hand over */
+            }
+        } catch(InterruptedException e) {
+            /* a worker has gone away */
+        } catch(Throwable t) {
+            t.printStackTrace();
+            readerFailure = t;
+        } finally {
+            source.close();
+
+            // the end markers always fit since each filled queue has room for
+            // every chunk plus the marker
+            for(int i=0; i<partitionCount; i++)
+                filledChunks.get(i).offer(new RecordChunk(0, i));
+        }
+    }
+
+    /**
+     * Copies an encoded record into the chunk of its partition, handing the
+     * chunk over once it is full.
+     *
+     * @param record the encoded record(s)
+     * @param offset the offset of the record
+     * @param filling the chunk being filled for each partition
+     */
+    private void distribute(final byte[] record, final int offset, final RecordChunk[] filling) throws InterruptedException {
+        final int index = partition(record, offset, filling.length);
+        RecordChunk chunk = filling[index];
+        System.arraycopy(record, offset, chunk.data, RecordChunk.personIdOffset(chunk.count), RecordFile.RECORD_SIZE);
+        chunk.count++;
+
+        if(chunk.count == chunk.capacity) {
+            filledChunks.get(index).put(chunk);
+            chunk = emptyChunks.get(index).take();
+            chunk.count = 0;
+            filling[index] = chunk;
+        } /* else -- room remains in the chunk */
+    }
+
+    // ************************************************************************
+    /**
+     * The records of a single partition, read by a single worker.
+     */
+    private class Partition implements IRecordSource {
+        private final int index;
+
+        private RecordChunk currentChunk;
+        private int chunkPosition;
+        private boolean exhausted = false/*default*/;
+
+        Partition(final int index) {
+            this.index = index;
+        }
+
+        /* (non-Javadoc)
+         * @see net.agkn.hashperf.util.IRecordSource#read(byte[], int, byte[], int)
+         */
+        public boolean read(final byte[] personId, final int personIdOffset, final byte[] event, final int eventOffset) {
+            if((currentChunk == null) || (chunkPosition == currentChunk.count)) {
+                if(exhausted) return false;
+                if(!nextChunk()) return false;
+            } /* else -- records remain in the current chunk */
+
+            System.arraycopy(currentChunk.data, RecordChunk.personIdOffset(chunkPosition), personId, personIdOffset, RecordFile.PERSON_ID_SIZE);
+            System.arraycopy(currentChunk.data, RecordChunk.eventOffset(chunkPosition), event, eventOffset, RecordFile.EVENT_SIZE);
+            chunkPosition++;
+            return true;
+        }
+
+        /**
+         * Returns the current chunk to the ring and takes the next filled chunk.
+         *
+         * @return <code>false</code> if the partition has no more records
+         */
+        private boolean nextChunk() {
+            if(currentChunk != null)
+                emptyChunks.get(index).add(currentChunk)/*never blocks since the ring is bounded*/;
+
+            try {
+                currentChunk = filledChunks.get(index).take();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted waiting for records.");
+            }
+            chunkPosition = 0;
+
+            if(currentChunk.count == 0) {
+                // end marker
+                exhausted = true;
+                if(readerFailure != null)
+                    throw new RuntimeException("Record partitioner failed.", readerFailure);
+                return false;
+            } /* else -- a chunk of records */
+            return true;
+        }
+
+        /* (non-Javadoc)
+         * @see net.agkn.hashperf.util.IRecordSource#close()
+         */
+        public void close() {
+            /* the partitioner is closed as a whole */
+        }
+    }
+}
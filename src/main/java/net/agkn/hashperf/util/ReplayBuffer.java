@@ -0,0 +1,113 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds an entire encoded data set (see {@link RecordFile}) in off-heap
+ * (direct) memory so that it can be replayed any number of times without
+ * touching the disk or adding to the heap seen by the store under test.
+ *
+ * NOTE:  the JVM limits direct memory to the maximum heap size by default. Set
+ *        <code>-XX:MaxDirectMemorySize</code> to at least the size of the
+ *        encoded data set (24 bytes per record).
+ */
+public class ReplayBuffer {
+    // the size of each direct region. It is a whole number of records.
+    private static final int REGION_SIZE = ((256 * 1024 * 1024) / RecordFile.RECORD_SIZE) * RecordFile.RECORD_SIZE;
+
+    // the number of records copied at a time while loading
+    private static final int LOAD_CHUNK_SIZE = 4096/*records*/;
+
+    // ************************************************************************
+    // the filled regions (position 0, limit at the end of the data)
+    private final ByteBuffer[] regions;
+
+    private final long recordCount;
+
+    /**
+     * Reads every record from the source into direct memory. The source is
+     * closed once it has been read.
+     *
+     * @param source the records to load
+     */
+    public ReplayBuffer(final IRecordSource source) {
+        final List<ByteBuffer> loaded = new ArrayList<ByteBuffer>();
+        final byte[] chunk = new byte[LOAD_CHUNK_SIZE * RecordFile.RECORD_SIZE];
+        ByteBuffer region = null;
+        long count = 0L;
+        boolean done = false;
+        try {
+            while(!done) {
+                // read a chunk of records
+                int offset = 0;
+                while(offset < chunk.length) {
+                    if(!source.read(chunk, offset, chunk, offset + RecordFile.PERSON_ID_SIZE)) {
+                        done = true;
+                        break;
+                    } /* else -- a record was read */
+                    offset += RecordFile.RECORD_SIZE;
+                }
+                count += offset / RecordFile.RECORD_SIZE;
+
+                // copy the chunk into the regions
+                int copied = 0;
+                while(copied < offset) {
+                    if((region == null) || !region.hasRemaining()) {
+                        region = ByteBuffer.allocateDirect(REGION_SIZE);
+                        loaded.add(region);
+                    } /* else -- room remains in the current region */
+                    final int length = Math.min(region.remaining(), offset - copied);
+                    region.put(chunk, copied, length);
+                    copied += length;
+                }
+            }
+        } finally {
+            source.close();
+        }
+
+        regions = loaded.toArray(new ByteBuffer[loaded.size()]);
+        for(final ByteBuffer filled : regions)
+            filled.flip();
+        recordCount = count;
+    }
+
+    // ========================================================================
+    /**
+     * Creates a new source that replays the buffered records from the start.
+     * Any number of sources may be created, and they are independent of one
+     * another.
+     */
+    public IRecordSource newSource() {
+        final ByteBuffer[] views = new ByteBuffer[regions.length];
+        for(int i=0; i<regions.length; i++)
+            views[i] = regions[i].duplicate();
+        return new BufferRecordSource(views);
+    }
+
+    /**
+     * @return the number of records held
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return the number of bytes of direct memory allocated
+     */
+    public long getAllocatedBytes() {
+        long allocated = 0L;
+        for(final ByteBuffer region : regions)
+            allocated += region.capacity();
+        return allocated;
+    }
+}
@@ -0,0 +1,540 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Summarizes the observation runs of each test and, given the summary of an
+ * earlier build, fails when a test has regressed.
+ *
+ * Usage: <code>ResultsAnalyzer /path/to/summary.csv statsFileOrDirectory [statsFileOrDirectory ...]</code>
+ *
+ * Each stats file written by the 'services' harness or the 'libraries' suite
+ * is a test (named for the file). For each run the throughput, the GC time
+ * and (where a <code>_memory.csv</code> file sits alongside) the heap and RSS
+ * bytes per record are taken, as are the bytes per record of a store that
+ * reports its own footprint (in a <code>_footprint.csv</code> file) and the
+ * time taken to close and reopen a persistent store (in a
+ * <code>_restart.csv</code> file), and their mean, median, standard deviation and 95% confidence interval over the runs
+ * are written to the summary.
+ *
+ * If <code>-Dhashperf.baseline</code> names an earlier summary, each metric is
+ * compared to it with Welch's t-test. A metric has regressed when it is worse
+ * by more than <code>-Dhashperf.regressionThreshold</code> (a fraction of the
+ * baseline mean, by default 0.05) and a one-sided test is significant at
+ * <code>-Dhashperf.significance</code> (by default 0.05). The comparison is
+ * written to a <code>_comparison.csv</code> file next to the summary and the
+ * analyzer exits with <code>1</code> if anything regressed.
+ */
+public class ResultsAnalyzer {
+    // the columns of the summary
+    private static final String SUMMARY_HEADER = "test,metric,n,mean,median,stddev,ci_low,ci_high";
+
+    // the metrics and whether more is better
+    public static final String THROUGHPUT = "records_per_second";
+    public static final String GC_TIME = "gc_ms";
+    public static final String HEAP_PER_RECORD = "heap_bytes_per_record";
+    public static final String RSS_PER_RECORD = "rss_bytes_per_record";
+    public static final String FOOTPRINT_PER_RECORD = "footprint_bytes_per_record";
+    public static final String CLOSE_TIME = "close_ms";
+    public static final String REOPEN_TIME = "reopen_ms";
+
+    // the defaults of the regression gate
+    public static final double DEFAULT_REGRESSION_THRESHOLD = 0.05;
+    public static final double DEFAULT_SIGNIFICANCE = 0.05;
+
+    // the confidence of the intervals in the summary
+    private static final double CONFIDENCE = 0.95;
+
+    // the suffixes of the files that sit alongside a stats file, which are
+    // never tests themselves
+    private static final String[] SIBLING_SUFFIXES = { "_gc.csv", "_memory.csv", "_probes.csv", "_latency.csv", "_pipeline.csv", "_warmup.csv", "_workers.csv", "_footprint.csv", "_restart.csv", "_comparison.csv" };
+
+    static public void main(String[] args) throws IOException {
+        final String summaryPath = args[0];
+
+        // test -> metric -> the value of each run
+        final Map<String, Map<String, List<Double>>> results = new TreeMap<String, Map<String, List<Double>>>();
+        for(int i=1; i<args.length; i++) {
+            final File path = new File(args[i]);
+            final File[] files = path.isDirectory() ? path.listFiles() : new File[] { path };
+            Arrays.sort(files);
+            for(final File file : files) {
+                if(!file.getName().endsWith(".csv")) continue;
+                final Map<String, List<Double>> metrics = readStats(file.getPath());
+                if(metrics != null)
+                    results.put(file.getName().substring(0, file.getName().length() - 4), metrics);
+                /* else -- not a stats file (e.g. a '_memory.csv' file) or no runs */
+            }
+        }
+
+        // summarize
+        final Map<String, Summary> summaries = new LinkedHashMap<String, Summary>();
+        for(final Map.Entry<String, Map<String, List<Double>>> test : results.entrySet()) {
+            for(final Map.Entry<String, List<Double>> metric : test.getValue().entrySet()) {
+                if(!metric.getValue().isEmpty())
+                    summaries.put(test.getKey() + "," + metric.getKey(), Summary.of(metric.getValue()));
+                /* else -- no runs measured it */
+            }
+        }
+        final FileWriter output = new FileWriter(summaryPath);
+        output.write(SUMMARY_HEADER + "\n");
+        for(final Map.Entry<String, Summary> summary : summaries.entrySet())
+            output.write(summary.getKey() + "," + summary.getValue().toCsv() + "\n");
+        output.close();
+        System.err.println("Summarized " + results.size() + " tests into " + summaryPath);
+
+        // compare
+        final String baselinePath = System.getProperty("hashperf.baseline");
+        if(baselinePath == null) return;
+        final double threshold = Double.parseDouble(System.getProperty("hashperf.regressionThreshold", Double.toString(DEFAULT_REGRESSION_THRESHOLD)));
+        final double significance = Double.parseDouble(System.getProperty("hashperf.significance", Double.toString(DEFAULT_SIGNIFICANCE)));
+        final int regressions = compare(readSummary(baselinePath), summaries, threshold, significance, siblingPath(summaryPath, "_comparison.csv"));
+        if(regressions > 0) {
+            System.err.println(regressions + " regressions against " + baselinePath);
+            System.exit(1);
+        } /* else -- no regressions */
+    }
+
+    // ************************************************************************
+    // reading
+    /**
+     * Reads the metrics of each run from a stats file and the <code>_memory.csv</code>
+     * <code>_footprint.csv</code> and <code>_restart.csv</code> files alongside
+     * it (if any).
+     *
+     * @return the value of each metric in each run (in run order) or
+     *         <code>null</code> if the file is not a stats file or has no runs
+     */
+    static Map<String, List<Double>> readStats(final String path) throws IOException {
+        final List<Map<String, String>> rows = readStatsCsv(path);
+        if(rows == null) return null;
+
+        // the services harness counts records at each poll, the libraries
+        // suite counts from zero so each row is the start of its interval
+        final boolean recordNumbered = rows.get(0).containsKey("record_number");
+        final Map<Integer, double[]/*records, millis, gc millis*/> runs = new TreeMap<Integer, double[]>();
+        long libraryInterval = 0L;
+        for(final Map<String, String> row : rows) {
+            final Integer run = Integer.valueOf(row.get("run"));
+            double[] totals = runs.get(run);
+            if(totals == null) {
+                totals = new double[3];
+                runs.put(run, totals);
+            } /* else -- a later poll */
+            if(recordNumbered) {
+                totals[0] = Double.parseDouble(row.get("record_number"));
+                totals[1] = Double.parseDouble(row.get("time"))/*since the start*/;
+            } else {
+                final long recNo = Long.parseLong(row.get("rec_no"));
+                if((recNo > 0L) && (libraryInterval == 0L)) libraryInterval = recNo;
+                totals[0] += 1/*polls, scaled below*/;
+                totals[1] += Double.parseDouble(row.get("time_diff"));
+            }
+            if(row.containsKey("gc_time"))
+                totals[2] += Double.parseDouble(row.get("gc_time"));
+            /* else -- written before GC was recorded */
+        }
+
+        final Map<String, List<Double>> metrics = new LinkedHashMap<String, List<Double>>();
+        if(recordNumbered || (libraryInterval > 0L)) {
+            final List<Double> throughput = new ArrayList<Double>();
+            for(final double[] totals : runs.values()) {
+                final double records = recordNumbered ? totals[0] : (totals[0] * libraryInterval);
+                if(totals[1] > 0.0) throughput.add(1000.0 * records / totals[1]);
+            }
+            metrics.put(THROUGHPUT, throughput);
+        } /* else -- a single poll per run so the interval is unknown */
+        final List<Double> gcTime = new ArrayList<Double>();
+        for(final double[] totals : runs.values())
+            gcTime.add(totals[2]);
+        metrics.put(GC_TIME, gcTime);
+
+        // the growth per record at the end of each run
+        final String memoryPath = siblingPath(path, "_memory.csv");
+        if(new File(memoryPath).isFile()) {
+            final List<Double> heapPerRecord = new ArrayList<Double>();
+            final List<Double> rssPerRecord = new ArrayList<Double>();
+            for(final Map<String, String> row : readCsv(memoryPath, "run")) {
+                if(row.containsKey("scope") && !"end".equals(row.get("scope"))) continue/*a poll*/;
+                final double heap = Double.parseDouble(recordNumbered ? row.get("heap_per_record") : row.get("heap_per_entry"));
+                final double rss = Double.parseDouble(recordNumbered ? row.get("rss_per_record") : row.get("rss_per_entry"));
+                heapPerRecord.add(heap);
+                if(rss >= 0.0) rssPerRecord.add(rss)/*-1 where unavailable*/;
+            }
+            metrics.put(HEAP_PER_RECORD, heapPerRecord);
+            if(!rssPerRecord.isEmpty()) metrics.put(RSS_PER_RECORD, rssPerRecord);
+        } /* else -- memory wasn't tracked */
+
+        // the store's own footprint per record at the end of each run
+        final String footprintPath = siblingPath(path, "_footprint.csv");
+        if(new File(footprintPath).isFile()) {
+            final List<Double> footprintPerRecord = new ArrayList<Double>();
+            for(final Map<String, String> row : readCsv(footprintPath, "run"))
+                footprintPerRecord.add(Double.parseDouble(row.get("bytes_per_record")));
+            metrics.put(FOOTPRINT_PER_RECORD, footprintPerRecord);
+        } /* else -- the store doesn't report its footprint */
+
+        // the time taken to close and reopen the store after each run
+        final String restartPath = siblingPath(path, "_restart.csv");
+        if(new File(restartPath).isFile()) {
+            final List<Double> closeTime = new ArrayList<Double>();
+            final List<Double> reopenTime = new ArrayList<Double>();
+            for(final Map<String, String> row : readCsv(restartPath, "run")) {
+                closeTime.add(Double.parseDouble(row.get("close_ms")));
+                reopenTime.add(Double.parseDouble(row.get("reopen_ms")));
+            }
+            metrics.put(CLOSE_TIME, closeTime);
+            metrics.put(REOPEN_TIME, reopenTime);
+        } /* else -- the store isn't restarted */
+        return metrics;
+    }
+
+    /**
+     * @return the summaries of an earlier run of the analyzer keyed by test
+     *         and metric
+     */
+    static Map<String, Summary> readSummary(final String path) throws IOException {
+        final Map<String, Summary> summaries = new LinkedHashMap<String, Summary>();
+        for(final Map<String, String> row : readCsv(path, "test")) {
+            summaries.put(row.get("test") + "," + row.get("metric"),
+                          new Summary(Integer.parseInt(row.get("n")),
+                                      Double.parseDouble(row.get("mean")),
+                                      Double.parseDouble(row.get("median")),
+                                      Double.parseDouble(row.get("stddev")),
+                                      Double.parseDouble(row.get("ci_low")),
+                                      Double.parseDouble(row.get("ci_high"))));
+        }
+        return summaries;
+    }
+
+    /**
+     * @return the rows of a stats file (which starts with a <code>run</code>
+     *         column and has a <code>time_diff</code> column and either a
+     *         <code>rec_no</code> column or <code>record_number</code> and
+     *         <code>time</code> columns) or <code>null</code> if the file isn't
+     *         one or has no rows
+     */
+    private static List<Map<String, String>> readStatsCsv(final String path) throws IOException {
+        for(final String suffix : SIBLING_SUFFIXES) {
+            if(path.endsWith(suffix)) return null;
+            /* else -- keep looking */
+        }
+
+        final List<String> columns = readHeader(path);
+        if((columns == null) || !columns.contains("time_diff")) return null;
+        if(!columns.contains("rec_no") && !(columns.contains("record_number") && columns.contains("time"))) return null;
+
+        final List<Map<String, String>> rows = readCsv(path, "run");
+        if((rows == null) || rows.isEmpty()) return null/*no runs were written*/;
+        return rows;
+    }
+
+    /**
+     * @return the names of the columns of a CSV file or <code>null</code> if
+     *         it is empty
+     */
+    private static List<String> readHeader(final String path) throws IOException {
+        final BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            final String header = reader.readLine();
+            return (header == null) ? null : Arrays.asList(header.split(","));
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @param firstColumn the expected name of the first column
+     * @return the rows of the file, each keyed by the names in its header, or
+     *         <code>null</code> if the first column is not as expected
+     */
+    private static List<Map<String, String>> readCsv(final String path, final String firstColumn) throws IOException {
+        final BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            final String header = reader.readLine();
+            if((header == null) || !header.startsWith(firstColumn + ",")) return null;
+            final String[] names = header.split(",");
+            final List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+            String line;
+            while((line = reader.readLine()) != null) {
+                final String[] values = line.split(",");
+                final Map<String, String> row = new LinkedHashMap<String, String>();
+                for(int i=0; i<Math.min(names.length, values.length); i++)
+                    row.put(names[i], values[i]);
+                rows.add(row);
+            }
+            return rows;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return the path of a file that sits alongside the given CSV file with
+     *         the given suffix
+     */
+    private static String siblingPath(final String path, final String suffix) {
+        return (path.endsWith(".csv") ? path.substring(0, path.length() - 4) : path) + suffix;
+    }
+
+    // ************************************************************************
+    // comparison
+    /**
+     * Compares each metric in both the baseline and the current summaries and
+     * writes the comparison.
+     *
+     * @return the number of metrics that regressed
+     */
+    static int compare(final Map<String, Summary> baseline, final Map<String, Summary> current, final double threshold, final double significance, final String comparisonPath)
+            throws IOException {
+        final FileWriter output = new FileWriter(comparisonPath);
+        output.write("test,metric,baseline_mean,mean,change,t,df,p_value,regression\n");
+        int regressions = 0;
+        for(final Map.Entry<String, Summary> entry : current.entrySet()) {
+            final Summary before = baseline.get(entry.getKey());
+            if(before == null) continue/*a new test or metric*/;
+            final Summary after = entry.getValue();
+            final boolean higherIsBetter = entry.getKey().endsWith("," + THROUGHPUT);
+
+            // the change in the direction of "worse"
+            final double change = (before.getMean() == 0.0) ? 0.0 : ((after.getMean() - before.getMean()) / before.getMean());
+            final double worsening = higherIsBetter ? -change : change;
+
+            final double[] test = welch(before, after);
+            final double t = test[0];
+            final double df = test[1];
+            // one-sided: the probability of a difference at least this much
+            // worse if nothing changed
+            final double pValue;
+            if(Double.isNaN(t))
+                pValue = Double.NaN/*too few runs*/;
+            else if(Double.isInfinite(t))
+                pValue = ((t > 0) == !higherIsBetter) ? 0.0 : 1.0/*no variance*/;
+            else {
+                final double tail = studentTwoSidedP(Math.abs(t), df) / 2.0;
+                pValue = ((t > 0) == !higherIsBetter) ? tail : (1.0 - tail);
+            }
+
+            final boolean regression = (worsening > threshold) && !Double.isNaN(pValue) && (pValue < significance);
+            if(regression) {
+                regressions++;
+                System.err.println("REGRESSION " + entry.getKey() + ": " + before.getMean() + " -> " + after.getMean() + " (" + (100.0 * change) + "%, p=" + pValue + ")");
+            } else if((worsening > threshold) && Double.isNaN(pValue))
+                System.err.println("Too few runs to test " + entry.getKey() + ": " + before.getMean() + " -> " + after.getMean());
+            /* else -- no regression */
+            output.write(entry.getKey() + "," + before.getMean() + "," + after.getMean() + "," + change + "," + t + "," + df + "," + pValue + "," + regression + "\n");
+        }
+        output.close();
+        return regressions;
+    }
+
+    /**
+     * Welch's unequal variances t-test.
+     *
+     * @return the t statistic of <code>after - before</code> and the degrees
+     *         of freedom. The statistic is <code>NaN</code> if either has fewer
+     *         than two runs and infinite if neither varies.
+     */
+    static double[] welch(final Summary before, final Summary after) {
+        if((before.getN() < 2) || (after.getN() < 2)) return new double[] { Double.NaN, Double.NaN };
+        final double beforeError = (before.getStddev() * before.getStddev()) / before.getN();
+        final double afterError = (after.getStddev() * after.getStddev()) / after.getN();
+        final double standardError = Math.sqrt(beforeError + afterError);
+        final double difference = after.getMean() - before.getMean();
+        if(standardError == 0.0) {
+            if(difference == 0.0) return new double[] { 0.0, before.getN() + after.getN() - 2 };
+            return new double[] { (difference > 0.0) ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY, before.getN() + after.getN() - 2 };
+        } /* else -- there is variance */
+        final double df = ((beforeError + afterError) * (beforeError + afterError)) /
+                          (((beforeError * beforeError) / (before.getN() - 1)) + ((afterError * afterError) / (after.getN() - 1)));
+        return new double[] { difference / standardError, df };
+    }
+
+    // ========================================================================
+    // Student's t distribution
+    /**
+     * @return the probability that <code>|T| &gt;= t</code> for a Student's t
+     *         distribution with <code>df</code> degrees of freedom
+     */
+    static double studentTwoSidedP(final double t, final double df) {
+        return regularizedIncompleteBeta(df / (df + t * t), df / 2.0, 0.5);
+    }
+
+    /**
+     * @return the <code>t</code> for which {@link #studentTwoSidedP(double, double)}
+     *         is <code>p</code>
+     */
+    static double studentCritical(final double p, final double df) {
+        double low = 0.0;
+        double high = 1.0;
+        while(studentTwoSidedP(high, df) > p) high *= 2.0;
+        for(int i=0; i<100; i++) {
+            final double middle = (low + high) / 2.0;
+            if(studentTwoSidedP(middle, df) > p)
+                low = middle;
+            else
+                high = middle;
+        }
+        return (low + high) / 2.0;
+    }
+
+    /**
+     * The regularized incomplete beta function <code>I_x(a, b)</code> by its
+     * continued fraction (Numerical Recipes, 6.4).
+     */
+    private static double regularizedIncompleteBeta(final double x, final double a, final double b) {
+        if(x <= 0.0) return 0.0;
+        if(x >= 1.0) return 1.0;
+        final double front = Math.exp(logGamma(a + b) - logGamma(a) - logGamma(b) + a * Math.log(x) + b * Math.log(1.0 - x));
+        if(x < (a + 1.0) / (a + b + 2.0))
+            return front * betaContinuedFraction(x, a, b) / a;
+        else
+            return 1.0 - front * betaContinuedFraction(1.0 - x, b, a) / b;
+    }
+
+    private static double betaContinuedFraction(final double x, final double a, final double b) {
+        final double tiny = 1e-300;
+        double c = 1.0;
+        double d = 1.0 - (a + b) * x / (a + 1.0);
+        if(Math.abs(d) < tiny) d = tiny;
+        d = 1.0 / d;
+        double h = d;
+        for(int m=1; m<=300; m++) {
+            final int m2 = 2 * m;
+            // even step
+            double aa = m * (b - m) * x / ((a + m2 - 1.0) * (a + m2));
+            d = 1.0 + aa * d;
+            if(Math.abs(d) < tiny) d = tiny;
+            c = 1.0 + aa / c;
+            if(Math.abs(c) < tiny) c = tiny;
+            d = 1.0 / d;
+            h *= d * c;
+            // odd step
+            aa = -(a + m) * (a + b + m) * x / ((a + m2) * (a + m2 + 1.0));
+            d = 1.0 + aa * d;
+            if(Math.abs(d) < tiny) d = tiny;
+            c = 1.0 + aa / c;
+            if(Math.abs(c) < tiny) c = tiny;
+            d = 1.0 / d;
+            final double delta = d * c;
+            h *= delta;
+            if(Math.abs(delta - 1.0) < 1e-15) break;
+        }
+        return h;
+    }
+
+    /**
+     * The log of the gamma function (Lanczos' approximation).
+     */
+    private static double logGamma(final double x) {
+        final double[] coefficients = { 76.18009172947146, -86.50532032941677, 24.01409824083091,
+                                        -1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5 };
+        double y = x;
+        final double tmp = x + 5.5 - (x + 0.5) * Math.log(x + 5.5);
+        double series = 1.000000000190015;
+        for(final double coefficient : coefficients)
+            series += coefficient / ++y;
+        return -tmp + Math.log(2.5066282746310005 * series / x);
+    }
+
+    // ************************************************************************
+    /**
+     * The summary of a metric over the observation runs of a test.
+     */
+    public static class Summary {
+        private final int n;
+        private final double mean;
+        private final double median;
+        private final double stddev;
+        private final double ciLow;
+        private final double ciHigh;
+
+        public Summary(final int n, final double mean, final double median, final double stddev, final double ciLow, final double ciHigh) {
+            this.n = n;
+            this.mean = mean;
+            this.median = median;
+            this.stddev = stddev;
+            this.ciLow = ciLow;
+            this.ciHigh = ciHigh;
+        }
+
+        /**
+         * @param values the value of each run. This cannot be empty.
+         */
+        public static Summary of(final List<Double> values) {
+            final int n = values.size();
+            final double[] sorted = new double[n];
+            double sum = 0.0;
+            for(int i=0; i<n; i++) {
+                sorted[i] = values.get(i);
+                sum += sorted[i];
+            }
+            Arrays.sort(sorted);
+            final double mean = sum / n;
+            final double median = ((n % 2) == 1) ? sorted[n / 2] : ((sorted[n / 2 - 1] + sorted[n / 2]) / 2.0);
+
+            double squares = 0.0;
+            for(final double value : sorted)
+                squares += (value - mean) * (value - mean);
+            final double stddev = (n > 1) ? Math.sqrt(squares / (n - 1)/*sample*/) : 0.0;
+            final double halfWidth = (n > 1) ? (studentCritical(1.0 - CONFIDENCE, n - 1) * stddev / Math.sqrt(n)) : 0.0;
+            return new Summary(n, mean, median, stddev, mean - halfWidth, mean + halfWidth);
+        }
+
+        public int getN() {
+            return n;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getMedian() {
+            return median;
+        }
+
+        /**
+         * @return the sample standard deviation
+         */
+        public double getStddev() {
+            return stddev;
+        }
+
+        /**
+         * @return the bounds of the 95% confidence interval of the mean
+         */
+        public double getCiLow() {
+            return ciLow;
+        }
+
+        public double getCiHigh() {
+            return ciHigh;
+        }
+
+        /**
+         * @return the summary in the columns after <code>test,metric</code>
+         *         of the summary file
+         */
+        public String toCsv() {
+            return n + "," + mean + "," + median + "," + stddev + "," + ciLow + "," + ciHigh;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An append-only store of events by <code>person_id</code> held entirely in
+ * off-heap (direct) memory. Keys are indexed by an open-addressing (linear
+ * probing) hash table whose slots each point to a chain of fixed-size chunks
+ * of events. Appending an event writes it into the last chunk of its key's
+ * chain (adding a chunk when that is full), so earlier events are never
+ * copied.
+ *
+ * Both the index and the chunks are held in regions of direct memory so that
+ * the store can grow to tens of gigabytes with only a handful of objects on
+ * the heap. Chunks are allocated sequentially and are only released with the
+ * whole store. The index doubles when it is three-quarters full; size it up
+ * front (see {@link #SlabAppendStore(long, int)}) to avoid the rehashing.
+ *
+ * NOTE:  the JVM limits direct memory to the maximum heap size by default. Set
+ *        <code>-XX:MaxDirectMemorySize</code> to at least {@link #getAllocatedBytes()}.
+ *        Direct memory is returned to the OS once its buffers are collected.
+ *
+ * Not thread-safe.
+ */
+public class SlabAppendStore {
+    // the size of each region of direct memory
+    private static final int REGION_BITS = 28/*256MB*/;
+
+    // the layout of an index slot: the key, the first and last chunks of its
+    // chain and the number of events. An empty slot has no first chunk.
+    private static final int SLOT_KEY = 0;
+    private static final int SLOT_HEAD = 8;
+    private static final int SLOT_TAIL = 16;
+    private static final int SLOT_COUNT = 24;
+    private static final int SLOT_SIZE = 32;
+
+    // the layout of a chunk: the next chunk in the chain (or none) followed by
+    // the events
+    private static final int CHUNK_NEXT = 0;
+    private static final int CHUNK_EVENTS = 8;
+
+    // the index is grown once it is this full
+    private static final double MAX_LOAD_FACTOR = 0.75;
+
+    // ************************************************************************
+    // the number of events in each chunk
+    private final int eventsPerChunk;
+    private final int chunkSize;
+
+    // the index. The number of slots is a power of two.
+    private Arena index;
+    private long slotMask;
+    private long keyCount;
+    private long growThreshold;
+
+    // the chunks. The offset of a chunk is never zero (the first chunk-sized
+    // space is left unused) so that zero means 'no chunk'.
+    private final Arena chunks;
+    private long nextChunk;
+    private long chunkCount;
+    private long eventCount;
+
+    /**
+     * @param expectedKeys the number of distinct keys to size the index for
+     * @param eventsPerChunk the number of events held in each chunk
+     */
+    public SlabAppendStore(final long expectedKeys, final int eventsPerChunk) {
+        if(eventsPerChunk < 1)
+            throw new IllegalArgumentException("A chunk must hold at least one event.");
+        this.eventsPerChunk = eventsPerChunk;
+        this.chunkSize = CHUNK_EVENTS + (eventsPerChunk * RecordFile.EVENT_SIZE);
+
+        long slots = 16L;
+        while(slots * MAX_LOAD_FACTOR < expectedKeys)
+            slots <<= 1;
+        allocateIndex(slots);
+
+        this.chunks = new Arena();
+        this.nextChunk = chunkSize/*see above*/;
+    }
+
+    /**
+     * Allocates an empty index with the given number of slots.
+     */
+    private void allocateIndex(final long slots) {
+        index = new Arena();
+        index.ensureCapacity(slots * SLOT_SIZE);
+        slotMask = slots - 1;
+        growThreshold = (long)(slots * MAX_LOAD_FACTOR);
+    }
+
+    // ========================================================================
+    /**
+     * Appends an event to the events of a key.
+     *
+     * @param personId the key
+     * @param event the event. Only its first {@link RecordFile#EVENT_SIZE}
+     *        bytes are stored.
+     * @param eventOffset the offset of the event in <code>event</code>
+     */
+    public void append(final long personId, final byte[] event, final int eventOffset) {
+        long slot = findSlot(personId);
+        final long count;
+        long tail;
+        if(index.getLong(slot + SLOT_HEAD) == 0L) {
+            // a new key
+            if(keyCount >= growThreshold) {
+                grow();
+                slot = findSlot(personId);
+            } /* else -- room in the index */
+            tail = allocateChunk();
+            index.putLong(slot + SLOT_KEY, personId);
+            index.putLong(slot + SLOT_HEAD, tail);
+            index.putLong(slot + SLOT_TAIL, tail);
+            keyCount++;
+            count = 0L;
+        } else {
+            tail = index.getLong(slot + SLOT_TAIL);
+            count = index.getLong(slot + SLOT_COUNT);
+            if((count % eventsPerChunk) == 0L) {
+                // the last chunk is full
+                final long chunk = allocateChunk();
+                chunks.putLong(tail + CHUNK_NEXT, chunk);
+                index.putLong(slot + SLOT_TAIL, chunk);
+                tail = chunk;
+            } /* else -- room in the last chunk */
+        }
+
+        final long position = tail + CHUNK_EVENTS + ((count % eventsPerChunk) * RecordFile.EVENT_SIZE);
+        chunks.putLong(position, ByteUtil.bytesToLong(event, eventOffset));
+        chunks.putLong(position + 8, ByteUtil.bytesToLong(event, eventOffset + 8));
+        index.putLong(slot + SLOT_COUNT, count + 1);
+        eventCount++;
+    }
+
+    /**
+     * @param personId the key
+     * @return the events of the key, in the order appended (or <code>null</code>
+     *         if the key has none)
+     */
+    public byte[] get(final long personId) {
+        final long slot = findSlot(personId);
+        if(index.getLong(slot + SLOT_HEAD) == 0L) return null;
+        /* else -- the key exists */
+
+        final long count = index.getLong(slot + SLOT_COUNT);
+        final byte[] events = new byte[(int)(count * RecordFile.EVENT_SIZE)];
+        long chunk = index.getLong(slot + SLOT_HEAD);
+        for(long i=0; i<count; i++) {
+            if((i > 0) && ((i % eventsPerChunk) == 0L))
+                chunk = chunks.getLong(chunk + CHUNK_NEXT);
+            /* else -- in the same chunk */
+            final long position = chunk + CHUNK_EVENTS + ((i % eventsPerChunk) * RecordFile.EVENT_SIZE);
+            final int offset = (int)(i * RecordFile.EVENT_SIZE);
+            ByteUtil.longToBytes(chunks.getLong(position), events, offset);
+            ByteUtil.longToBytes(chunks.getLong(position + 8), events, offset + 8);
+        }
+        return events;
+    }
+
+    /**
+     * @return the offset of the slot of the key: either the slot that holds
+     *         it or the empty slot where it belongs
+     */
+    private long findSlot(final long personId) {
+        long i = HashUtil.hash(personId) & slotMask;
+        while(true) {
+            final long slot = i * SLOT_SIZE;
+            if((index.getLong(slot + SLOT_HEAD) == 0L) || (index.getLong(slot + SLOT_KEY) == personId))
+                return slot;
+            /* else -- another key; probe the next slot */
+            i = (i + 1) & slotMask;
+        }
+    }
+
+    /**
+     * Doubles the index, rehashing every key into it.
+     */
+    private void grow() {
+        final Arena old = index;
+        final long oldSlots = slotMask + 1;
+        allocateIndex(oldSlots * 2);
+        for(long i=0; i<oldSlots; i++) {
+            final long from = i * SLOT_SIZE;
+            if(old.getLong(from + SLOT_HEAD) == 0L) continue;
+            /* else -- a key to move */
+            final long to = findSlot(old.getLong(from + SLOT_KEY));
+            index.putLong(to + SLOT_KEY, old.getLong(from + SLOT_KEY));
+            index.putLong(to + SLOT_HEAD, old.getLong(from + SLOT_HEAD));
+            index.putLong(to + SLOT_TAIL, old.getLong(from + SLOT_TAIL));
+            index.putLong(to + SLOT_COUNT, old.getLong(from + SLOT_COUNT));
+        }
+    }
+
+    /**
+     * @return the offset of a new (empty) chunk
+     */
+    private long allocateChunk() {
+        long chunk = nextChunk;
+        final long regionEnd = ((chunk >>> REGION_BITS) + 1) << REGION_BITS;
+        if(chunk + chunkSize > regionEnd)
+            chunk = regionEnd/*chunks don't straddle regions*/;
+        /* else -- fits in the region */
+        chunks.ensureCapacity(chunk + chunkSize);
+        nextChunk = chunk + chunkSize;
+        chunkCount++;
+        return chunk;
+    }
+
+    // ========================================================================
+    // footprint
+    /**
+     * @return the number of distinct keys
+     */
+    public long getKeyCount() {
+        return keyCount;
+    }
+
+    /**
+     * @return the number of events appended
+     */
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * @return the number of chunks allocated
+     */
+    public long getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @return the bytes of direct memory held by the index
+     */
+    public long getIndexBytes() {
+        return index.getCapacity();
+    }
+
+    /**
+     * @return the bytes of direct memory held by the chunks (including the
+     *         unused remainder of the last region)
+     */
+    public long getChunkBytes() {
+        return chunks.getCapacity();
+    }
+
+    /**
+     * @return the bytes of the chunks that hold no event yet (in the last
+     *         chunk of each key)
+     */
+    public long getUnusedChunkBytes() {
+        return (chunkCount * eventsPerChunk - eventCount) * RecordFile.EVENT_SIZE;
+    }
+
+    /**
+     * @return the bytes of direct memory held by the store
+     */
+    public long getAllocatedBytes() {
+        return getIndexBytes() + getChunkBytes();
+    }
+
+    /**
+     * @return the footprint in a form fit for a log line
+     */
+    @Override
+    public String toString() {
+        return keyCount + " keys, " + eventCount + " events in " + chunkCount + " chunks; index " + getIndexBytes() + " bytes, chunks " + getChunkBytes() + " bytes (" + getUnusedChunkBytes() + " unused in chunks); " +
+               ((eventCount == 0L) ? 0L : (getAllocatedBytes() / eventCount)) + " bytes per event";
+    }
+
+    // ************************************************************************
+    /**
+     * Direct memory addressed by a <code>long</code> offset, held in regions
+     * of <code>2^REGION_BITS</code> bytes that are added as it grows. Until it
+     * fills a whole region the first region is only as big as needed (and is
+     * copied as it doubles). New memory is zeroed.
+     */
+    private static class Arena {
+        private static final int REGION_SIZE = 1 << REGION_BITS;
+        private static final long OFFSET_MASK = REGION_SIZE - 1;
+
+        private final List<ByteBuffer> regions = new ArrayList<ByteBuffer>();
+        // the regions, for access without a bounds check on the list
+        private ByteBuffer[] regionArray = new ByteBuffer[0];
+        private long capacity = 0L;
+
+        /**
+         * Adds (or grows) regions until the arena holds at least the given
+         * number of bytes.
+         */
+        void ensureCapacity(final long bytes) {
+            if(bytes <= capacity) return;
+            /* else -- more memory is needed */
+
+            // grow the first region until it is whole
+            if(capacity < REGION_SIZE) {
+                long size = Math.max(capacity, 4096L);
+                while((size < bytes) && (size < REGION_SIZE))
+                    size <<= 1;
+                final ByteBuffer first = ByteBuffer.allocateDirect((int)Math.min(size, REGION_SIZE)).order(ByteOrder.nativeOrder());
+                if(!regions.isEmpty()) {
+                    final ByteBuffer old = regions.get(0).duplicate();
+                    old.clear();
+                    first.put(old);
+                    first.clear();
+                    regions.set(0, first);
+                } else
+                    regions.add(first);
+                capacity = first.capacity();
+            } /* else -- the first region is whole */
+
+            while(capacity < bytes) {
+                regions.add(ByteBuffer.allocateDirect(REGION_SIZE).order(ByteOrder.nativeOrder()));
+                capacity += REGION_SIZE;
+            }
+            regionArray = regions.toArray(new ByteBuffer[regions.size()]);
+        }
+
+        long getCapacity() {
+            return capacity;
+        }
+
+        long getLong(final long offset) {
+            return regionArray[(int)(offset >>> REGION_BITS)].getLong((int)(offset & OFFSET_MASK));
+        }
+
+        void putLong(final long offset, final long value) {
+            regionArray[(int)(offset >>> REGION_BITS)].putLong((int)(offset & OFFSET_MASK), value);
+        }
+    }
+}
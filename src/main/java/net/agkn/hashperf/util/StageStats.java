@@ -0,0 +1,58 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+/**
+ * The busy and idle time of one stage of a pipeline. A stage is idle when it
+ * is blocked waiting on a neighbouring stage.
+ */
+public class StageStats {
+    private final String name;
+    private final long busyNanos;
+    private final long idleNanos;
+
+    /**
+     * @param name the name of the stage (for reporting)
+     * @param busyNanos the time spent working, in nanoseconds
+     * @param idleNanos the time spent waiting on a neighbouring stage, in nanoseconds
+     */
+    public StageStats(final String name, final long busyNanos, final long idleNanos) {
+        this.name = name;
+        this.busyNanos = busyNanos;
+        this.idleNanos = idleNanos;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getBusyMillis() {
+        return busyNanos / 1000000L;
+    }
+
+    public long getIdleMillis() {
+        return idleNanos / 1000000L;
+    }
+
+    /**
+     * @return the fraction of the stage's time that was spent idle
+     */
+    public double getIdleFraction() {
+        final long total = busyNanos + idleNanos;
+        return (total == 0L) ? 0.0 : (idleNanos / (double)total);
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return name + ": busy " + getBusyMillis() + "ms, idle " + getIdleMillis() + "ms";
+    }
+}
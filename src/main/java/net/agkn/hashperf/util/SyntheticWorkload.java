@@ -0,0 +1,521 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Deterministically generates a stream of <code>person_id</code>/event rows in
+ * the same shape as the production dump, with a configurable total count,
+ * unique count, key-popularity distribution and events per person. The same
+ * {@link Spec} (including the seed) always yields the same stream.
+ *
+ * NOTE:  the unique count is the pool from which person ids are drawn, not the
+ *        number of distinct ids in the stream. Unless the total is many times
+ *        the pool some ids are never drawn and under a skewed distribution
+ *        (e.g. Zipf) the stream may hold far fewer distinct ids than the pool
+ *        (see {@link #getExpectedDistinctCount()}).
+ *
+ * A spec may be given anywhere a test file path is taken by prefixing it with
+ * {@link #PREFIX}, e.g.:
+ *
+ * <pre>
+ *   synthetic:total=780000000,unique=78000000,distribution=zipf,exponent=0.9
+ * </pre>
+ *
+ * Running this class writes a stream to a file: rows of CSV (or a
+ * {@link RecordFile} if the path ends in {@link RecordFile#EXTENSION}) for
+ * <code>events</code>, or one <code>person_id</code> per line for <code>ids</code>:
+ *
+ * <pre>
+ *   SyntheticWorkload events|ids /path/to/output total=...,unique=...
+ * </pre>
+ */
+public class SyntheticWorkload {
+    // the prefix that marks a test file path as a synthetic spec
+    public static final String PREFIX = "synthetic:";
+
+    // the Zipf ranks whose chance of being chosen is summed one by one. Beyond
+    // them the chance is summed over buckets of ranks that grow geometrically.
+    private static final long EXACT_ZIPF_RANKS = 1L << 16;
+    private static final double ZIPF_BUCKET_GROWTH = 1.01;
+
+    // ************************************************************************
+    /**
+     * The popularity of keys (<code>person_id</code>s).
+     */
+    public static enum Distribution {
+        /**
+         * Every key is equally likely.
+         */
+        UNIFORM,
+
+        /**
+         * The key of popularity rank <code>k</code> is chosen with probability
+         * proportional to <code>1 / k^exponent</code>.
+         */
+        ZIPF,
+
+        /**
+         * A fraction of the keys (the hot set) receives a fixed fraction of
+         * the accesses. Keys are uniform within and outside of the hot set.
+         */
+        HOTSET
+    }
+
+    /**
+     * The parameters of a synthetic stream.
+     */
+    public static class Spec {
+        // the number of rows to generate
+        public long totalCount = 1000000L;
+        // the number of distinct person ids that may be chosen (the pool, see
+        // SyntheticWorkload#getExpectedDistinctCount() for how many are)
+        public long uniqueCount = 100000L;
+
+        public Distribution distribution = Distribution.UNIFORM;
+        // ZIPF: the exponent (skew)
+        public double exponent = 1.0;
+        // HOTSET: the fraction of keys in the hot set and the fraction of
+        // accesses that go to it
+        public double hotFraction = 0.01;
+        public double hotProbability = 0.9;
+
+        // the number of consecutive rows generated for a person each time it
+        // is chosen
+        public int eventsPerPerson = 1;
+        // the number of key fields following the person id in each row
+        public int keyFieldCount = 3;
+
+        public long seed = 1L;
+
+        /**
+         * Parses a spec of comma-separated <code>name=value</code> pairs,
+         * optionally prefixed with {@link SyntheticWorkload#PREFIX}. Unnamed
+         * parameters keep their defaults.
+         */
+        public static Spec parse(String text) {
+            if(text.startsWith(PREFIX))
+                text = text.substring(PREFIX.length());
+
+            final Spec spec = new Spec();
+            for(final String pair : text.split(",")) {
+                if(pair.length() == 0) continue;
+                final int separator = pair.indexOf('=');
+                if(separator < 0)
+                    throw new IllegalArgumentException("Expected name=value but got '" + pair + "'.");
+                final String name = pair.substring(0, separator).trim();
+                final String value = pair.substring(separator + 1).trim();
+                if(name.equals("total"))
+                    spec.totalCount = Long.parseLong(value);
+                else if(name.equals("unique"))
+                    spec.uniqueCount = Long.parseLong(value);
+                else if(name.equals("distribution"))
+                    spec.distribution = Distribution.valueOf(value.toUpperCase());
+                else if(name.equals("exponent"))
+                    spec.exponent = Double.parseDouble(value);
+                else if(name.equals("hotFraction"))
+                    spec.hotFraction = Double.parseDouble(value);
+                else if(name.equals("hotProbability"))
+                    spec.hotProbability = Double.parseDouble(value);
+                else if(name.equals("eventsPerPerson"))
+                    spec.eventsPerPerson = Integer.parseInt(value);
+                else if(name.equals("keyFields"))
+                    spec.keyFieldCount = Integer.parseInt(value);
+                else if(name.equals("seed"))
+                    spec.seed = Long.parseLong(value);
+                else
+                    throw new IllegalArgumentException("Unknown synthetic parameter '" + name + "'.");
+            }
+            return spec;
+        }
+    }
+
+    // ************************************************************************
+    private final Spec spec;
+
+    /**
+     * @param spec the parameters of the stream
+     */
+    public SyntheticWorkload(final Spec spec) {
+        if(spec.uniqueCount < 1)
+            throw new IllegalArgumentException("The unique count must be positive.");
+        if(spec.eventsPerPerson < 1)
+            throw new IllegalArgumentException("The events per person must be positive.");
+        if(spec.keyFieldCount < 1)
+            throw new IllegalArgumentException("At least one key field is required.");
+        this.spec = spec;
+    }
+
+    /**
+     * @return <code>true</code> if the path is a synthetic spec rather than a file
+     */
+    public static boolean isSpec(final String path) {
+        return path.startsWith(PREFIX);
+    }
+
+    public Spec getSpec() {
+        return spec;
+    }
+
+    /**
+     * Computes the expected number of distinct person ids in the stream from
+     * the chance of each being drawn at least once. This is the count to size
+     * a store by, rather than the unique count, which is only the pool from
+     * which the ids are drawn.
+     *
+     * @return the expected number of distinct person ids
+     */
+    public long getExpectedDistinctCount() {
+        final long draws = (spec.totalCount + spec.eventsPerPerson - 1) / spec.eventsPerPerson;
+        if(draws <= 0L) return 0L;
+
+        final long n = spec.uniqueCount;
+        switch(spec.distribution) {
+            case ZIPF:
+                return Math.round(zipfDistinct(n, spec.exponent, draws));
+            case HOTSET: {
+                final long hotCount = hotCount(spec);
+                if(hotCount == n) return Math.round(distinct(n, 1.0 / n, draws));
+                /* else -- the hot and cold keys are uniform within each set */
+                return Math.round(distinct(hotCount, spec.hotProbability / hotCount, draws) +
+                                  distinct(n - hotCount, (1.0 - spec.hotProbability) / (n - hotCount), draws));
+            }
+            case UNIFORM:
+            default:
+                return Math.round(distinct(n, 1.0 / n, draws));
+        }
+    }
+
+    /**
+     * @param keyCount the number of keys
+     * @param probability the chance of each key being chosen by a draw
+     * @param draws the number of draws
+     * @return the expected number of the keys chosen at least once
+     */
+    private static double distinct(final long keyCount, final double probability, final long draws) {
+        return keyCount * -Math.expm1(draws * Math.log1p(-Math.min(1.0, probability)));
+    }
+
+    /**
+     * @return the expected number of the ranks <code>[1, n]</code> chosen at
+     *         least once by Zipf-distributed draws
+     */
+    private static double zipfDistinct(final long n, final double exponent, final long draws) {
+        double weight = 0.0;
+        for(long k=1L; k<=n; ) {
+            final long end = zipfBucketEnd(k, n);
+            weight += (end - k) * Math.pow((k + end - 1) / 2.0, -exponent);
+            k = end;
+        }
+
+        double distinct = 0.0;
+        for(long k=1L; k<=n; ) {
+            final long end = zipfBucketEnd(k, n);
+            distinct += distinct(end - k, Math.pow((k + end - 1) / 2.0, -exponent) / weight, draws);
+            k = end;
+        }
+        return distinct;
+    }
+
+    /**
+     * @return the (exclusive) last rank of the bucket of Zipf ranks starting
+     *         at <code>k</code>
+     */
+    private static long zipfBucketEnd(final long k, final long n) {
+        if(k < EXACT_ZIPF_RANKS) return k + 1;
+        return Math.min(n + 1, Math.max(k + 1, (long)(k * ZIPF_BUCKET_GROWTH)));
+    }
+
+    /**
+     * @return the number of keys in the hot set of a {@link Distribution#HOTSET}
+     */
+    private static long hotCount(final Spec spec) {
+        return Math.max(1L, Math.min(spec.uniqueCount, (long)(spec.hotFraction * spec.uniqueCount)));
+    }
+
+    // ========================================================================
+    /**
+     * @return a new generator positioned at the start of the stream
+     */
+    public Generator newGenerator() {
+        return new Generator(spec);
+    }
+
+    /**
+     * @return a new source of encoded records positioned at the start of the stream
+     */
+    public IRecordSource newRecordSource() {
+        final Generator generator = newGenerator();
+        final long[] row = new long[1 + spec.keyFieldCount];
+        return new IRecordSource() {
+            public boolean read(final byte[] personId, final int personIdOffset, final byte[] event, final int eventOffset) {
+                final int length = generator.next(row);
+                if(length < 0) return false;
+                RecordFile.encode(row, length, personId, personIdOffset, event, eventOffset);
+                return true;
+            }
+
+            public void close() {
+                /* nothing to release */
+            }
+        };
+    }
+
+    // ************************************************************************
+    /**
+     * Generates the rows of a stream. It is <i>not</i> thread-safe.
+     */
+    public static class Generator {
+        private final Spec spec;
+        // key selection and key fields are drawn from separate generators so
+        // that the person ids are the same whether or not rows are generated
+        private final SplitMix64 random;
+        private final SplitMix64 keyFieldRandom;
+        private final ZipfSampler zipf/*only for ZIPF*/;
+        private final long hotCount/*only for HOTSET*/;
+
+        // the number of rows generated so far
+        private long generated;
+        // the current person and the number of their rows remaining
+        private long currentPersonId;
+        private int remainingForPerson;
+
+        Generator(final Spec spec) {
+            this.spec = spec;
+            this.random = new SplitMix64(spec.seed);
+            this.keyFieldRandom = new SplitMix64(~spec.seed);
+            this.zipf = (spec.distribution == Distribution.ZIPF) ? new ZipfSampler(spec.uniqueCount, spec.exponent) : null;
+            this.hotCount = hotCount(spec);
+        }
+
+        /**
+         * Generates the next row: the <code>person_id</code> followed by the
+         * key fields.
+         *
+         * @param row the array to fill. It must have room for
+         *        <code>1 + keyFieldCount</code> elements.
+         * @return the number of elements written or <code>-1</code> if the
+         *         stream is exhausted
+         */
+        public int next(final long[] row) {
+            if(!hasNext()) return -1;
+
+            row[0] = nextPersonId();
+            for(int i=1; i<=spec.keyFieldCount; i++)
+                row[i] = keyFieldRandom.nextLong() >>> 1/*non-negative, as in the dump*/;
+            return 1 + spec.keyFieldCount;
+        }
+
+        /**
+         * @return <code>true</code> if more rows remain
+         */
+        public boolean hasNext() {
+            return generated < spec.totalCount;
+        }
+
+        /**
+         * Generates the next row's <code>person_id</code> alone. It is only
+         * valid to call this if {@link #hasNext()} is <code>true</code>.
+         */
+        public long nextPersonId() {
+            generated++;
+            if(remainingForPerson == 0) {
+                currentPersonId = personIdForRank(nextRank());
+                remainingForPerson = spec.eventsPerPerson;
+            } /* else -- more rows for the current person */
+            remainingForPerson--;
+            return currentPersonId;
+        }
+
+        /**
+         * @return the popularity rank (0 is the most popular) of the next key
+         */
+        private long nextRank() {
+            switch(spec.distribution) {
+                case ZIPF:
+                    return zipf.sample(random) - 1;
+                case HOTSET:
+                    if((random.nextDouble() < spec.hotProbability) || (hotCount == spec.uniqueCount))
+                        return random.nextLong(hotCount);
+                    else
+                        return hotCount + random.nextLong(spec.uniqueCount - hotCount);
+                case UNIFORM:
+                default:
+                    return random.nextLong(spec.uniqueCount);
+            }
+        }
+
+        /**
+         * Scrambles a rank into a <code>person_id</code> so that popular keys
+         * aren't clustered. The mapping is a bijection on non-negative
+         * <code>long</code>s so distinct ranks always give distinct ids.
+         */
+        private long personIdForRank(final long rank) {
+            final long mask = Long.MAX_VALUE/*63 bits*/;
+            long x = (rank + spec.seed) & mask;
+            x = (x * 0x9E3779B97F4A7C15L) & mask/*odd multiplier*/;
+            x ^= (x >>> 29);
+            x = (x * 0xBF58476D1CE4E5B9L) & mask/*odd multiplier*/;
+            x ^= (x >>> 32);
+            return x;
+        }
+    }
+
+    // ========================================================================
+    /**
+     * The SplitMix64 generator: fast, deterministic and of good quality.
+     */
+    static class SplitMix64 {
+        private long state;
+
+        SplitMix64(final long seed) {
+            this.state = seed;
+        }
+
+        long nextLong() {
+            long z = (state += 0x9E3779B97F4A7C15L);
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+
+        /**
+         * @return a value uniformly distributed in <code>[0, bound)</code>
+         */
+        long nextLong(final long bound) {
+            return (long)(nextDouble() * bound);
+        }
+
+        /**
+         * @return a value uniformly distributed in <code>[0, 1)</code>
+         */
+        double nextDouble() {
+            return (nextLong() >>> 11) * 0x1.0p-53;
+        }
+    }
+
+    /**
+     * Samples Zipf-distributed ranks in <code>[1, n]</code> in constant time
+     * using rejection-inversion (Hormann and Derflinger, "Rejection-inversion to
+     * generate variates from monotone discrete distributions", 1996).
+     */
+    static class ZipfSampler {
+        private final long n;
+        private final double exponent;
+        private final double hIntegralX1;
+        private final double hIntegralN;
+        private final double s;
+
+        ZipfSampler(final long n, final double exponent) {
+            if(exponent <= 0.0)
+                throw new IllegalArgumentException("The Zipf exponent must be positive.");
+            this.n = n;
+            this.exponent = exponent;
+            this.hIntegralX1 = hIntegral(1.5) - 1.0;
+            this.hIntegralN = hIntegral(n + 0.5);
+            this.s = 2.0 - hIntegralInverse(hIntegral(2.5) - h(2.0));
+        }
+
+        long sample(final SplitMix64 random) {
+            while(true) {
+                final double u = hIntegralN + random.nextDouble() * (hIntegralX1 - hIntegralN);
+                final double x = hIntegralInverse(u);
+                long k = (long)(x + 0.5);
+                if(k < 1L)
+                    k = 1L;
+                else if(k > n)
+                    k = n;
+                if(((k - x) <= s) || (u >= hIntegral(k + 0.5) - h(k)))
+                    return k;
+                /* else -- rejected */
+            }
+        }
+
+        private double h(final double x) {
+            return Math.exp(-exponent * Math.log(x));
+        }
+
+        private double hIntegral(final double x) {
+            final double logX = Math.log(x);
+            return helper2((1.0 - exponent) * logX) * logX;
+        }
+
+        private double hIntegralInverse(final double x) {
+            double t = x * (1.0 - exponent);
+            if(t < -1.0) t = -1.0;
+            return Math.exp(helper1(t) * x);
+        }
+
+        // log(1 + x) / x, accurate near 0
+        private static double helper1(final double x) {
+            if(Math.abs(x) > 1e-8)
+                return Math.log1p(x) / x;
+            else
+                return 1.0 - x * ((1.0 / 2.0) - x * ((1.0 / 3.0) - x * (1.0 / 4.0)));
+        }
+
+        // (exp(x) - 1) / x, accurate near 0
+        private static double helper2(final double x) {
+            if(Math.abs(x) > 1e-8)
+                return Math.expm1(x) / x;
+            else
+                return 1.0 + x * (1.0 / 2.0) * (1.0 + x * (1.0 / 3.0) * (1.0 + x * (1.0 / 4.0)));
+        }
+    }
+
+    // ========================================================================
+    static public void main(String[] args) {
+        final String kind = args[0];
+        final String outputPath = args[1];
+        final SyntheticWorkload workload = new SyntheticWorkload(Spec.parse((args.length > 2) ? args[2] : ""));
+
+        if(kind.equals("events") && RecordFile.isRecordFile(outputPath)) {
+            final long count = RecordFile.write(workload.newRecordSource(), outputPath);
+            System.err.println("Wrote " + count + " records to " + outputPath + " (about " + workload.getExpectedDistinctCount() + " distinct person ids)");
+            return;
+        } /* else -- text output */
+
+        final boolean idsOnly;
+        if(kind.equals("ids"))
+            idsOnly = true;
+        else if(kind.equals("events"))
+            idsOnly = false;
+        else
+            throw new IllegalArgumentException("Expected 'events' or 'ids' but got '" + kind + "'.");
+
+        final Generator generator = workload.newGenerator();
+        final long[] row = new long[1 + workload.spec.keyFieldCount];
+        long count = 0L;
+        try {
+            final Writer output = new BufferedWriter(new FileWriter(outputPath), 8192 * 16 * 16 * 16/*32M*/);
+            final StringBuilder line = new StringBuilder();
+            int length;
+            while((length = generator.next(row)) >= 0) {
+                line.setLength(0);
+                line.append(row[0]);
+                if(!idsOnly) {
+                    for(int i=1; i<length; i++)
+                        line.append(',').append(row[i]);
+                } /* else -- person id only */
+                line.append('\n');
+                output.write(line.toString());
+                count++;
+            }
+            output.close();
+        } catch(IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Could not write file " + outputPath);
+        }
+        System.err.println("Wrote " + count + " rows to " + outputPath + " (about " + workload.getExpectedDistinctCount() + " distinct person ids)");
+    }
+}
@@ -0,0 +1,234 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+import java.io.IOException;
+
+/**
+ * An unbounded series of fixed-width samples of <code>long</code>s. Samples
+ * are stored in fixed-size chunks that are added as the series grows, so
+ * recording a sample never copies earlier samples and costs no more than a few
+ * array writes. Only the directory of chunks is copied, when it doubles.
+ *
+ * Optionally (see {@link #startWriter(ISink, long, boolean)}) a background
+ * thread hands each new sample to a sink while samples are still being
+ * recorded, e.g. to stream them to a stats file during the run. If nothing
+ * reads the whole series afterwards, the chunks that have been handed off may
+ * be released so that the series holds only the samples not yet written.
+ *
+ * Samples are recorded by a single thread. They may be read by any thread
+ * once {@link #size()} includes them.
+ */
+public class TimeSeriesRecorder {
+    // the number of samples in each chunk
+    private static final int CHUNK_SAMPLES = 256;
+
+    // ************************************************************************
+    // the number of fields in each sample
+    private final int width;
+
+    // the chunks. A chunk is added to the directory before the size that
+    // includes its samples is published. When the directory is full it is
+    // replaced by one of twice the capacity.
+    private volatile long[][] chunks;
+
+    // the number of samples recorded
+    private volatile long size;
+
+    // the number of leading chunks released by the writer (only if it
+    // releases them, see #startWriter())
+    private volatile int releasedChunks;
+
+    // ------------------------------------------------------------------------
+    // background writer (only once started)
+    private Thread writerThread;
+    private final Object writerLock = new Object();
+    private boolean closed = false/*default*/;
+    private IOException writerException;
+
+    /**
+     * @param width the number of fields in each sample
+     */
+    public TimeSeriesRecorder(final int width) {
+        this.width = width;
+        this.chunks = new long[1][];
+        this.size = 0L;
+    }
+
+    // ========================================================================
+    /**
+     * Appends a sample.
+     *
+     * @param sample the fields of the sample. Only the first {@link #getWidth()}
+     *        are copied so the array may be reused.
+     */
+    public void record(final long[] sample) {
+        final long index = size;
+        final int chunkIndex = (int)(index / CHUNK_SAMPLES);
+        final int offset = (int)(index % CHUNK_SAMPLES) * width;
+        long[][] directory = chunks;
+        if(offset == 0) {
+            if(chunkIndex == directory.length)
+                directory = growDirectory(directory);
+            /* else -- room in the directory */
+            directory[chunkIndex] = new long[CHUNK_SAMPLES * width];
+        } /* else -- room in the last chunk */
+        System.arraycopy(sample, 0, directory[chunkIndex], offset, width);
+        size = index + 1/*publishes the sample*/;
+    }
+
+    /**
+     * Replaces the directory with one of twice the capacity.
+     *
+     * @return the new directory
+     */
+    private long[][] growDirectory(final long[][] directory) {
+        final long[][] grown = new long[directory.length * 2][];
+        System.arraycopy(directory, 0, grown, 0, directory.length);
+        chunks = grown;
+
+        // the writer may have released a chunk from the old directory after it
+        // was copied. The directory is published before the released count is
+        // read (and the writer does the reverse) so either the writer sees the
+        // new directory or this sees the chunk as released.
+        final int released = releasedChunks;
+        for(int i=0; i<released; i++)
+            grown[i] = null;
+        return grown;
+    }
+
+    /**
+     * @return the number of samples recorded
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the number of fields in each sample
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @param index the index of the sample. This must be less than {@link #size()}
+     *        and the sample must not have been released.
+     * @param field the index of the field in the sample
+     * @return the value of the field
+     */
+    public long get(final long index, final int field) {
+        return chunks[(int)(index / CHUNK_SAMPLES)][(int)(index % CHUNK_SAMPLES) * width + field];
+    }
+
+    /**
+     * Copies a sample.
+     *
+     * @param index the index of the sample. This must be less than {@link #size()}
+     *        and the sample must not have been released.
+     * @param dst the array into which the fields are copied
+     */
+    public void copy(final long index, final long[] dst) {
+        System.arraycopy(chunks[(int)(index / CHUNK_SAMPLES)], (int)(index % CHUNK_SAMPLES) * width, dst, 0, width);
+    }
+
+    // ========================================================================
+    /**
+     * Starts a thread that hands each sample to the sink, in order, no later
+     * than the given interval after it is recorded (including those already
+     * recorded). The sink is only ever called on that thread. It must be
+     * stopped with {@link #close()}.
+     *
+     * @param sink the sink for the samples. This cannot be <code>null</code>.
+     * @param intervalMillis the time between handing off samples
+     * @param release <code>true</code> if each chunk is released once all of
+     *        its samples have been handed off. Released samples can no longer
+     *        be read with {@link #get(long, int)} or {@link #copy(long, long[])}.
+     */
+    public void startWriter(final ISink sink, final long intervalMillis, final boolean release) {
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                final long[] sample = new long[width];
+                long written = 0L;
+                try {
+                    while(true) {
+                        final boolean last;
+                        synchronized(writerLock) {
+                            if(!closed)
+                                writerLock.wait(intervalMillis);
+                            /* else -- the final hand-off */
+                            last = closed;
+                        }
+                        final long available = size;
+                        for(; written<available; written++) {
+                            copy(written, sample);
+                            sink.write(written, sample);
+                        }
+                        sink.flush();
+                        if(release) {
+                            // the released count is published before the
+                            // directory is read (see growDirectory())
+                            final int handedOff = (int)(written / CHUNK_SAMPLES);
+                            for(int i=releasedChunks; i<handedOff; i++) {
+                                releasedChunks = i + 1;
+                                chunks[i] = null;
+                            }
+                        } /* else -- every sample is kept */
+                        if(last) break;
+                    }
+                } catch(IOException e) {
+                    writerException = e;
+                } catch(InterruptedException e) {
+                    /* stop writing */
+                }
+            }
+        }, "time-series-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Stops the writer (if any) once it has handed off every sample recorded.
+     */
+    public void close() {
+        if(writerThread == null) return;
+        synchronized(writerLock) {
+            closed = true;
+            writerLock.notifyAll();
+        }
+        try {
+            writerThread.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
+        if(writerException != null) {
+            writerException.printStackTrace();
+            throw new RuntimeException("Couldn't write samples");
+        } /* else -- written */
+    }
+
+    // ************************************************************************
+    /**
+     * The receiver of the samples of a {@link TimeSeriesRecorder}, called on
+     * its writer thread.
+     */
+    public interface ISink {
+        /**
+         * @param index the index of the sample
+         * @param sample the fields of the sample. The array is reused.
+         */
+        void write(long index, long[] sample) throws IOException;
+
+        /**
+         * Called after each group of samples is handed off.
+         */
+        void flush() throws IOException;
+    }
+}
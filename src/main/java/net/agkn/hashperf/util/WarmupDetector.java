@@ -0,0 +1,254 @@
+/******************************************************************************
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this
+ * distribution, and is available at http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ * Aggregate Knowledge - implementation
+ ******************************************************************************/
+package net.agkn.hashperf.util;
+
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Decides when the warmup runs have reached a steady state. Steady state is
+ * reached either
+ * <ul>
+ *   <li>within a run, once the throughput of the last few windows varies by
+ *       less than a threshold (their coefficient of variation) and the JIT
+ *       compiled for no more than {@link #JIT_FRACTION} of them; or</li>
+ *   <li>at the end of a run, once its mean throughput is within the threshold
+ *       of the previous run's and the JIT compiled for no more than
+ *       {@link #JIT_FRACTION} of it.</li>
+ * </ul>
+ *
+ * A window spans as many consecutive polls as take at least
+ * {@link #MIN_WINDOW_MILLIS}, so that the millisecond resolution of the poll
+ * times is small next to its length however close together the polls are.
+ *
+ * A watched run (see {@link #watch(RecordIterator, boolean)}) may be ended as
+ * soon as it is steady rather than run over the whole test file. The polls
+ * are judged on the iterator's background thread.
+ */
+public class WarmupDetector implements TimeSeriesRecorder.ISink {
+    // the most JIT compilation time, as a fraction of the time watched, in
+    // a steady state
+    public static final double JIT_FRACTION = 0.01;
+
+    // the least time spanned by a window
+    public static final long MIN_WINDOW_MILLIS = 100L;
+
+    // the columns of a row of {@link #toCsv()}
+    public static final String CSV_HEADER = "records,seconds,jit_ms,records_per_second,window_cv,run_delta,ended_early,steady";
+
+    // ************************************************************************
+    private final int pollingInterval;
+    // the number of windows that must be steady
+    private final int windows;
+    // the largest coefficient of variation (or relative change in the run
+    // mean) that is steady
+    private final double threshold;
+
+    // null if the JVM doesn't report its compilation time
+    private final CompilationMXBean compilation;
+
+    // ------------------------------------------------------------------------
+    // the current run (written on the iterator's background thread and read
+    // once the iterator is stopped)
+    private RecordIterator iter;
+    private boolean canEnd;
+    // the throughput of the last windows (a ring) and the JIT time and poll
+    // time (both since the start of the run) at the end of each
+    private final double[] windowThroughputs;
+    private final long[] windowJitTimes;
+    private final long[] windowPollTimes;
+    private long windowCount;
+    // the poll time at the start of the current window and the number of
+    // polls in it so far
+    private long windowStartTime;
+    private long windowPolls;
+    private long runStartJitTime;
+    private double windowCv;
+    private boolean windowSteady;
+
+    // ------------------------------------------------------------------------
+    // the results of the last run
+    private double previousThroughput = -1.0/*no run yet*/;
+    private long records;
+    private double seconds;
+    private long jitMillis;
+    private double runThroughput;
+    private double runDelta;
+    private boolean endedEarly;
+    private boolean steady;
+
+    /**
+     * @param pollingInterval the number of records between the polls of each
+     *        run
+     * @param windows the number of consecutive windows that must be
+     *        steady. This must be at least two.
+     * @param threshold the largest coefficient of variation of the window
+     *        throughputs (or relative change in the mean throughput between
+     *        runs) that is steady, e.g. <code>0.05</code>
+     */
+    public WarmupDetector(final int pollingInterval, final int windows, final double threshold) {
+        if(windows < 2)
+            throw new IllegalArgumentException("At least two windows are needed to measure their variation.");
+        this.pollingInterval = pollingInterval;
+        this.windows = windows;
+        this.threshold = threshold;
+        this.windowThroughputs = new double[windows];
+        this.windowJitTimes = new long[windows];
+        this.windowPollTimes = new long[windows];
+
+        final CompilationMXBean bean = ManagementFactory.getCompilationMXBean();
+        this.compilation = ((bean != null) && bean.isCompilationTimeMonitoringSupported()) ? bean : null;
+    }
+
+    // ========================================================================
+    /**
+     * Watches a warmup run. This must be called before the iterator is
+     * started.
+     *
+     * @param iter the iterator of the run
+     * @param canEnd <code>true</code> if the run should be ended as soon as
+     *        its windows are steady
+     */
+    public void watch(final RecordIterator iter, final boolean canEnd) {
+        this.iter = iter;
+        this.canEnd = canEnd;
+        windowCount = 0L;
+        windowStartTime = 0L/*the start*/;
+        windowPolls = 0L;
+        windowCv = Double.NaN;
+        windowSteady = false;
+        runStartJitTime = getJitTime();
+        iter.streamPolls(this);
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.TimeSeriesRecorder.ISink#write(long, long[])
+     */
+    public void write(final long index, final long[] poll) {
+        if(windowSteady) return/*already judged*/;
+
+        final long pollTime = poll[RecordIterator.POLL_TIME];
+        windowPolls++;
+        final long windowMillis = pollTime - windowStartTime;
+        if(windowMillis < MIN_WINDOW_MILLIS) return/*the window isn't over*/;
+
+        final int slot = (int)(windowCount % windows);
+        windowThroughputs[slot] = 1000.0 * windowPolls * pollingInterval / windowMillis;
+        windowJitTimes[slot] = poll[RecordIterator.POLL_JIT_TIME]/*as of the end of the window*/;
+        windowPollTimes[slot] = pollTime;
+        windowCount++;
+        windowStartTime = pollTime;
+        windowPolls = 0L;
+        if(windowCount <= windows) return/*the first window, which includes the start, is left out*/;
+
+        // the statistics of the last windows
+        double sum = 0.0;
+        for(final double throughput : windowThroughputs)
+            sum += throughput;
+        final double mean = sum / windows;
+        double squares = 0.0;
+        for(final double throughput : windowThroughputs)
+            squares += (throughput - mean) * (throughput - mean);
+        windowCv = Math.sqrt(squares / (windows - 1)) / mean;
+
+        // the JIT time since the end of the oldest window in the ring
+        final int oldest = (int)(windowCount % windows);
+        final long jit = windowJitTimes[slot] - windowJitTimes[oldest];
+        final long elapsed = windowPollTimes[slot] - windowPollTimes[oldest];
+        if((windowCv <= threshold) && (jit <= JIT_FRACTION * elapsed)) {
+            windowSteady = true;
+            if(canEnd) iter.endEarly();
+            /* else -- run to the end */
+        } /* else -- still warming up */
+    }
+
+    /* (non-Javadoc)
+     * @see net.agkn.hashperf.util.TimeSeriesRecorder.ISink#flush()
+     */
+    public void flush() {
+        /* nothing is buffered */
+    }
+
+    /**
+     * Judges a watched run once its iterator has been stopped.
+     *
+     * @return <code>true</code> if the run was steady
+     */
+    public boolean endRun() {
+        records = iter.getCount();
+        seconds = iter.getElapsedSeconds();
+        jitMillis = getJitTime() - runStartJitTime;
+        runThroughput = (seconds > 0.0) ? (records / seconds) : 0.0;
+        endedEarly = iter.isEndedEarly();
+        // a run that was cut short isn't comparable to a whole one
+        if((previousThroughput > 0.0) && !endedEarly)
+            runDelta = (runThroughput - previousThroughput) / previousThroughput;
+        else
+            runDelta = Double.NaN;
+        final boolean runSteady = !Double.isNaN(runDelta) && (Math.abs(runDelta) <= threshold) && (jitMillis <= JIT_FRACTION * 1000.0 * seconds);
+        steady = windowSteady || runSteady;
+        previousThroughput = endedEarly ? -1.0 : runThroughput;
+        iter = null;
+        return steady;
+    }
+
+    /**
+     * @return the JIT compilation time (in milliseconds) so far or zero if the
+     *         JVM doesn't report it
+     */
+    private long getJitTime() {
+        return (compilation == null) ? 0L : compilation.getTotalCompilationTime();
+    }
+
+    // ========================================================================
+    /**
+     * @return <code>true</code> if the JVM reports its JIT compilation time
+     */
+    public boolean isJitTimeSupported() {
+        return (compilation != null);
+    }
+
+    /**
+     * @return the number of records of the last run
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * @return the seconds taken by the last run
+     */
+    public double getSeconds() {
+        return seconds;
+    }
+
+    /**
+     * @return the JIT compilation time (in milliseconds) during the last run
+     */
+    public long getJitMillis() {
+        return jitMillis;
+    }
+
+    /**
+     * @return <code>true</code> if the last run was steady
+     */
+    public boolean isSteady() {
+        return steady;
+    }
+
+    /**
+     * @return the last run as a row with the columns of {@link #CSV_HEADER}
+     */
+    public String toCsv() {
+        return records + "," + seconds + "," + jitMillis + "," + runThroughput + "," +
+               (Double.isNaN(windowCv) ? "" : Double.toString(windowCv)) + "," +
+               (Double.isNaN(runDelta) ? "" : Double.toString(runDelta)) + "," +
+               endedEarly + "," + steady;
+    }
+}